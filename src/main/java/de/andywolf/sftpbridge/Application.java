@@ -2,12 +2,18 @@ package de.andywolf.sftpbridge;
 
 import com.amazonaws.services.lambda.runtime.events.S3Event;
 import com.amazonaws.services.lambda.runtime.events.ScheduledEvent;
-import de.andywolf.sftpbridge.base.Connection;
+import de.andywolf.sftpbridge.base.ConnectionBuilder;
+import de.andywolf.sftpbridge.base.ConnectionPool;
 import de.andywolf.sftpbridge.base.Directory;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.s3.S3CheckpointStore;
+import de.andywolf.sftpbridge.s3.S3Connection;
 import de.andywolf.sftpbridge.s3.S3ConnectionBuilder;
 import de.andywolf.sftpbridge.sftp.SftpConnectionBuilder;
+import de.andywolf.sftpbridge.util.CopyOptions;
+import de.andywolf.sftpbridge.util.CopyResult;
 import de.andywolf.sftpbridge.util.FileCopier;
+import de.andywolf.sftpbridge.util.FileFilter;
 import lombok.extern.slf4j.Slf4j;
 import org.joda.time.DateTime;
 import org.springframework.beans.factory.annotation.Value;
@@ -44,6 +50,56 @@ public class Application {
     @Value(value = "${SOURCE_PRIVATE_KEY}")
     private String sourcePrivateKey;
 
+    @Value(value = "${COPY_PARALLELISM:1}")
+    private int copyParallelism;
+
+    @Value(value = "${COPY_PIPELINE_BUFFERS:0}")
+    private int copyPipelineBuffers;
+
+    @Value(value = "${COPY_WALK_PARALLELISM:1}")
+    private int copyWalkParallelism;
+
+    @Value(value = "${COPY_SYNC:false}")
+    private boolean copySync;
+
+    @Value(value = "${CHECKPOINT_KEY:}")
+    private String checkpointKey;
+
+    @Value(value = "${GLOB_PATTERN:}")
+    private String globPattern;
+
+    @Value(value = "${S3_DIRECTORY_MARKERS:true}")
+    private boolean s3DirectoryMarkers;
+
+    @Value(value = "${S3_MAX_CONNECTIONS:64}")
+    private int s3MaxConnections;
+
+    @Value(value = "${POOL_MAX_CONNECTIONS_PER_KEY:2}")
+    private int poolMaxConnectionsPerKey;
+
+    @Value(value = "${POOL_IDLE_TIMEOUT_MILLIS:300000}")
+    private long poolIdleTimeoutMillis;
+
+    @Value(value = "${COPY_MAX_FILES:-1}")
+    private long copyMaxFiles;
+
+    @Value(value = "${COPY_MAX_BYTES:-1}")
+    private long copyMaxBytes;
+
+    @Value(value = "${COPY_TIME_LIMIT_MILLIS:-1}")
+    private long copyTimeLimitMillis;
+
+    /**
+     * Keeps the connections of a warm container open across invocations, so that only the first invocation connects
+     * and authenticates.
+     */
+    @Bean(destroyMethod = "close")
+    public ConnectionPool connectionPool() {
+        // the workers of a parallel copy borrow a connection each besides the one of the invocation
+        int maxConnectionsPerKey = Math.max(poolMaxConnectionsPerKey, copyParallelism + 1);
+        return new ConnectionPool(maxConnectionsPerKey, poolIdleTimeoutMillis, ConnectionPool.BORROW_TIMEOUT_MILLIS_DEFAULT);
+    }
+
     /**
      * Moves one single file from an S3 bucket to an SFTP target
      * Expects only TARGET_* in environment variables
@@ -84,65 +140,100 @@ public class Application {
     }
 
     private void copyS3ToSftp(URI sourceURI, URI targetURI, String targetUser, String targetPassword) {
+        ConnectionPool pool = connectionPool();
+
         // Source
         String sourcePath = sourceURI.getPath();
         String sourceDirectory = extractDirectory(sourcePath);
         String sourceFilename = extractFilename(sourcePath);
 
-        Connection s3Connection = getS3Connection(sourceURI.getHost());
-        Directory s3SourceDirectory = s3Connection.getDirectory(sourceDirectory);
-        File s3SourceFile = s3SourceDirectory.getFile(sourceFilename);
-
         // Target
         String targetPath = targetURI.getPath();
         String targetDirectory = extractDirectory(targetPath);
 
-        Connection sftpConnection = getSftpConnection(targetURI.getHost(), targetURI.getPort(), targetUser, targetPassword);
-        Directory sftpTargetDirectory = sftpConnection.getDirectory(targetDirectory);
+        String s3Key = getS3ConnectionKey(sourceURI.getHost());
+        String sftpKey = getSftpConnectionKey(targetURI.getHost(), targetURI.getPort(), targetUser);
+
+        // Keep the connections for the next invocation
+        pool.use(s3Key, getS3ConnectionBuilder(sourceURI.getHost()), s3Connection -> {
+            Directory s3SourceDirectory = s3Connection.getDirectory(sourceDirectory);
+            File s3SourceFile = s3SourceDirectory.getFile(sourceFilename);
 
-        // Copy source file to target directory
-        log.debug("S3 source file: {}", s3SourceFile);
-        log.debug("SFTP target directory: {}", sftpTargetDirectory);
+            pool.use(sftpKey, getSftpConnectionBuilder(targetURI.getHost(), targetURI.getPort(), targetUser, targetPassword), sftpConnection -> {
+                Directory sftpTargetDirectory = sftpConnection.getDirectory(targetDirectory);
 
-        FileCopier.copy(s3SourceFile, sftpTargetDirectory);
+                // Copy source file to target directory
+                log.debug("S3 source file: {}", s3SourceFile);
+                log.debug("SFTP target directory: {}", sftpTargetDirectory);
 
-        // Close connections
-        s3Connection.close();
-        sftpConnection.close();
+                FileCopier.copy(s3SourceFile, sftpTargetDirectory);
+            });
+        });
     }
 
     private void copySftpToS3(URI sourceURI, String sourceUser, String sourcePassword, URI targetURI) {
+        ConnectionPool pool = connectionPool();
+
         // Source
         String sourcePath = sourceURI.getPath();
         String sourceDirectory = extractDirectory(sourcePath);
         String sourceFilename = extractFilename(sourcePath);
 
-        Connection sftpSourceConnection = getSftpConnection(sourceURI.getHost(), sourceURI.getPort(), sourceUser, sourcePassword);
-        Directory sftpSourceDirectory = sftpSourceConnection.getDirectory(sourceDirectory);
-
         // Target
         String targetPath = targetURI.getPath();
         String targetDirectory = extractDirectory(targetPath);
 
-        Connection s3TargetConnection = getS3Connection(targetURI.getHost());
-        Directory s3TargetDirectory = s3TargetConnection.getDirectory(targetDirectory);
-
-        // Copy source to target directory recursively
-        log.debug("SFTP source directory: {}", sftpSourceDirectory);
-        log.debug("S3 target directory: {}", s3TargetDirectory);
-
-        if(sourceFilename.isEmpty()) {
-            FileCopier.copy(sftpSourceDirectory, s3TargetDirectory);
-        }
-        else {
-            File sftpSourceFile = sftpSourceDirectory.getFile(sourceFilename);
-            log.debug("SFTP source file: {}", sftpSourceFile);
-            FileCopier.copy(sftpSourceFile, s3TargetDirectory);
-        }
-
-        // Close connections
-        s3TargetConnection.close();
-        sftpSourceConnection.close();
+        ConnectionBuilder sftpSourceConnectionBuilder = getSftpConnectionBuilder(sourceURI.getHost(), sourceURI.getPort(), sourceUser, sourcePassword);
+        ConnectionBuilder s3TargetConnectionBuilder = getS3ConnectionBuilder(targetURI.getHost());
+        String sftpKey = getSftpConnectionKey(sourceURI.getHost(), sourceURI.getPort(), sourceUser);
+        String s3Key = getS3ConnectionKey(targetURI.getHost());
+
+        // The time limit applies to the invocation, including a retry on new connections
+        long deadlineMillis = copyTimeLimitMillis == CopyOptions.NO_LIMIT ? CopyOptions.NO_LIMIT
+                : System.currentTimeMillis() + copyTimeLimitMillis;
+
+        // Keep the connections for the next invocation
+        pool.use(sftpKey, sftpSourceConnectionBuilder, sftpSourceConnection -> {
+            pool.use(s3Key, s3TargetConnectionBuilder, s3TargetConnection -> {
+                Directory sftpSourceDirectory = sftpSourceConnection.getDirectory(sourceDirectory);
+                Directory s3TargetDirectory = s3TargetConnection.getDirectory(targetDirectory);
+
+                // Copy source to target directory recursively
+                log.debug("SFTP source directory: {}", sftpSourceDirectory);
+                log.debug("S3 target directory: {}", s3TargetDirectory);
+
+                if(sourceFilename.isEmpty()) {
+                    CopyOptions copyOptions = new CopyOptions()
+                            .withParallelism(copyParallelism)
+                            .withWalkParallelism(copyWalkParallelism)
+                            .withPipeline(CopyOptions.PIPELINE_BUFFER_SIZE_DEFAULT, copyPipelineBuffers)
+                            .withSync(copySync)
+                            .withMaxFiles(copyMaxFiles)
+                            .withMaxBytes(copyMaxBytes)
+                            .withDeadline(deadlineMillis)
+                            // Let the workers of a parallel copy reuse the connections as well
+                            .withSourceConnectionBuilder(pool.pooledBuilder(sftpKey, sftpSourceConnectionBuilder))
+                            .withTargetConnectionBuilder(pool.pooledBuilder(s3Key, s3TargetConnectionBuilder));
+                    if (!checkpointKey.isEmpty()) {
+                        copyOptions.withCheckpointStore(new S3CheckpointStore((S3Connection) s3TargetConnection, checkpointKey));
+                    }
+                    if (!globPattern.isEmpty()) {
+                        copyOptions.withFilter(new FileFilter().withInclude(globPattern));
+                    }
+
+                    CopyResult result = FileCopier.copy(sftpSourceDirectory, s3TargetDirectory, copyOptions);
+                    if (!result.isComplete()) {
+                        log.info("Left {} files and {} directories for the next run", result.getRemainingFiles().size(),
+                                result.getRemainingDirectories().size());
+                    }
+                }
+                else {
+                    File sftpSourceFile = sftpSourceDirectory.getFile(sourceFilename);
+                    log.debug("SFTP source file: {}", sftpSourceFile);
+                    FileCopier.copy(sftpSourceFile, s3TargetDirectory);
+                }
+            });
+        });
     }
 
     private String extractFilename(String path) {
@@ -161,23 +252,35 @@ public class Application {
         return directory;
     }
 
-    private Connection getS3Connection(String bucketName) {
+    private static String getS3ConnectionKey(String bucketName) {
+        return "s3://" + bucketName;
+    }
+
+    private ConnectionBuilder getS3ConnectionBuilder(String bucketName) {
         ConnectionOptions s3Options = new ConnectionOptions();
 
         s3Options.set(ConnectionOptions.ADDRESS, bucketName);
+        s3Options.set(ConnectionOptions.LAZY_CONNECT, true);
+        s3Options.set(ConnectionOptions.S3_DIRECTORY_MARKERS, s3DirectoryMarkers);
+        s3Options.set(ConnectionOptions.S3_MAX_CONNECTIONS, s3MaxConnections);
+
+        return new S3ConnectionBuilder(s3Options);
+    }
 
-        return new S3ConnectionBuilder(s3Options).build();
+    private static String getSftpConnectionKey(String host, int port, String user) {
+        return "sftp://" + user + "@" + host + ":" + port;
     }
 
-    private Connection getSftpConnection(String host, int port, String user, String password) {
+    private ConnectionBuilder getSftpConnectionBuilder(String host, int port, String user, String password) {
         ConnectionOptions sftpOptions = new ConnectionOptions();
 
         sftpOptions.set(ConnectionOptions.ADDRESS, host);
         sftpOptions.set(ConnectionOptions.PORT, port);
         sftpOptions.set(ConnectionOptions.USERNAME, user);
         sftpOptions.set(ConnectionOptions.PASSWORD, password);
+        sftpOptions.set(ConnectionOptions.LAZY_CONNECT, true);
 
-        return new SftpConnectionBuilder(sftpOptions).build();
+        return new SftpConnectionBuilder(sftpOptions);
     }
 
 /*
@@ -37,6 +37,9 @@ public class ConnectionOptions {
 	public static final String SOCKET_TIMEOUT_MILLIS = "socketTimeoutMillis";
 	public static final int SOCKET_TIMEOUT_MILLIS_DEFAULT = 0;
 
+    public static final String LAZY_CONNECT = "lazyConnect";
+    public static final boolean LAZY_CONNECT_DEFAULT = false;
+
     public static final String ADDRESS = "address";
 
     public static final String PORT = "port";
@@ -54,6 +57,75 @@ public class ConnectionOptions {
     public static final String SIGNING_REGION = "signingRegion";
     public static final String SIGNING_REGION_DEFAULT = "eu-central-1";
 
+    public static final String S3_MAX_PARTS_IN_FLIGHT = "s3MaxPartsInFlight";
+    public static final int S3_MAX_PARTS_IN_FLIGHT_DEFAULT = 4;
+
+    public static final String S3_RANGED_GET_CONCURRENCY = "s3RangedGetConcurrency";
+    public static final int S3_RANGED_GET_CONCURRENCY_DEFAULT = 4;
+
+    public static final String S3_RANGED_GET_PART_SIZE = "s3RangedGetPartSize";
+    public static final int S3_RANGED_GET_PART_SIZE_DEFAULT = 8 * 1024 * 1024; // 8 MB
+
+    public static final String S3_DELETE_CONCURRENCY = "s3DeleteConcurrency";
+    public static final int S3_DELETE_CONCURRENCY_DEFAULT = 4;
+
+    public static final String S3_DIRECTORY_MARKERS = "s3DirectoryMarkers";
+    public static final boolean S3_DIRECTORY_MARKERS_DEFAULT = true;
+
+    public static final String S3_MAX_CONNECTIONS = "s3MaxConnections";
+    public static final int S3_MAX_CONNECTIONS_DEFAULT = 64;
+
+    public static final String S3_CONNECTION_TTL_MILLIS = "s3ConnectionTtlMillis";
+    public static final int S3_CONNECTION_TTL_MILLIS_DEFAULT = 5 * 60 * 1000; // 5 min
+
+    public static final String S3_TCP_KEEP_ALIVE = "s3TcpKeepAlive";
+    public static final boolean S3_TCP_KEEP_ALIVE_DEFAULT = true;
+
+    public static final String S3_SOCKET_SEND_BUFFER_SIZE = "s3SocketSendBufferSize";
+    public static final int S3_SOCKET_SEND_BUFFER_SIZE_DEFAULT = 0; // system default
+
+    public static final String S3_SOCKET_RECEIVE_BUFFER_SIZE = "s3SocketReceiveBufferSize";
+    public static final int S3_SOCKET_RECEIVE_BUFFER_SIZE_DEFAULT = 0; // system default
+
+    public static final String S3_CONNECTION_TIMEOUT_MILLIS = "s3ConnectionTimeoutMillis";
+    public static final int S3_CONNECTION_TIMEOUT_MILLIS_DEFAULT = 10 * 1000; // 10 s
+
+    public static final String S3_SOCKET_TIMEOUT_MILLIS = "s3SocketTimeoutMillis";
+    public static final int S3_SOCKET_TIMEOUT_MILLIS_DEFAULT = 50 * 1000; // 50 s
+
+    public static final String S3_REQUEST_TIMEOUT_MILLIS = "s3RequestTimeoutMillis";
+    public static final int S3_REQUEST_TIMEOUT_MILLIS_DEFAULT = 0; // disabled
+
+    public static final String SFTP_READ_AHEAD_REQUESTS = "sftpReadAheadRequests";
+    public static final int SFTP_READ_AHEAD_REQUESTS_DEFAULT = 16;
+
+    public static final String SFTP_READ_SIZE = "sftpReadSize";
+    public static final int SFTP_READ_SIZE_DEFAULT = 32 * 1024; // 32 KB
+
+    public static final String SFTP_MAX_UNCONFIRMED_WRITES = "sftpMaxUnconfirmedWrites";
+    public static final int SFTP_MAX_UNCONFIRMED_WRITES_DEFAULT = 16;
+
+    public static final String SFTP_WRITE_SIZE = "sftpWriteSize";
+    public static final int SFTP_WRITE_SIZE_DEFAULT = 32 * 1024; // 32 KB
+
+    public static final String SFTP_MAX_PENDING_DELETES = "sftpMaxPendingDeletes";
+    public static final int SFTP_MAX_PENDING_DELETES_DEFAULT = 64;
+
+    public static final String SFTP_MAX_CHANNELS = "sftpMaxChannels";
+    public static final int SFTP_MAX_CHANNELS_DEFAULT = 4;
+
+    public static final String SFTP_DOWNLOAD_CHANNELS = "sftpDownloadChannels";
+    public static final int SFTP_DOWNLOAD_CHANNELS_DEFAULT = 1;
+
+    public static final String SFTP_DOWNLOAD_RANGE_SIZE = "sftpDownloadRangeSize";
+    public static final int SFTP_DOWNLOAD_RANGE_SIZE_DEFAULT = 8 * 1024 * 1024; // 8 MB
+
+    public static final String LISTING_CACHE_TTL_MILLIS = "listingCacheTtlMillis";
+    public static final int LISTING_CACHE_TTL_MILLIS_DEFAULT = 0; // disabled
+
+    public static final String LISTING_CACHE_MAX_ENTRIES = "listingCacheMaxEntries";
+    public static final int LISTING_CACHE_MAX_ENTRIES_DEFAULT = 1000;
+
 
     private final Map<String, Object> options = new HashMap<>();
 
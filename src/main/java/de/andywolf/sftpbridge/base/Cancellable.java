@@ -0,0 +1,17 @@
+package de.andywolf.sftpbridge.base;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+
+/**
+ * An output stream of a {@link File} whose content can be discarded instead of being stored, e.g. an upload that is
+ * aborted rather than completed with the part written so far.
+ * <p/>
+ * All methods in this interface may throw a {@link RuntimeIOException} if an error occurs.
+ */
+public interface Cancellable {
+
+    /**
+     * Ends the stream without storing what has been written. Closing the stream afterwards has no effect.
+     */
+    void cancel();
+}
@@ -0,0 +1,23 @@
+package de.andywolf.sftpbridge.base;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * An {@link Iterator} over remote resources that holds a remote handle or request while it is open. It must be
+ * closed when it is not read to its end.
+ * <p/>
+ * All methods in this interface may throw a {@link RuntimeIOException} if an error occurs.
+ *
+ * @param <T> the type of the elements.
+ */
+public interface CloseableIterator<T> extends Iterator<T>, Closeable {
+
+    /**
+     * Releases the remote resources of this iterator. Closing an iterator twice has no effect.
+     */
+    @Override
+    void close();
+}
@@ -16,6 +16,13 @@ public interface Connection extends Closeable {
     @Override
     void close();
 
+    /**
+     * Tells whether the connection is open and can still be used, without a request to the remote system.
+     *
+     * @return <code>false</code> if the connection has been closed or has been lost.
+     */
+    boolean isConnected();
+
     /**
      * Creates a reference to a file in a directory on the host.
      *
@@ -32,4 +39,14 @@ public interface Connection extends Closeable {
      * @return a reference to the directory
      */
     Directory getDirectory(String name);
+
+    /**
+     * Returns the cache that answers repeated existence checks and listings of the same directory, see the connection
+     * options <code>listingCacheTtlMillis</code> and <code>listingCacheMaxEntries</code>.
+     *
+     * @return the listing cache of this connection or <code>null</code> if directories are not cached.
+     */
+    default ListingCache getListingCache() {
+        return null;
+    }
 }
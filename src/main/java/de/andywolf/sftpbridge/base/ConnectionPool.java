@@ -0,0 +1,460 @@
+package de.andywolf.sftpbridge.base;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Keeps connections open between uses, so that a warm container reuses them across invocations instead of connecting
+ * and authenticating every time.
+ * <p/>
+ * Connections are pooled by a key that names the remote system and the account, e.g.
+ * <code>sftp://user@host:22</code> or <code>s3://bucket</code>. A borrowed connection is checked with
+ * {@link Connection#isConnected()}; a connection that has been lost while idle is closed and replaced by a new one
+ * transparently. Connections idle for longer than the idle timeout are closed on the next use of the pool, as a
+ * frozen container cannot run a background thread. At most a maximum number of connections per key are open; further
+ * borrowers wait until one is returned.
+ * <p/>
+ * A connection that looks connected may still be half-open, e.g. when the peer dropped it while the container was
+ * frozen. {@link #use(String, ConnectionBuilder, Consumer)} therefore retries an action once on a new connection
+ * if a reused connection turns out to be lost.
+ * <p/>
+ * All methods are thread-safe.
+ */
+@Slf4j
+@ToString(onlyExplicitlyIncluded = true)
+public class ConnectionPool implements Closeable {
+
+    public static final int MAX_CONNECTIONS_PER_KEY_DEFAULT = 2;
+
+    public static final long IDLE_TIMEOUT_MILLIS_DEFAULT = 5 * 60 * 1000; // 5 min
+
+    public static final long BORROW_TIMEOUT_MILLIS_DEFAULT = 30 * 1000; // 30 s
+
+    @ToString.Include
+    private final int maxConnectionsPerKey;
+
+    @ToString.Include
+    private final long idleTimeoutMillis;
+
+    @ToString.Include
+    private final long borrowTimeoutMillis;
+
+    private final Map<String, Pool> pools = new HashMap<>();
+
+    /** The failures thrown by {@link #use(String, ConnectionBuilder, Consumer)}, which an outer call does not retry */
+    private final Set<Throwable> passedThrough = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+    private boolean closed;
+
+    public ConnectionPool() {
+        this(MAX_CONNECTIONS_PER_KEY_DEFAULT, IDLE_TIMEOUT_MILLIS_DEFAULT, BORROW_TIMEOUT_MILLIS_DEFAULT);
+    }
+
+    /**
+     * @param maxConnectionsPerKey the maximum number of open connections per key, borrowed or idle.
+     * @param idleTimeoutMillis    the time after which an idle connection is closed.
+     * @param borrowTimeoutMillis  the time a borrower waits for a connection if all connections of a key are borrowed.
+     */
+    public ConnectionPool(int maxConnectionsPerKey, long idleTimeoutMillis, long borrowTimeoutMillis) {
+        if (maxConnectionsPerKey < 1) {
+            throw new IllegalArgumentException("Maximum connections per key must be at least 1, but was " + maxConnectionsPerKey);
+        }
+        this.maxConnectionsPerKey = maxConnectionsPerKey;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+    }
+
+    /**
+     * Borrows an open connection, which has to be handed back with {@link #release(String, Connection)}.
+     *
+     * @param key     the key of the connection.
+     * @param builder builds a new connection if no idle one is left.
+     * @return a connected connection.
+     * @throws RuntimeIOException if no connection becomes available in time or a new one cannot be connected.
+     */
+    public Connection borrow(String key, ConnectionBuilder builder) {
+        return borrow(key, builder, true).connection;
+    }
+
+    /**
+     * Runs an action on a borrowed connection and hands the connection back afterwards. If the action fails, the
+     * connection is closed, as it is in an unknown state. If a reused connection turns out to be lost, e.g. because
+     * it has been half-open since it was returned, the idle connections of the key are closed as well and the action
+     * is run once more on a new connection. Other failures, e.g. of a missing file, are thrown right away, and so are
+     * failures that have passed an inner call of this method already.
+     *
+     * @param key     the key of the connection.
+     * @param builder builds a new connection if no idle one is left.
+     * @param action  the action, which must not keep the connection.
+     * @throws RuntimeIOException if no connection becomes available in time or a new one cannot be connected.
+     */
+    public void use(String key, ConnectionBuilder builder, Consumer<Connection> action) {
+        Borrowed borrowed = borrow(key, builder, true);
+        Failure failure = run(key, borrowed.connection, action);
+        if (failure != null && borrowed.reused && failure.connectionLost) {
+            log.warn("Lost reused connection {}, retrying on a new connection", borrowed.connection, failure.exception);
+            failure = run(key, borrow(key, builder, false).connection, action);
+        }
+        if (failure != null) {
+            passedThrough.add(failure.exception);
+            throw failure.exception;
+        }
+    }
+
+    /**
+     * Returns a builder whose connections are borrowed from this pool. Closing such a connection hands it back
+     * instead of closing it, so that e.g. the workers of a parallel copy reuse the connections of a warm container.
+     *
+     * @param key     the key of the connections.
+     * @param builder builds a new connection if no idle one is left.
+     * @return the builder.
+     */
+    public ConnectionBuilder pooledBuilder(String key, ConnectionBuilder builder) {
+        return new PooledConnectionBuilder(key, builder);
+    }
+
+    /**
+     * @return the failure of the action, <code>null</code> if it succeeded.
+     */
+    private Failure run(String key, Connection connection, Consumer<Connection> action) {
+        try {
+            action.accept(connection);
+        } catch (RuntimeException e) {
+            boolean connectionLost = !passedThrough.contains(e) && (!connection.isConnected() || hasTransportCause(e));
+            invalidate(key, connection);
+            return new Failure(e, connectionLost);
+        } catch (Error e) {
+            invalidate(key, connection);
+            throw e;
+        }
+        release(key, connection);
+        return null;
+    }
+
+    /**
+     * Tells whether a failure has been caused by the network rather than by the action, e.g. by a reset connection or
+     * a reply that did not come in time.
+     */
+    private static boolean hasTransportCause(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+            if (cause instanceof SocketException || cause instanceof SocketTimeoutException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param reuseIdle whether to reuse an idle connection, otherwise the idle connections of the key are closed.
+     */
+    private Borrowed borrow(String key, ConnectionBuilder builder, boolean reuseIdle) {
+        List<Connection> stale = new ArrayList<>();
+        Connection connection = null;
+        try {
+            synchronized (this) {
+                evictIdle(stale);
+                Pool pool = pools.computeIfAbsent(key, k -> new Pool());
+                if (!reuseIdle) {
+                    for (Idle idle : pool.idle) {
+                        pool.open--;
+                        stale.add(idle.connection);
+                    }
+                    pool.idle.clear();
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis);
+                while (connection == null) {
+                    if (closed) {
+                        throw new IllegalStateException("Connection pool is closed");
+                    }
+                    Idle idle = pool.idle.pollLast();
+                    if (idle != null) {
+                        if (idle.connection.isConnected()) {
+                            connection = idle.connection;
+                        } else {
+                            log.info("Replacing lost connection {}", idle.connection);
+                            pool.open--;
+                            stale.add(idle.connection);
+                        }
+                    } else if (pool.open < maxConnectionsPerKey) {
+                        // reserve the slot, the connection is built outside of the lock
+                        pool.open++;
+                        break;
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            throw new RuntimeIOException("No connection for " + key + " returned within " + borrowTimeoutMillis + " ms");
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for a connection for " + key, e);
+        } finally {
+            closeQuietly(stale);
+        }
+
+        if (connection != null) {
+            log.debug("Reusing connection {}", connection);
+            return new Borrowed(connection, true);
+        }
+
+        log.debug("Opening new pooled connection for {}", key);
+        try {
+            return new Borrowed(builder.build(), false);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                pools.get(key).open--;
+                notifyAll();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Hands a borrowed connection back. A connection that has been lost is closed instead of kept.
+     *
+     * @param key        the key the connection has been borrowed with.
+     * @param connection the connection.
+     */
+    public void release(String key, Connection connection) {
+        boolean connected = connection.isConnected();
+        boolean discard;
+        synchronized (this) {
+            Pool pool = pools.get(key);
+            if (pool == null) {
+                throw new IllegalArgumentException("No connection has been borrowed for " + key);
+            }
+            discard = !connected || closed;
+            if (discard) {
+                pool.open--;
+            } else {
+                pool.idle.addLast(new Idle(connection, System.nanoTime()));
+            }
+            notifyAll();
+        }
+        if (discard) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Closes a borrowed connection that must not be reused, e.g. after it failed in an unknown state.
+     *
+     * @param key        the key the connection has been borrowed with.
+     * @param connection the connection.
+     */
+    public void invalidate(String key, Connection connection) {
+        synchronized (this) {
+            Pool pool = pools.get(key);
+            if (pool != null) {
+                pool.open--;
+            }
+            notifyAll();
+        }
+        closeQuietly(connection);
+    }
+
+    /**
+     * @param key the key of the connections.
+     * @return the number of open connections of a key, borrowed or idle.
+     */
+    public synchronized int getOpenConnections(String key) {
+        Pool pool = pools.get(key);
+        return pool == null ? 0 : pool.open;
+    }
+
+    /**
+     * Closes all idle connections. Borrowed connections are closed when they are released.
+     */
+    @Override
+    public void close() {
+        List<Connection> idle = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Pool pool : pools.values()) {
+                for (Idle each : pool.idle) {
+                    idle.add(each.connection);
+                    pool.open--;
+                }
+                pool.idle.clear();
+            }
+            notifyAll();
+        }
+        closeQuietly(idle);
+    }
+
+    /**
+     * Removes the connections idle for longer than the idle timeout, which the caller closes outside of the lock.
+     */
+    private void evictIdle(List<Connection> evicted) {
+        long now = System.nanoTime();
+        for (Pool pool : pools.values()) {
+            Iterator<Idle> idle = pool.idle.iterator();
+            while (idle.hasNext()) {
+                Idle each = idle.next();
+                if (now - each.since > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                    log.debug("Closing connection {} idle for more than {} ms", each.connection, idleTimeoutMillis);
+                    idle.remove();
+                    pool.open--;
+                    evicted.add(each.connection);
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(List<Connection> connections) {
+        for (Connection connection : connections) {
+            closeQuietly(connection);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (RuntimeException e) {
+            log.warn("Exception while closing pooled connection {}", connection, e);
+        }
+    }
+
+    /**
+     * The connections of a key. The idle connections are reused last in, first out, so that rarely needed ones expire.
+     */
+    private static final class Pool {
+        private final Deque<Idle> idle = new ArrayDeque<>();
+        private int open;
+    }
+
+    private static final class Failure {
+        private final RuntimeException exception;
+        private final boolean connectionLost;
+
+        private Failure(RuntimeException exception, boolean connectionLost) {
+            this.exception = exception;
+            this.connectionLost = connectionLost;
+        }
+    }
+
+    private static final class Borrowed {
+        private final Connection connection;
+        private final boolean reused;
+
+        private Borrowed(Connection connection, boolean reused) {
+            this.connection = connection;
+            this.reused = reused;
+        }
+    }
+
+    /**
+     * Builds connections by borrowing them from the pool.
+     */
+    @ToString(onlyExplicitlyIncluded = true)
+    private final class PooledConnectionBuilder implements ConnectionBuilder {
+        @ToString.Include
+        private final String key;
+        private final ConnectionBuilder builder;
+
+        private PooledConnectionBuilder(String key, ConnectionBuilder builder) {
+            this.key = key;
+            this.builder = builder;
+        }
+
+        @Override
+        public Connection build() {
+            return new PooledConnection(key, borrow(key, builder));
+        }
+
+        @Override
+        public ConnectionBuilder withOption(String key, String value) {
+            builder.withOption(key, value);
+            return this;
+        }
+
+        @Override
+        public ConnectionBuilder withOption(String key, int value) {
+            builder.withOption(key, value);
+            return this;
+        }
+    }
+
+    /**
+     * A borrowed connection that is handed back to the pool when it is closed.
+     */
+    @ToString(onlyExplicitlyIncluded = true)
+    private final class PooledConnection implements Connection {
+        private final String key;
+
+        @ToString.Include
+        private final Connection connection;
+
+        private boolean released;
+
+        private PooledConnection(String key, Connection connection) {
+            this.key = key;
+            this.connection = connection;
+        }
+
+        @Override
+        public void connect() {
+            connection.connect();
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                release(key, connection);
+            }
+        }
+
+        @Override
+        public boolean isConnected() {
+            return connection.isConnected();
+        }
+
+        @Override
+        public File getFile(Directory parent, String child) {
+            return connection.getFile(parent, child);
+        }
+
+        @Override
+        public Directory getDirectory(String name) {
+            return connection.getDirectory(name);
+        }
+
+        @Override
+        public ListingCache getListingCache() {
+            return connection.getListingCache();
+        }
+    }
+
+    private static final class Idle {
+        private final Connection connection;
+        private final long since;
+
+        private Idle(Connection connection, long since) {
+            this.connection = connection;
+            this.since = since;
+        }
+    }
+}
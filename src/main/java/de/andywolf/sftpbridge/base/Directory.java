@@ -1,9 +1,11 @@
 package de.andywolf.sftpbridge.base;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.util.Utils;
 
 import java.io.IOException;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * An abstract representation of a remote directory that can be access through a {@link Connection}.
@@ -45,6 +47,20 @@ public interface Directory {
      */
     File getFile(String name);
 
+    /**
+     * Returns a reference to a named file of this directory that already knows its metadata, e.g. from an earlier
+     * listing, so that {@link File#getMetadata()} does not fetch it again.
+     * <p/>
+     * This implementation returns {@link #getFile(String)} and drops the metadata.
+     *
+     * @param name     the name of the file relative to this directory. May not contain path separators.
+     * @param metadata the known metadata of the file, <code>null</code> if unknown.
+     * @return the file within this directory.
+     */
+    default File getFile(String name, FileMetadata metadata) {
+        return getFile(name);
+    }
+
     /**
      * Returns a reference to a directory of this directory. The child directory returned may or may not exist.
      *
@@ -85,9 +101,120 @@ public interface Directory {
      */
     List<Directory> listSubDirectories();
 
+    /**
+     * Iterates over the files in this directory. The files are fetched from the remote system while iterating, so the
+     * first files are available before the whole directory has been listed.
+     *
+     * @return the files in this directory, in an unspecified order. Must be closed if not read to its end.
+     */
+    CloseableIterator<File> iterateFiles();
+
+    /**
+     * Iterates over the sub-directories in this directory. The sub-directories are fetched from the remote system
+     * while iterating.
+     *
+     * @return the sub-directories in this directory, in an unspecified order. Must be closed if not read to its end.
+     */
+    CloseableIterator<Directory> iterateSubDirectories();
+
+    /**
+     * Iterates over the files and sub-directories in this directory with a single listing. Files carry the metadata
+     * of the listing, see {@link File#getMetadata()}.
+     *
+     * @return the entries of this directory, in an unspecified order. Must be closed if not read to its end.
+     */
+    CloseableIterator<DirectoryEntry> iterateEntries();
+
+    /**
+     * Iterates over the files and sub-directories in this directory whose names start with a prefix. Remote systems
+     * that can list by prefix leave out the other entries.
+     * <p/>
+     * This implementation filters the entries of {@link #iterateEntries()}.
+     *
+     * @param namePrefix the beginning of the names to list, empty to list all entries.
+     * @return the matching entries of this directory, in an unspecified order. Must be closed if not read to its end.
+     */
+    default CloseableIterator<DirectoryEntry> iterateEntries(String namePrefix) {
+        CloseableIterator<DirectoryEntry> entries = iterateEntries();
+        if (namePrefix.isEmpty()) {
+            return entries;
+        }
+        return new CloseableIterator<DirectoryEntry>() {
+            private DirectoryEntry next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && entries.hasNext()) {
+                    DirectoryEntry entry = entries.next();
+                    if (entry.getName().startsWith(namePrefix)) {
+                        next = entry;
+                    }
+                }
+                return next != null;
+            }
+
+            @Override
+            public DirectoryEntry next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                DirectoryEntry entry = next;
+                next = null;
+                return entry;
+            }
+
+            @Override
+            public void close() {
+                entries.close();
+            }
+        };
+    }
+
+    /**
+     * Lists the whole tree below this directory ahead of a recursive operation, if the remote system can do so with
+     * fewer requests than by listing each directory on its own. The returned directory and its sub-directories answer
+     * their listings from this snapshot, so changes made afterwards are not visible through them.
+     * <p/>
+     * This implementation returns this directory unchanged.
+     *
+     * @return a directory with the same path that lists from the snapshot, or this directory.
+     */
+    default Directory listTree() {
+        return this;
+    }
+
+    /**
+     * Lists the tree below this directory like {@link #listTree()}, but the snapshot may leave out every file whose
+     * path relative to this directory does not start with a prefix.
+     * <p/>
+     * This implementation returns {@link #listTree()}.
+     *
+     * @param pathPrefix the beginning of the relative paths to list, empty to list the whole tree.
+     * @return a directory with the same path that lists from the snapshot, or this directory.
+     */
+    default Directory listTree(String pathPrefix) {
+        return listTree();
+    }
+
     /**
      * Creates this directory. If the parent directory does not exists, a {@link RuntimeIOException} is thrown.
      */
     void mkdir();
 
+    /**
+     * Creates this directory and all missing parent directories. An existing directory is left as it is.
+     * <p/>
+     * This implementation checks each directory from the top with {@link #exists()} and creates the missing ones with
+     * {@link #mkdir()}.
+     */
+    default void mkdirs() {
+        List<String> pathComponents = Utils.splitPath(getFullDirectoryPath());
+        for (int i = 1; i <= pathComponents.size(); i++) {
+            Directory directory = getConnection().getDirectory(Utils.joinPath(pathComponents.subList(0, i)));
+            if (!directory.exists()) {
+                directory.mkdir();
+            }
+        }
+    }
+
 }
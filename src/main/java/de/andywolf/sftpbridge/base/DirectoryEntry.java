@@ -0,0 +1,48 @@
+package de.andywolf.sftpbridge.base;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * An entry of a directory listing: either a {@link File} or a sub-{@link Directory}.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public final class DirectoryEntry {
+
+    /**
+     * The file, <code>null</code> if this entry is a sub-directory.
+     */
+    private final File file;
+
+    /**
+     * The sub-directory, <code>null</code> if this entry is a file.
+     */
+    private final Directory directory;
+
+    private DirectoryEntry(File file, Directory directory) {
+        this.file = file;
+        this.directory = directory;
+    }
+
+    public static DirectoryEntry of(File file) {
+        return new DirectoryEntry(file, null);
+    }
+
+    public static DirectoryEntry of(Directory directory) {
+        return new DirectoryEntry(null, directory);
+    }
+
+    /**
+     * @return the name of the file or sub-directory.
+     */
+    public String getName() {
+        return directory != null ? directory.getDirectoryName() : file.getFileName();
+    }
+
+    public boolean isDirectory() {
+        return directory != null;
+    }
+}
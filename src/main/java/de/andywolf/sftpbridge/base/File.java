@@ -2,6 +2,7 @@ package de.andywolf.sftpbridge.base;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -36,9 +37,16 @@ public interface File {
      */
     String getFileName();
 
+    /**
+     * Return the directory that contains this file.
+     *
+     * @return the parent directory of this file.
+     */
+    Directory getDirectory();
 
     /**
-     * Tests whether the file represented by this object exists.
+     * Tests whether the file represented by this object exists. A file carrying metadata, see {@link #getMetadata()},
+     * is known to exist and is not checked again; use {@link #refreshMetadata()} to check it on the remote system.
      *
      * @return <code>true</code> if and only if this file exists.
      * @throws RuntimeIOException if an I/O error occured
@@ -46,23 +54,89 @@ public interface File {
     boolean exists();
 
     /**
-     * Returns an input stream to read from this file. The complete contents of this input stream
-     * must be read before another operation on this file or its corresponding {@link Connection}
-     * is performed.
+     * Returns the metadata of this file. Files returned by {@link Directory#listFiles()} or
+     * {@link Directory#iterateFiles()} carry the metadata of the listing and return it without another request; other
+     * files fetch it from the remote system once and keep it. Writing or deleting the file drops the kept metadata.
+     *
+     * @return the metadata of this file or <code>null</code> if this file does not exist.
+     * @throws RuntimeIOException if an I/O error occured
+     */
+    FileMetadata getMetadata();
+
+    /**
+     * Fetches the metadata of this file from the remote system and keeps it in place of the metadata carried so far.
+     *
+     * @return the current metadata of this file or <code>null</code> if this file does not exist.
+     * @throws RuntimeIOException if an I/O error occured
+     */
+    FileMetadata refreshMetadata();
+
+    /**
+     * Returns an input stream to read from this file. Other streams, listings and single operations on the same
+     * {@link Connection} may run while the stream is open, also from other threads: the connection serves each open
+     * stream and listing on a channel of its own where the remote system allows, and otherwise interleaves their
+     * requests. The stream itself must be used by one thread at a time and has to be closed, which releases its
+     * channel.
      *
      * @return an input stream connected to this file.
      */
     InputStream getInputStream();
 
     /**
-     * Returns an output stream to write to this file. The complete contents of this output stream
-     * must be written before another operation on this file or its corresponding {@link Connection}
-     * is performed.
+     * Returns an input stream to read from this file, starting at the given offset. This implementation skips the
+     * bytes before the offset, implementations should seek to the offset if the remote system supports it.
+     *
+     * @param offset the number of bytes to skip.
+     * @return an input stream connected to this file.
+     */
+    default InputStream getInputStream(long offset) {
+        InputStream is = getInputStream();
+        try {
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = is.skip(offset - skipped);
+                if (n <= 0) {
+                    if (is.read() == -1) {
+                        throw new EOFException("File ends before offset " + offset);
+                    }
+                    n = 1;
+                }
+                skipped += n;
+            }
+            return is;
+        } catch (IOException e) {
+            try {
+                is.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw new RuntimeIOException("Cannot read from file " + this + " at offset " + offset, e);
+        }
+    }
+
+    /**
+     * Returns an output stream to write to this file. As with {@link #getInputStream()}, other streams, listings and
+     * single operations on the same {@link Connection} may run while the stream is open. The stream itself must be
+     * used by one thread at a time, and the file must not be read or written by another stream before this one has
+     * been closed, which completes the file and releases the channel.
      *
      * @return an output stream connected to this file.
      */
     OutputStream getOutputStream();
 
+    /**
+     * Returns an output stream to write a copy of another file to this file. Where the remote system can, the
+     * modification time of the source is recorded with this file once the stream is closed, so that a later copy
+     * recognizes an unchanged file by {@link FileMetadata#getSourceLastModified()} without comparing the clocks of two
+     * systems.
+     *
+     * @param source the metadata of the file copied from, <code>null</code> if unknown.
+     * @return an output stream connected to this file.
+     */
+    default OutputStream getOutputStream(FileMetadata source) {
+        return getOutputStream();
+    }
+
     /**
      * Deletes this file. If this file is a directory and it is not empty,
      * a {@link RuntimeIOException} is thrown.
@@ -0,0 +1,58 @@
+package de.andywolf.sftpbridge.base;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The metadata of a remote {@link File}, as far as the remote system provides it.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class FileMetadata {
+
+    public static final int PERMISSIONS_UNKNOWN = -1;
+
+    /**
+     * The size of the file in bytes.
+     */
+    private final long size;
+
+    /**
+     * The time of the last modification in milliseconds since the epoch, <code>0</code> if unknown.
+     */
+    private final long lastModified;
+
+    /**
+     * The entity tag of the file's content, <code>null</code> if the remote system does not provide one.
+     */
+    private final String eTag;
+
+    /**
+     * The POSIX permission bits of the file, {@link #PERMISSIONS_UNKNOWN} if the remote system does not provide them.
+     */
+    private final int permissions;
+
+    /**
+     * The time of the last modification of the file this file has been copied from, in milliseconds since the epoch,
+     * as recorded by the copy with {@link File#getOutputStream(FileMetadata)}; <code>0</code> if unknown.
+     */
+    private final long sourceLastModified;
+
+    public FileMetadata(long size, long lastModified, String eTag) {
+        this(size, lastModified, eTag, PERMISSIONS_UNKNOWN);
+    }
+
+    public FileMetadata(long size, long lastModified, String eTag, int permissions) {
+        this(size, lastModified, eTag, permissions, 0);
+    }
+
+    public FileMetadata(long size, long lastModified, String eTag, int permissions, long sourceLastModified) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.eTag = eTag;
+        this.permissions = permissions;
+        this.sourceLastModified = sourceLastModified;
+    }
+}
@@ -0,0 +1,264 @@
+package de.andywolf.sftpbridge.base;
+
+import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.util.Utils;
+import lombok.ToString;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the listings and the existence of the directories of a {@link Connection} for a limited time, so that
+ * repeated checks and listings of the same directory are answered without another request.
+ * <p/>
+ * Directories are identified by their absolute path with a leading slash and without a trailing one, the root being
+ * <code>/</code>. At most a maximum number of directories are remembered; the least recently used one is forgotten
+ * first. The connection drops what it changes itself, changes made by others become visible once their entries expire.
+ * <p/>
+ * All methods are thread-safe.
+ */
+@ToString(onlyExplicitlyIncluded = true)
+public class ListingCache {
+
+    @ToString.Include
+    private final long ttlMillis;
+
+    @ToString.Include
+    private final int maxEntries;
+
+    private final Map<String, Entry> entries;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param ttlMillis  the time in milliseconds after which a listing or existence is fetched again.
+     * @param maxEntries the maximum number of directories remembered.
+     */
+    public ListingCache(long ttlMillis, int maxEntries) {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive, but was " + ttlMillis);
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Maximum number of entries must be at least 1, but was " + maxEntries);
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ListingCache.Entry> eldest) {
+                return size() > ListingCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Creates the cache configured by the options {@link ConnectionOptions#LISTING_CACHE_TTL_MILLIS} and
+     * {@link ConnectionOptions#LISTING_CACHE_MAX_ENTRIES}.
+     *
+     * @param options the options of a connection.
+     * @return the cache or <code>null</code> if the options do not enable caching.
+     */
+    public static ListingCache fromOptions(ConnectionOptions options) {
+        int ttlMillis = options.getInteger(ConnectionOptions.LISTING_CACHE_TTL_MILLIS, ConnectionOptions.LISTING_CACHE_TTL_MILLIS_DEFAULT);
+        if (ttlMillis <= 0) {
+            return null;
+        }
+        int maxEntries = options.getInteger(ConnectionOptions.LISTING_CACHE_MAX_ENTRIES, ConnectionOptions.LISTING_CACHE_MAX_ENTRIES_DEFAULT);
+        return new ListingCache(ttlMillis, maxEntries);
+    }
+
+    /**
+     * @param path the path of the directory.
+     * @return the remembered entries of the directory or <code>null</code> if the directory has to be listed.
+     */
+    public List<DirectoryEntry> getListing(String path) {
+        List<DirectoryEntry> listing;
+        synchronized (this) {
+            Entry entry = liveEntry(path);
+            listing = entry == null ? null : entry.listing;
+        }
+        return count(listing);
+    }
+
+    /**
+     * Remembers the complete listing of a directory, which also tells that the directory exists.
+     *
+     * @param path    the path of the directory.
+     * @param listing all entries of the directory.
+     */
+    public synchronized void putListing(String path, List<DirectoryEntry> listing) {
+        Entry entry = new Entry(expiry());
+        entry.listing = listing;
+        entry.exists = Boolean.TRUE;
+        entries.put(path, entry);
+    }
+
+    /**
+     * Tells whether a directory exists, as far as known from its own existence check or listing or from the listing
+     * of its parent directory.
+     *
+     * @param path the path of the directory.
+     * @return whether the directory exists or <code>null</code> if the directory has to be checked.
+     */
+    public Boolean getExistence(String path) {
+        Boolean exists = null;
+        synchronized (this) {
+            Entry entry = liveEntry(path);
+            if (entry != null) {
+                exists = entry.exists;
+            } else if (!path.equals(Utils.PATH_SEPARATOR)) {
+                Entry parent = liveEntry(parentPath(path));
+                if (parent != null && parent.listing != null) {
+                    exists = containsDirectory(parent.listing, path.substring(path.lastIndexOf(Utils.PATH_SEPARATOR_CHAR) + 1));
+                }
+            }
+        }
+        return count(exists);
+    }
+
+    /**
+     * Remembers whether a directory exists.
+     *
+     * @param path   the path of the directory.
+     * @param exists whether the directory exists.
+     */
+    public synchronized void putExistence(String path, boolean exists) {
+        Entry entry = new Entry(expiry());
+        entry.exists = exists;
+        entries.put(path, entry);
+    }
+
+    /**
+     * Forgets the listing of a directory whose files have been written or deleted.
+     *
+     * @param path the path of the directory.
+     */
+    public synchronized void invalidateListing(String path) {
+        Entry entry = entries.get(path);
+        if (entry != null) {
+            entry.listing = null;
+        }
+    }
+
+    /**
+     * Forgets everything about a directory that has been created or deleted, including the listing of its parent.
+     *
+     * @param path the path of the directory.
+     */
+    public synchronized void invalidate(String path) {
+        entries.remove(path);
+        if (!path.equals(Utils.PATH_SEPARATOR)) {
+            invalidateListing(parentPath(path));
+        }
+    }
+
+    /**
+     * Forgets everything about a directory and all directories above it, for stores whose directories exist only
+     * implicitly through the objects below them: writing or deleting an object there may create or remove the
+     * directory and its ancestors, and so change their existence and the listings that contain them.
+     *
+     * @param path the path of the directory the object has been written to or deleted from.
+     */
+    public synchronized void invalidateWithAncestors(String path) {
+        String each = path;
+        entries.remove(each);
+        while (!each.equals(Utils.PATH_SEPARATOR)) {
+            each = parentPath(each);
+            entries.remove(each);
+        }
+    }
+
+    /**
+     * Forgets everything about a directory and all directories below it, including the listing of its parent.
+     *
+     * @param path the path of the directory.
+     */
+    public synchronized void invalidateTree(String path) {
+        String prefix = path.endsWith(Utils.PATH_SEPARATOR) ? path : path + Utils.PATH_SEPARATOR;
+        Iterator<String> paths = entries.keySet().iterator();
+        while (paths.hasNext()) {
+            if (paths.next().startsWith(prefix)) {
+                paths.remove();
+            }
+        }
+        invalidate(path);
+    }
+
+    /**
+     * Forgets everything.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * @return the number of lookups answered from this cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to go to the remote system.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private Entry liveEntry(String path) {
+        Entry entry = entries.get(path);
+        if (entry != null && entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(path);
+            return null;
+        }
+        return entry;
+    }
+
+    private long expiry() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    private <T> T count(T cached) {
+        if (cached == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return cached;
+    }
+
+    private static String parentPath(String path) {
+        int separator = path.lastIndexOf(Utils.PATH_SEPARATOR_CHAR);
+        return separator <= 0 ? Utils.PATH_SEPARATOR : path.substring(0, separator);
+    }
+
+    private static boolean containsDirectory(List<DirectoryEntry> listing, String name) {
+        for (DirectoryEntry entry : listing) {
+            if (entry.isDirectory() && entry.getDirectory().getDirectoryName().equals(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * What is known about a directory. The listing may be dropped while the existence is still known.
+     */
+    private static final class Entry {
+        private final long expiresAt;
+        private List<DirectoryEntry> listing;
+        private Boolean exists;
+
+        private Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package de.andywolf.sftpbridge.base;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+
+import java.io.OutputStream;
+import java.util.function.Consumer;
+
+/**
+ * A {@link File} that is written in parts, so that an interrupted upload can be continued later on instead of being
+ * started over.
+ * <p/>
+ * All methods in this interface may throw a {@link RuntimeIOException} if an error occurs.
+ */
+public interface ResumableFile extends File {
+
+    /**
+     * Returns an output stream to write to this file that reports its progress. The content written to the stream is
+     * appended to the parts of the given upload, if any.
+     *
+     * @param source           the metadata of the file copied from, recorded like {@link #getOutputStream(FileMetadata)}
+     *                         does; <code>null</code> if unknown.
+     * @param resumeFrom       the state of an interrupted upload to continue, <code>null</code> to start a new one.
+     *                         The caller continues writing at {@link UploadState#getLength()}.
+     * @param progressListener told about the state of the upload whenever another part has been acknowledged. May be
+     *                         invoked from other threads.
+     * @return an output stream connected to this file.
+     */
+    OutputStream getOutputStream(FileMetadata source, UploadState resumeFrom, Consumer<UploadState> progressListener);
+}
@@ -0,0 +1,104 @@
+package de.andywolf.sftpbridge.base;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The state of an upload that is stored in parts, e.g. an S3 multipart upload. The parts are the ones acknowledged by
+ * the remote system, numbered from 1 without gaps.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class UploadState {
+
+    /**
+     * The id of the upload on the remote system.
+     */
+    private final String uploadId;
+
+    /**
+     * The acknowledged parts in part number order.
+     */
+    private final List<Part> parts;
+
+    /**
+     * The size of the file uploaded from, <code>-1</code> if unknown.
+     */
+    private final long sourceSize;
+
+    /**
+     * The time of the last modification of the file uploaded from in milliseconds since the epoch, <code>0</code> if
+     * unknown.
+     */
+    private final long sourceLastModified;
+
+    public UploadState(String uploadId, List<Part> parts) {
+        this(uploadId, parts, -1, 0);
+    }
+
+    public UploadState(String uploadId, List<Part> parts, long sourceSize, long sourceLastModified) {
+        this.uploadId = uploadId;
+        this.parts = Collections.unmodifiableList(new ArrayList<>(parts));
+        this.sourceSize = sourceSize;
+        this.sourceLastModified = sourceLastModified;
+    }
+
+    /**
+     * @param source the metadata of the file uploaded from, may be <code>null</code>.
+     * @return this upload with the size and modification time of the file uploaded from.
+     */
+    public UploadState withSource(FileMetadata source) {
+        if (source == null) {
+            return new UploadState(uploadId, parts);
+        }
+        return new UploadState(uploadId, parts, source.getSize(), source.getLastModified());
+    }
+
+    /**
+     * Tells whether this upload can be continued with the content of a file: its parts have been read from the file
+     * with the same size and modification time. An upload without a known source is never continued.
+     *
+     * @param source the metadata of the file to continue uploading from, may be <code>null</code>.
+     * @return <code>true</code> if the upload has been started from the file as it is now.
+     */
+    public boolean isFrom(FileMetadata source) {
+        return source != null && sourceLastModified > 0 && source.getLastModified() == sourceLastModified
+                && source.getSize() == sourceSize;
+    }
+
+    /**
+     * @return the number of bytes stored by the acknowledged parts, i.e. the offset to continue the upload at.
+     */
+    public long getLength() {
+        long length = 0;
+        for (Part part : parts) {
+            length += part.getSize();
+        }
+        return length;
+    }
+
+    /**
+     * An acknowledged part of an upload.
+     */
+    @Getter
+    @ToString
+    @EqualsAndHashCode
+    public static class Part {
+
+        private final int partNumber;
+        private final String eTag;
+        private final long size;
+
+        public Part(int partNumber, String eTag, long size) {
+            this.partNumber = partNumber;
+            this.eTag = eTag;
+            this.size = size;
+        }
+    }
+}
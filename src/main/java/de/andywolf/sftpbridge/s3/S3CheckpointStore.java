@@ -0,0 +1,75 @@
+package de.andywolf.sftpbridge.s3;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.util.Checkpoint;
+import de.andywolf.sftpbridge.util.CheckpointStore;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stores the checkpoint as an object in the bucket of an {@link S3Connection}, usually the target bucket of the copy.
+ */
+@Slf4j
+@ToString(of = "key")
+public class S3CheckpointStore implements CheckpointStore {
+
+    private static final int HTTP_STATUS_NOT_FOUND = 404;
+
+    private final S3Connection connection;
+    private final String key;
+
+    /**
+     * @param connection the connection to the bucket.
+     * @param key        the key of the checkpoint object.
+     */
+    public S3CheckpointStore(S3Connection connection, String key) {
+        this.connection = connection;
+        this.key = key;
+    }
+
+    @Override
+    public Checkpoint load() {
+        try (com.amazonaws.services.s3.model.S3Object s3Object = connection.getS3Client().getObject(connection.getBucket(), key);
+             InputStream in = s3Object.getObjectContent()) {
+            return Checkpoint.load(in);
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != HTTP_STATUS_NOT_FOUND) {
+                throw new RuntimeIOException("Cannot load checkpoint " + key, e);
+            }
+            log.debug("No checkpoint stored in {}", key);
+            return new Checkpoint();
+        } catch (IOException | SdkClientException e) {
+            throw new RuntimeIOException("Cannot load checkpoint " + key, e);
+        }
+    }
+
+    @Override
+    public void save(Checkpoint checkpoint) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            checkpoint.store(out);
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(out.size());
+            connection.getS3Client().putObject(connection.getBucket(), key, new ByteArrayInputStream(out.toByteArray()), metadata);
+        } catch (IOException | SdkClientException e) {
+            throw new RuntimeIOException("Cannot save checkpoint " + key, e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            connection.getS3Client().deleteObject(connection.getBucket(), key);
+        } catch (SdkClientException e) {
+            throw new RuntimeIOException("Cannot delete checkpoint " + key, e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package de.andywolf.sftpbridge.s3;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import de.andywolf.sftpbridge.ConnectionOptions;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static de.andywolf.sftpbridge.ConnectionOptions.*;
+
+/**
+ * Shares the S3 clients of all {@link S3Connection}s of the process, so that the HTTP connection pool, the TLS sessions
+ * and the resolved credentials of a client outlive a single connection, e.g. across the invocations of a warm
+ * container.
+ * <p/>
+ * A client is shared by the connections with the same endpoint, signing region and client settings. The clients are
+ * never shut down by a connection; they live as long as the process unless {@link #shutdown()} is called. All methods
+ * are thread-safe.
+ */
+@Slf4j
+final class S3ClientCache {
+
+    private static final Map<ClientKey, AmazonS3> clients = new ConcurrentHashMap<>();
+
+    private S3ClientCache() {
+    }
+
+    /**
+     * Returns the shared client for the endpoint, the signing region and the client settings of a connection, building
+     * it on first use.
+     *
+     * @param options the options of the connection.
+     * @return the client.
+     */
+    static AmazonS3 getClient(ConnectionOptions options) {
+        return clients.computeIfAbsent(ClientKey.fromOptions(options), S3ClientCache::newClient);
+    }
+
+    /**
+     * Shuts down and forgets all clients.
+     */
+    static void shutdown() {
+        for (ClientKey key : clients.keySet()) {
+            AmazonS3 client = clients.remove(key);
+            if (client != null) {
+                client.shutdown();
+            }
+        }
+    }
+
+    private static AmazonS3 newClient(ClientKey key) {
+        log.debug("Building S3 client for {}", key);
+        ClientConfiguration configuration = new ClientConfiguration()
+                .withMaxConnections(key.maxConnections)
+                .withConnectionTTL(key.connectionTtlMillis)
+                .withTcpKeepAlive(key.tcpKeepAlive)
+                .withConnectionTimeout(key.connectionTimeoutMillis)
+                .withSocketTimeout(key.socketTimeoutMillis)
+                .withRequestTimeout(key.requestTimeoutMillis);
+        configuration.setSocketBufferSizeHints(key.socketSendBufferSize, key.socketReceiveBufferSize);
+
+        return AmazonS3ClientBuilder.standard()
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(key.endpointUrl, key.signingRegion))
+                .withPathStyleAccessEnabled(true)
+                .withClientConfiguration(configuration)
+                .build();
+    }
+
+    /**
+     * Everything a client is built from.
+     */
+    @Value
+    static class ClientKey {
+        String endpointUrl;
+        String signingRegion;
+        int maxConnections;
+        int connectionTtlMillis;
+        boolean tcpKeepAlive;
+        int socketSendBufferSize;
+        int socketReceiveBufferSize;
+        int connectionTimeoutMillis;
+        int socketTimeoutMillis;
+        int requestTimeoutMillis;
+
+        static ClientKey fromOptions(ConnectionOptions options) {
+            return new ClientKey(
+                    options.get(ENDPOINT_URL, ENDPOINT_URL_DEFAULT),
+                    options.get(SIGNING_REGION, SIGNING_REGION_DEFAULT),
+                    options.getInteger(S3_MAX_CONNECTIONS, S3_MAX_CONNECTIONS_DEFAULT),
+                    options.getInteger(S3_CONNECTION_TTL_MILLIS, S3_CONNECTION_TTL_MILLIS_DEFAULT),
+                    options.getBoolean(S3_TCP_KEEP_ALIVE, S3_TCP_KEEP_ALIVE_DEFAULT),
+                    options.getInteger(S3_SOCKET_SEND_BUFFER_SIZE, S3_SOCKET_SEND_BUFFER_SIZE_DEFAULT),
+                    options.getInteger(S3_SOCKET_RECEIVE_BUFFER_SIZE, S3_SOCKET_RECEIVE_BUFFER_SIZE_DEFAULT),
+                    options.getInteger(S3_CONNECTION_TIMEOUT_MILLIS, S3_CONNECTION_TIMEOUT_MILLIS_DEFAULT),
+                    options.getInteger(S3_SOCKET_TIMEOUT_MILLIS, S3_SOCKET_TIMEOUT_MILLIS_DEFAULT),
+                    options.getInteger(S3_REQUEST_TIMEOUT_MILLIS, S3_REQUEST_TIMEOUT_MILLIS_DEFAULT));
+        }
+    }
+}
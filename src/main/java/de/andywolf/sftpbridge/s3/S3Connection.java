@@ -1,13 +1,12 @@
 package de.andywolf.sftpbridge.s3;
 
-import com.amazonaws.client.builder.AwsClientBuilder;
 import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import de.andywolf.sftpbridge.ConnectionOptions;
 import de.andywolf.sftpbridge.RuntimeIOException;
 import de.andywolf.sftpbridge.base.Connection;
 import de.andywolf.sftpbridge.base.Directory;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.ListingCache;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
@@ -27,15 +26,46 @@ public class S3Connection implements Connection {
     @NonNull
     private final ConnectionOptions options;
 
-    @Getter
     private AmazonS3 s3Client;
+
+    /** The cache of directory listings, null if disabled */
+    @Getter
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final ListingCache listingCache;
     private volatile boolean isConnected;
 
+    /** Whether the connection is opened by its first operation, until it is opened or closed */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private volatile boolean connectPending;
+
 
     // Constructor
 
     public S3Connection(ConnectionOptions options) {
         this.options = options;
+        this.listingCache = ListingCache.fromOptions(options);
+        this.connectPending = options.getBoolean(LAZY_CONNECT, LAZY_CONNECT_DEFAULT);
+    }
+
+    /**
+     * @return the S3 client, shared with other connections to the same endpoint.
+     */
+    public AmazonS3 getS3Client() {
+        if (connectPending) {
+            synchronized (this) {
+                if (connectPending) {
+                    log.debug("Connecting lazily to {}", this);
+                    connect();
+                }
+            }
+        }
+        AmazonS3 client = s3Client;
+        if (client == null) {
+            throw new IllegalStateException("Cannot use S3 client, " + this + " is not connected");
+        }
+        return client;
     }
 
     public String getBucket() {
@@ -46,25 +76,49 @@ public class S3Connection implements Connection {
         return options.getInteger(REMOTE_COPY_BUFFER_SIZE, REMOTE_COPY_BUFFER_SIZE_DEFAULT);
     }
 
+    public int getMaxPartsInFlight() {
+        return options.getInteger(S3_MAX_PARTS_IN_FLIGHT, S3_MAX_PARTS_IN_FLIGHT_DEFAULT);
+    }
+
+    public int getRangedGetConcurrency() {
+        return options.getInteger(S3_RANGED_GET_CONCURRENCY, S3_RANGED_GET_CONCURRENCY_DEFAULT);
+    }
+
+    public int getRangedGetPartSize() {
+        return options.getInteger(S3_RANGED_GET_PART_SIZE, S3_RANGED_GET_PART_SIZE_DEFAULT);
+    }
+
+    public int getDeleteConcurrency() {
+        return Math.max(1, options.getInteger(S3_DELETE_CONCURRENCY, S3_DELETE_CONCURRENCY_DEFAULT));
+    }
+
+    /**
+     * @return whether directories are created as zero-byte marker objects. Without markers, a directory exists as soon
+     * as an object below it exists, so creating one costs no request.
+     */
+    public boolean isDirectoryMarkers() {
+        return options.getBoolean(S3_DIRECTORY_MARKERS, S3_DIRECTORY_MARKERS_DEFAULT);
+    }
+
     @Override
     public void connect() {
         try {
-            String endpointURL = options.get(ENDPOINT_URL, ENDPOINT_URL_DEFAULT);
-            String signingRegion = options.get(SIGNING_REGION, SIGNING_REGION_DEFAULT);
-            final AwsClientBuilder.EndpointConfiguration endpoint = new AwsClientBuilder.EndpointConfiguration(endpointURL, signingRegion);
-
-            log.debug("Connecting to S3 endpoint " + endpoint);
-            s3Client = AmazonS3ClientBuilder.standard()
-                .withEndpointConfiguration(endpoint)
-                .withPathStyleAccessEnabled(true)
-                .build();
+            log.debug("Connecting to S3 endpoint {}", options.get(ENDPOINT_URL, ENDPOINT_URL_DEFAULT));
+            s3Client = S3ClientCache.getClient(options);
 
             this.isConnected = true;
+            // only once connected, so that the next operation tries again after a failed lazy connect
+            this.connectPending = false;
         } catch (Exception e) {
             throw new RuntimeIOException("Unexpected exception " + this, e);
         }
     }
 
+    @Override
+    public boolean isConnected() {
+        return isConnected;
+    }
+
     @Override
     public File getFile(Directory parent, String child) {
         if (!(parent instanceof S3ObjectKey)) {
@@ -87,13 +141,17 @@ public class S3Connection implements Connection {
      */
     @Override
     public final void close() {
+        connectPending = false;
         if (!isConnected) {
             return;
         }
 
         try {
-            s3Client.shutdown();
+            // the client is shared with other connections and kept for the next one
             s3Client = null;
+            if (listingCache != null) {
+                listingCache.clear();
+            }
         } finally {
             log.info("Disconnected from {}", this);
             isConnected = false;
@@ -41,10 +41,16 @@ public class S3ConnectionBuilder implements ConnectionBuilder {
         return this;
     }
 
+    /**
+     * Builds a connection, which is connected unless {@link ConnectionOptions#LAZY_CONNECT} defers that to its first
+     * operation.
+     */
     @Override
     public Connection build() {
         S3Connection connection = new S3Connection(options);
-        connection.connect();
+        if (!options.getBoolean(ConnectionOptions.LAZY_CONNECT, ConnectionOptions.LAZY_CONNECT_DEFAULT)) {
+            connection.connect();
+        }
         return connection;
     }
 
@@ -2,9 +2,16 @@ package de.andywolf.sftpbridge.s3;
 
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.Cancellable;
 import de.andywolf.sftpbridge.base.Directory;
-import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ListingCache;
+import de.andywolf.sftpbridge.base.ResumableFile;
+import de.andywolf.sftpbridge.base.UploadState;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
@@ -12,6 +19,9 @@ import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 
 /**
@@ -20,7 +30,16 @@ import java.io.*;
 @Slf4j
 @ToString
 @EqualsAndHashCode
-public class S3Object implements File {
+public class S3Object implements ResumableFile {
+
+    private static final int HTTP_STATUS_NOT_FOUND = 404;
+    private static final int HTTP_STATUS_RANGE_NOT_SATISFIABLE = 416;
+
+    /** The user metadata recording the modification time of the source of a copy, in milliseconds since the epoch */
+    static final String SOURCE_MTIME_METADATA = "source-mtime";
+
+    /** The user metadata recording the size of the source of a copy */
+    static final String SOURCE_SIZE_METADATA = "source-size";
 
     @Getter
     @NonNull
@@ -34,10 +53,25 @@ public class S3Object implements File {
     @NonNull
     protected final String fileName;
 
+    /**
+     * The metadata taken from the listing this object was found in or fetched last, if any
+     */
+    @EqualsAndHashCode.Exclude
+    private volatile FileMetadata metadata;
+
     public S3Object(S3Connection connection, S3ObjectKey objectKey, String fileName) {
+        this(connection, objectKey, fileName, null);
+    }
+
+    S3Object(S3Connection connection, S3ObjectKey objectKey, String fileName, FileMetadata metadata) {
         this.connection = connection;
         this.directory = objectKey;
         this.fileName = fileName;
+        this.metadata = metadata;
+    }
+
+    static FileMetadata toMetadata(S3ObjectSummary summary) {
+        return new FileMetadata(summary.getSize(), summary.getLastModified().getTime(), summary.getETag());
     }
 
     @Override
@@ -51,7 +85,51 @@ public class S3Object implements File {
         log.debug("Opening S3 input stream for {}", this);
 
         final AmazonS3 s3Client = connection.getS3Client();
-        final com.amazonaws.services.s3.model.S3Object s3Object = s3Client.getObject(connection.getBucket(), getFullFilePath());
+        final int concurrency = connection.getRangedGetConcurrency();
+        if (concurrency <= 1) {
+            return wrap(s3Client.getObject(connection.getBucket(), getFullFilePath()));
+        }
+
+        // The response of the first range tells the length of the object
+        final int rangeSize = connection.getRangedGetPartSize();
+        final com.amazonaws.services.s3.model.S3Object firstRange;
+        try {
+            firstRange = s3Client.getObject(new GetObjectRequest(connection.getBucket(), getFullFilePath()).withRange(0, rangeSize - 1));
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != HTTP_STATUS_RANGE_NOT_SATISFIABLE) {
+                throw e;
+            }
+            log.debug("Object {} is empty, reading without range", this);
+            return wrap(s3Client.getObject(connection.getBucket(), getFullFilePath()));
+        }
+
+        if (firstRange.getObjectMetadata().getInstanceLength() <= rangeSize) {
+            return wrap(firstRange);
+        }
+
+        log.debug("Using {} ranges of size [{}] in parallel for streaming from [{}]", concurrency, rangeSize, this);
+        return new S3RangedInputStream(s3Client, connection.getBucket(), getFullFilePath(), firstRange, rangeSize, concurrency);
+    }
+
+    @Override
+    public InputStream getInputStream(long offset) {
+        if (offset == 0) {
+            return getInputStream();
+        }
+
+        log.debug("Opening S3 input stream for {} at offset {}", this, offset);
+        try {
+            return wrap(connection.getS3Client().getObject(new GetObjectRequest(connection.getBucket(), getFullFilePath()).withRange(offset)));
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != HTTP_STATUS_RANGE_NOT_SATISFIABLE) {
+                throw new RuntimeIOException("Cannot read from " + this + " at offset " + offset, e);
+            }
+            log.debug("Offset {} is at the end of {}", offset, this);
+            return new ByteArrayInputStream(new byte[0]);
+        }
+    }
+
+    private InputStream wrap(final com.amazonaws.services.s3.model.S3Object s3Object) {
         final InputStream in = s3Object.getObjectContent();
 
         InputStream is = new InputStream() {
@@ -118,10 +196,33 @@ public class S3Object implements File {
 
     @Override
     public OutputStream getOutputStream() {
+        return getOutputStream(null, null, null);
+    }
+
+    /**
+     * Returns an output stream that stores the modification time and the size of the source as user metadata of the
+     * object, which {@link #refreshMetadata()} reports as the source modification time.
+     */
+    @Override
+    public OutputStream getOutputStream(FileMetadata source) {
+        return getOutputStream(source, null, null);
+    }
+
+    @Override
+    public OutputStream getOutputStream(FileMetadata source, UploadState resumeFrom, Consumer<UploadState> progressListener) {
         log.debug("Opening S3 ouput stream for {}", this);
+        metadata = null;
+
+        Map<String, String> userMetadata = null;
+        if (source != null && source.getLastModified() > 0) {
+            userMetadata = new HashMap<>();
+            userMetadata.put(SOURCE_MTIME_METADATA, Long.toString(source.getLastModified()));
+            userMetadata.put(SOURCE_SIZE_METADATA, Long.toString(source.getSize()));
+        }
 
         final AmazonS3 s3Client = connection.getS3Client();
-        OutputStream out = new S3OutputStream(s3Client, connection.getBucket(), getFullFilePath());
+        S3OutputStream out = new S3OutputStream(s3Client, connection.getBucket(), getFullFilePath(), connection.getMaxPartsInFlight(),
+                resumeFrom, progressListener, userMetadata);
 
         OutputStream os = new OutputStream() {
 
@@ -148,18 +249,74 @@ public class S3Object implements File {
             @Override
             public void close() throws IOException {
                 log.debug("Closing S3 output stream for {}", S3Object.this);
-                out.close();
+                try {
+                    out.close();
+                } finally {
+                    invalidateCachedListing();
+                }
             }
         };
 
         int streamBufferSize = connection.getStreamBufferSize();
         log.debug("Using buffer of size [{}] for streaming to [{}]", streamBufferSize, this);
-        return new BufferedOutputStream(os, streamBufferSize);
+        return new CancellableOutputStream(os, streamBufferSize, () -> {
+            try {
+                out.cancel();
+            } finally {
+                invalidateCachedListing();
+            }
+        });
+
+    }
 
+    @Override
+    public FileMetadata getMetadata() {
+        FileMetadata cached = metadata;
+        return cached != null ? cached : refreshMetadata();
+    }
+
+    @Override
+    public FileMetadata refreshMetadata() {
+        log.debug("Fetching metadata of {}", this);
+        metadata = null;
+        try {
+            ObjectMetadata objectMetadata = connection.getS3Client().getObjectMetadata(connection.getBucket(), getFullFilePath());
+            FileMetadata fetched = new FileMetadata(objectMetadata.getContentLength(), objectMetadata.getLastModified().getTime(),
+                    objectMetadata.getETag(), FileMetadata.PERMISSIONS_UNKNOWN, toSourceLastModified(objectMetadata));
+            metadata = fetched;
+            return fetched;
+        } catch (AmazonServiceException e) {
+            if (e.getStatusCode() != HTTP_STATUS_NOT_FOUND) {
+                throw new RuntimeIOException("Cannot fetch metadata of " + this, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return the modification time of the source recorded with the object, <code>0</code> if none is recorded or the
+     * recorded size of the source does not match the object.
+     */
+    private static long toSourceLastModified(ObjectMetadata objectMetadata) {
+        String mtime = objectMetadata.getUserMetaDataOf(SOURCE_MTIME_METADATA);
+        String size = objectMetadata.getUserMetaDataOf(SOURCE_SIZE_METADATA);
+        try {
+            if (mtime == null || (size != null && Long.parseLong(size) != objectMetadata.getContentLength())) {
+                return 0;
+            }
+            return Long.parseLong(mtime);
+        } catch (NumberFormatException e) {
+            log.debug("Ignoring malformed source metadata {} / {}", mtime, size);
+            return 0;
+        }
     }
 
     @Override
     public boolean exists() {
+        if (metadata != null) {
+            return true;
+        }
+
         log.debug("Checking {} for existence", this);
 
         boolean objectExists = false;
@@ -180,18 +337,62 @@ public class S3Object implements File {
 
     // Deleting
 
+    /**
+     * Deletes this object with a single request. S3 accepts the deletion of a missing object, so the object is not
+     * checked for existence first.
+     */
     @Override
     public void delete() {
-        if (exists()) {
-            log.debug("Deleting object {}", this);
+        log.debug("Deleting object {}", this);
 
-            try {
-                connection.getS3Client().deleteObject(connection.getBucket(), getFullFilePath());
+        try {
+            connection.getS3Client().deleteObject(connection.getBucket(), getFullFilePath());
+            metadata = null;
+        }
+        catch(AmazonServiceException e) {
+            throw new RuntimeIOException("Deleting object failed", e);
+        }
+        finally {
+            invalidateCachedListing();
+        }
+    }
+
+    private void invalidateCachedListing() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidateWithAncestors(((S3ObjectKey) directory).getCachePath());
+        }
+    }
+
+    /**
+     * A buffered stream to an object whose upload can be aborted.
+     */
+    private static final class CancellableOutputStream extends BufferedOutputStream implements Cancellable {
+
+        private final Runnable onCancel;
+
+        private boolean cancelled;
+
+        private CancellableOutputStream(OutputStream out, int size, Runnable onCancel) {
+            super(out, size);
+            this.onCancel = onCancel;
+        }
+
+        @Override
+        public synchronized void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                // the buffered bytes are dropped rather than written
+                count = 0;
+                onCancel.run();
             }
-            catch(AmazonServiceException e) {
-                throw new RuntimeIOException("Deleting object failed", e);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (!cancelled) {
+                super.close();
             }
         }
     }
-
 }
@@ -3,9 +3,15 @@ package de.andywolf.sftpbridge.s3;
 import com.amazonaws.AmazonServiceException;
 import com.amazonaws.SdkClientException;
 import com.amazonaws.services.s3.model.*;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest.KeyVersion;
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ListingCache;
+import de.andywolf.sftpbridge.util.PagedIterator;
 import de.andywolf.sftpbridge.util.Utils;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
@@ -15,8 +21,16 @@ import lombok.extern.slf4j.Slf4j;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static java.lang.String.format;
 
@@ -29,6 +43,19 @@ import static java.lang.String.format;
 @EqualsAndHashCode
 public class S3ObjectKey implements Directory {
 
+    /** The number of keys requested per listing page, the maximum S3 returns */
+    private static final int LIST_MAX_KEYS = 1000;
+
+    /** The maximum number of keys S3 deletes with one request */
+    private static final int DELETE_MAX_KEYS = 1000;
+
+    /** Threads deleting batches of objects below all keys */
+    private static final ExecutorService BATCH_DELETERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "s3-batch-deleter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     @Getter
     @NonNull
     protected final List<String> pathComponents;
@@ -37,11 +64,21 @@ public class S3ObjectKey implements Directory {
     @NonNull
     protected final S3Connection connection;
 
+    /** The content of this directory taken from a listing of the whole tree, null if this directory lists itself */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final TreeListing treeListing;
+
     // Contructor
 
     public S3ObjectKey(S3Connection connection, String path) {
+        this(connection, path, null);
+    }
+
+    private S3ObjectKey(S3Connection connection, String path, TreeListing treeListing) {
         this.connection = connection;
         this.pathComponents = Utils.splitPath(path);
+        this.treeListing = treeListing;
     }
 
 
@@ -58,6 +95,12 @@ public class S3ObjectKey implements Directory {
 
     @Override
     public Directory getSubDirectory(String name) {
+        if (treeListing != null) {
+            S3ObjectKey listed = treeListing.subDirectories.get(name);
+            if (listed != null) {
+                return listed;
+            }
+        }
         return new S3ObjectKey(this.connection, getFullDirectoryPath() + name);
     }
 
@@ -68,8 +111,23 @@ public class S3ObjectKey implements Directory {
     }
 
 
+    /**
+     * @return the path identifying this directory in the {@link ListingCache}.
+     */
+    String getCachePath() {
+        return Utils.joinPath(pathComponents);
+    }
+
     @Override
     public boolean exists() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            Boolean cached = cache.getExistence(getCachePath());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         log.debug("Checking {} for existence", this);
 
         ListObjectsV2Result result = null;
@@ -77,6 +135,7 @@ public class S3ObjectKey implements Directory {
             ListObjectsV2Request request = new ListObjectsV2Request();
             request.setBucketName(connection.getBucket());
             request.setPrefix(getFullDirectoryPath());
+            request.setMaxKeys(1);
 
             result = connection.getS3Client().listObjectsV2(request);
         }
@@ -88,7 +147,11 @@ public class S3ObjectKey implements Directory {
             log.debug("Object does not exist: {}", this);
         }
 
-        return result.getKeyCount() > 0;
+        boolean exists = result.getKeyCount() > 0;
+        if (cache != null) {
+            cache.putExistence(getCachePath(), exists);
+        }
+        return exists;
     }
 
 
@@ -96,78 +159,272 @@ public class S3ObjectKey implements Directory {
 
     @Override
     public List<File> listFiles() {
-        log.debug("Listing directory {}", this);
-
-        List<File> files = new ArrayList<>();
+        return Utils.toList(iterateFiles());
+    }
 
-        try {
+    @Override
+    public List<Directory> listSubDirectories() {
+        return Utils.toList(iterateSubDirectories());
+    }
 
-            ListObjectsV2Request req = new ListObjectsV2Request()
-                .withBucketName(connection.getBucket())
-                .withPrefix(getFullDirectoryPath())
-                .withDelimiter(Utils.PATH_SEPARATOR)
-                .withMaxKeys(10);
+    @Override
+    public CloseableIterator<File> iterateFiles() {
+        if (treeListing != null) {
+            return Utils.iterate(treeListing.files);
+        }
 
-            ListObjectsV2Result result;
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterateFiles(cached);
+        }
 
-            do {
-                result = connection.getS3Client().listObjectsV2(req);
+        log.debug("Listing directory {}", this);
 
-                for(S3ObjectSummary objectSummary : result.getObjectSummaries()) {
+        return new ListingIterator<File>(false) {
+            @Override
+            protected void addPage(ListObjectsV2Result result, List<File> page) {
+                for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
                     String name = objectSummary.getKey().substring(getFullDirectoryPath().length());
-                    if(name.length() > 0) {
-                        File file = getFile(name);
-                        files.add(file);
+                    if (name.length() > 0) {
+                        page.add(newFile(name, objectSummary));
                     }
                 }
+            }
+        };
+    }
 
-                String token = result.getNextContinuationToken();
-                req.setContinuationToken(token);
+    @Override
+    public CloseableIterator<Directory> iterateSubDirectories() {
+        if (treeListing != null) {
+            return Utils.<Directory>iterate(treeListing.subDirectories.values());
+        }
 
-            } while (result.isTruncated());
-        } catch (SdkClientException e) {
-            throw new RuntimeIOException(format("Cannot list directory %s", this), e);
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterateSubDirectories(cached);
         }
 
-        return files;
+        log.debug("Listing directory {}", this);
+
+        return new ListingIterator<Directory>(false) {
+            @Override
+            protected void addPage(ListObjectsV2Result result, List<Directory> page) {
+                for (String prefix : result.getCommonPrefixes()) {
+                    String name = prefix.substring(getFullDirectoryPath().length());
+                    if (name.length() > 0) {
+                        page.add(getSubDirectory(name));
+                    }
+                }
+            }
+        };
     }
 
     @Override
-    public List<Directory> listSubDirectories() {
-        log.debug("Listing directory {}", this);
+    public CloseableIterator<DirectoryEntry> iterateEntries() {
+        if (treeListing != null) {
+            List<DirectoryEntry> entries = new ArrayList<>();
+            for (Directory subDirectory : treeListing.subDirectories.values()) {
+                entries.add(DirectoryEntry.of(subDirectory));
+            }
+            for (File file : treeListing.files) {
+                entries.add(DirectoryEntry.of(file));
+            }
+            return Utils.iterate(entries);
+        }
 
-        List<Directory> directories = new ArrayList<>();
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterate(cached);
+        }
+        return listEntries();
+    }
 
-        try {
+    /**
+     * With a listing cache, returns the cached entries of this directory, listing the whole directory first if they
+     * are not cached.
+     *
+     * @return the entries of this directory or <code>null</code> if the connection does not cache listings.
+     */
+    private List<DirectoryEntry> cachedEntries() {
+        ListingCache cache = connection.getListingCache();
+        if (cache == null) {
+            return null;
+        }
 
-            ListObjectsV2Request req = new ListObjectsV2Request()
-                    .withBucketName(connection.getBucket())
-                    .withPrefix(getFullDirectoryPath())
-                    .withDelimiter(Utils.PATH_SEPARATOR)
-                    .withMaxKeys(10);
+        List<DirectoryEntry> entries = cache.getListing(getCachePath());
+        if (entries == null) {
+            entries = Utils.toList(listEntries());
+            cache.putListing(getCachePath(), entries);
+        }
+        return entries;
+    }
 
-            ListObjectsV2Result result;
+    /**
+     * Lists only the keys starting with the prefix, unless the entries are already known from a snapshot or the cache.
+     */
+    @Override
+    public CloseableIterator<DirectoryEntry> iterateEntries(String namePrefix) {
+        if (namePrefix.isEmpty() || treeListing != null || connection.getListingCache() != null) {
+            return Directory.super.iterateEntries(namePrefix);
+        }
+        return listEntries(namePrefix);
+    }
 
-            do {
-                result = connection.getS3Client().listObjectsV2(req);
+    private CloseableIterator<DirectoryEntry> listEntries() {
+        return listEntries("");
+    }
 
+    private CloseableIterator<DirectoryEntry> listEntries(String namePrefix) {
+        log.debug("Listing directory {}", this);
+
+        return new ListingIterator<DirectoryEntry>(false, namePrefix) {
+            @Override
+            protected void addPage(ListObjectsV2Result result, List<DirectoryEntry> page) {
                 for (String prefix : result.getCommonPrefixes()) {
                     String name = prefix.substring(getFullDirectoryPath().length());
                     if (name.length() > 0) {
-                        Directory subDirectory = getSubDirectory(name);
-                        directories.add(subDirectory);
+                        page.add(DirectoryEntry.of(getSubDirectory(name)));
                     }
                 }
+                for (S3ObjectSummary objectSummary : result.getObjectSummaries()) {
+                    String name = objectSummary.getKey().substring(getFullDirectoryPath().length());
+                    if (name.length() > 0) {
+                        page.add(DirectoryEntry.of(newFile(name, objectSummary)));
+                    }
+                }
+            }
+        };
+    }
+
+    private File newFile(String name, S3ObjectSummary objectSummary) {
+        return new S3Object(connection, this, name, S3Object.toMetadata(objectSummary));
+    }
 
-                String token = result.getNextContinuationToken();
-                req.setContinuationToken(token);
+    /**
+     * Lists all objects below this key at any depth in one paginated pass, without a delimiter, and rebuilds the
+     * directories from the keys. The returned directory and its sub-directories answer listings from this snapshot
+     * without further requests; directory markers make their directories appear even if they are empty.
+     *
+     * @return a snapshot of the tree below this key.
+     */
+    @Override
+    public Directory listTree() {
+        return listTree("");
+    }
 
-            } while (result.isTruncated());
-        } catch (SdkClientException e) {
-            throw new RuntimeIOException(format("Cannot list directory %s", this), e);
+    /**
+     * Lists the tree like {@link #listTree()}, but only the keys starting with the prefix.
+     */
+    @Override
+    public Directory listTree(String pathPrefix) {
+        log.debug("Listing tree {} below [{}]", this, pathPrefix);
+
+        String prefix = getFullDirectoryPath();
+        S3ObjectKey root = new S3ObjectKey(connection, prefix, new TreeListing());
+        int keys = 0;
+        try (CloseableIterator<S3ObjectSummary> summaries = iterateTreeSummaries(pathPrefix)) {
+            while (summaries.hasNext()) {
+                S3ObjectSummary objectSummary = summaries.next();
+                keys++;
+
+                String relativeKey = objectSummary.getKey().substring(prefix.length());
+                S3ObjectKey directory = root;
+                int begin = 0;
+                int separator;
+                while ((separator = relativeKey.indexOf(Utils.PATH_SEPARATOR_CHAR, begin)) >= 0) {
+                    if (separator > begin) {
+                        directory = directory.listedSubDirectory(relativeKey.substring(begin, separator));
+                    }
+                    begin = separator + 1;
+                }
+
+                if (begin < relativeKey.length()) {
+                    String name = relativeKey.substring(begin);
+                    directory.treeListing.files.add(new S3Object(connection, directory, name, S3Object.toMetadata(objectSummary)));
+                }
+            }
+        }
+        log.debug("Listed {} keys below {}", keys, this);
+        return root;
+    }
+
+    private S3ObjectKey listedSubDirectory(String name) {
+        S3ObjectKey subDirectory = treeListing.subDirectories.get(name);
+        if (subDirectory == null) {
+            subDirectory = new S3ObjectKey(connection, getFullDirectoryPath() + name, new TreeListing());
+            treeListing.subDirectories.put(name, subDirectory);
         }
+        return subDirectory;
+    }
 
-        return directories;
+    /**
+     * Iterates over all objects below this key whose relative paths start with a prefix, including directory markers.
+     */
+    private CloseableIterator<S3ObjectSummary> iterateTreeSummaries(String pathPrefix) {
+        return new ListingIterator<S3ObjectSummary>(true, pathPrefix) {
+            @Override
+            protected void addPage(ListObjectsV2Result result, List<S3ObjectSummary> page) {
+                page.addAll(result.getObjectSummaries());
+            }
+        };
+    }
+
+    /**
+     * The content of a directory as found by {@link #listTree()}.
+     */
+    private static final class TreeListing {
+        private final List<File> files = new ArrayList<>();
+        private final Map<String, S3ObjectKey> subDirectories = new LinkedHashMap<>();
+    }
+
+    /**
+     * Lists this directory one <code>ListObjectsV2</code> page at a time.
+     */
+    private abstract class ListingIterator<T> extends PagedIterator<T> {
+
+        private final ListObjectsV2Request request;
+
+        private boolean truncated = true;
+
+        private ListingIterator(boolean recursive) {
+            this(recursive, "");
+        }
+
+        /**
+         * @param recursive  <code>true</code> to list all objects below this key instead of the direct children.
+         * @param pathPrefix the beginning of the paths relative to this key to list.
+         */
+        private ListingIterator(boolean recursive, String pathPrefix) {
+            request = new ListObjectsV2Request()
+                    .withBucketName(connection.getBucket())
+                    .withPrefix(getFullDirectoryPath() + pathPrefix)
+                    .withMaxKeys(LIST_MAX_KEYS);
+            if (!recursive) {
+                request.setDelimiter(Utils.PATH_SEPARATOR);
+            }
+        }
+
+        protected abstract void addPage(ListObjectsV2Result result, List<T> page);
+
+        @Override
+        protected List<T> nextPage() {
+            if (!truncated) {
+                return null;
+            }
+
+            ListObjectsV2Result result;
+            try {
+                result = connection.getS3Client().listObjectsV2(request);
+            } catch (SdkClientException e) {
+                throw new RuntimeIOException(format("Cannot list directory %s", S3ObjectKey.this), e);
+            }
+            truncated = result.isTruncated();
+            request.setContinuationToken(result.getNextContinuationToken());
+
+            List<T> page = new ArrayList<>();
+            addPage(result, page);
+            return page;
+        }
     }
 
 
@@ -179,7 +436,18 @@ public class S3ObjectKey implements Directory {
             log.debug("Deleting object {}", this);
 
             // TODO: Check exception handling best practices for AWS SDK
-            connection.getS3Client().deleteObject(connection.getBucket(), getFullDirectoryPath());
+            try {
+                connection.getS3Client().deleteObject(connection.getBucket(), getFullDirectoryPath());
+            } finally {
+                invalidateCache();
+            }
+        }
+    }
+
+    private void invalidateCache() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidateWithAncestors(getCachePath());
         }
     }
 
@@ -188,6 +456,11 @@ public class S3ObjectKey implements Directory {
 
     @Override
     public void mkdir() {
+        if (!connection.isDirectoryMarkers()) {
+            log.trace("Not creating a marker for directory {}", this);
+            invalidateCache();
+            return;
+        }
         log.debug("Creating directory {}", this);
 
         // create meta-data for your folder and set content-length to 0
@@ -207,7 +480,19 @@ public class S3ObjectKey implements Directory {
         );
 
         // send request to S3 to create folder
-        connection.getS3Client().putObject(putObjectRequest);
+        try {
+            connection.getS3Client().putObject(putObjectRequest);
+        } finally {
+            invalidateCache();
+        }
+    }
+
+    /**
+     * Creates the marker of this directory only, as the parent directories exist once an object below them exists.
+     */
+    @Override
+    public void mkdirs() {
+        mkdir();
     }
 
     @Override
@@ -215,32 +500,94 @@ public class S3ObjectKey implements Directory {
         return connection.getFile(this, name);
     }
 
+    @Override
+    public File getFile(String name, FileMetadata metadata) {
+        return new S3Object(connection, this, name, metadata);
+    }
+
+    /**
+     * Deletes all objects below this key, found by a single listing without a delimiter, including the directory
+     * markers. The keys are deleted in batches of up to 1,000 with one <code>DeleteObjects</code> request each, and
+     * several batches are deleted concurrently while the listing continues.
+     */
     @Override
     public void deleteRecursively() {
-        RuntimeIOException accumulator = new RuntimeIOException("Cannot delete " + this + ", not all children are deleted.");
-        for (File each : listFiles()) {
-            try {
-                each.delete();
-            } catch (RuntimeIOException rio) {
-                log.warn("Unable to delete child {}. Continue...", each);
-                accumulator.addSuppressed(rio);
-            }
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidateTree(getCachePath());
         }
 
-        for (Directory each : listSubDirectories()) {
-            try {
-                each.deleteRecursively();
-            } catch (RuntimeIOException rio) {
-                log.warn("Unable to delete child {}. Continue...", each);
-                accumulator.addSuppressed(rio);
+        int concurrency = connection.getDeleteConcurrency();
+        RuntimeIOException accumulator = new RuntimeIOException("Cannot delete " + this + ", not all children are deleted.");
+        Deque<Future<List<RuntimeIOException>>> batches = new ArrayDeque<>();
+        try (CloseableIterator<S3ObjectSummary> summaries = iterateTreeSummaries("")) {
+            List<KeyVersion> keys = new ArrayList<>();
+            while (summaries.hasNext()) {
+                keys.add(new KeyVersion(summaries.next().getKey()));
+                if (keys.size() == DELETE_MAX_KEYS) {
+                    if (batches.size() >= concurrency) {
+                        collectFailures(batches.poll(), accumulator);
+                    }
+                    batches.add(submitDeletion(keys));
+                    keys = new ArrayList<>();
+                }
+            }
+            if (!keys.isEmpty()) {
+                batches.add(submitDeletion(keys));
+            }
+        } finally {
+            while (!batches.isEmpty()) {
+                collectFailures(batches.poll(), accumulator);
             }
         }
 
         Throwable[] suppressed = accumulator.getSuppressed();
-        if (suppressed == null || suppressed.length == 0) {
-            delete();
-        } else {
+        if (suppressed != null && suppressed.length > 0) {
             throw accumulator;
         }
     }
+
+    private Future<List<RuntimeIOException>> submitDeletion(final List<KeyVersion> keys) {
+        return BATCH_DELETERS.submit(() -> deleteBatch(keys));
+    }
+
+    /**
+     * Deletes a batch of keys with a single request.
+     *
+     * @return the failures of single keys, empty if all keys have been deleted.
+     */
+    private List<RuntimeIOException> deleteBatch(List<KeyVersion> keys) {
+        log.debug("Deleting {} objects from {} to {}", keys.size(), keys.get(0).getKey(), keys.get(keys.size() - 1).getKey());
+
+        List<RuntimeIOException> failures = new ArrayList<>();
+        try {
+            DeleteObjectsRequest request = new DeleteObjectsRequest(connection.getBucket())
+                    .withKeys(keys)
+                    .withQuiet(true);
+            connection.getS3Client().deleteObjects(request);
+        } catch (MultiObjectDeleteException e) {
+            for (MultiObjectDeleteException.DeleteError error : e.getErrors()) {
+                log.warn("Unable to delete child {}. Continue...", error.getKey());
+                failures.add(new RuntimeIOException(format("Cannot delete %s: %s %s", error.getKey(), error.getCode(), error.getMessage())));
+            }
+        } catch (SdkClientException e) {
+            log.warn("Unable to delete {} children from {}. Continue...", keys.size(), keys.get(0).getKey());
+            failures.add(new RuntimeIOException(format("Cannot delete %d objects from %s to %s", keys.size(),
+                    keys.get(0).getKey(), keys.get(keys.size() - 1).getKey()), e));
+        }
+        return failures;
+    }
+
+    private void collectFailures(Future<List<RuntimeIOException>> batch, RuntimeIOException accumulator) {
+        try {
+            for (RuntimeIOException failure : batch.get()) {
+                accumulator.addSuppressed(failure);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            accumulator.addSuppressed(new RuntimeIOException("Interrupted while deleting " + this, e));
+        } catch (ExecutionException e) {
+            accumulator.addSuppressed(new RuntimeIOException("Cannot delete below " + this, e.getCause()));
+        }
+    }
 }
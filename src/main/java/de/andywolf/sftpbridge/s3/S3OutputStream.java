@@ -4,6 +4,16 @@ import java.io.ByteArrayInputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
@@ -16,12 +26,24 @@ import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
+import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.UploadState;
+import lombok.extern.slf4j.Slf4j;
 
+@Slf4j
 public class S3OutputStream extends OutputStream {
 
     /** Default chunk size is 10MB */
     protected static final int BUFFER_SIZE = 10000000;
 
+    /** Threads uploading the parts of all streams */
+    private static final ExecutorService PART_UPLOADERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "s3-part-uploader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     /** The bucket-name on Amazon S3 */
     private final String bucket;
 
@@ -29,7 +51,7 @@ public class S3OutputStream extends OutputStream {
     private final String path;
 
     /** The temporary buffer used for storing the chunks */
-    private final byte[] buf;
+    private byte[] buf;
 
     /** The position in the buffer */
     private int position;
@@ -40,26 +62,113 @@ public class S3OutputStream extends OutputStream {
     /** The unique id for this upload */
     private String uploadId;
 
-    /** Collection of the etags for the parts that have been uploaded */
-    private final List<PartETag> etags;
+    /** The maximum number of parts being uploaded while the next part is filled */
+    private final int maxPartsInFlight;
+
+    /** Buffers of acknowledged parts, ready to be filled again */
+    private final BlockingQueue<byte[]> bufferPool;
+
+    /** The number of buffers allocated so far, at most one more than the parts in flight */
+    private int allocatedBuffers;
+
+    /** The etags of the parts that have been started, in part number order */
+    private final List<Future<PartETag>> etags;
 
     /** indicates whether the stream is still open / valid */
     private boolean open;
 
+    /** indicates whether the upload has been aborted */
+    private volatile boolean cancelled;
+
+    /** Told about the acknowledged parts, may be null */
+    private final Consumer<UploadState> progressListener;
+
+    /** The sizes of the parts that have been started, by part number */
+    private final Map<Integer, Integer> partSizes = new ConcurrentHashMap<>();
+
+    /** The etags of the acknowledged parts that do not follow the reported ones without a gap yet */
+    private final Map<Integer, PartETag> acknowledgedParts = new ConcurrentHashMap<>();
+
+    /** The acknowledged parts from part 1 on without gaps, as last reported to the progress listener */
+    private final List<UploadState.Part> reportedParts = new ArrayList<>();
+
+    /** The user metadata stored with the object, may be null */
+    private final Map<String, String> userMetadata;
+
     /**
-     * Creates a new S3 OutputStream
+     * Creates a new S3 OutputStream that uploads up to {@link ConnectionOptions#S3_MAX_PARTS_IN_FLIGHT_DEFAULT} parts
+     * at the same time
      * @param s3Client the AmazonS3 client
      * @param bucket name of the bucket
      * @param path path within the bucket
      */
     public S3OutputStream(AmazonS3 s3Client, String bucket, String path) {
+        this(s3Client, bucket, path, ConnectionOptions.S3_MAX_PARTS_IN_FLIGHT_DEFAULT);
+    }
+
+    /**
+     * Creates a new S3 OutputStream
+     * @param s3Client the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param path path within the bucket
+     * @param maxPartsInFlight the maximum number of parts uploaded concurrently while writing continues
+     */
+    public S3OutputStream(AmazonS3 s3Client, String bucket, String path, int maxPartsInFlight) {
+        this(s3Client, bucket, path, maxPartsInFlight, null, null);
+    }
+
+    /**
+     * Creates a new S3 OutputStream that continues an interrupted multipart upload and reports its progress.
+     * @param s3Client the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param path path within the bucket
+     * @param maxPartsInFlight the maximum number of parts uploaded concurrently while writing continues
+     * @param resumeFrom the multipart upload to continue, null to start a new upload
+     * @param progressListener told about the acknowledged parts whenever another one follows them without a gap,
+     *                         invoked from the uploading threads, may be null
+     */
+    public S3OutputStream(AmazonS3 s3Client, String bucket, String path, int maxPartsInFlight,
+                          UploadState resumeFrom, Consumer<UploadState> progressListener) {
+        this(s3Client, bucket, path, maxPartsInFlight, resumeFrom, progressListener, null);
+    }
+
+    /**
+     * Creates a new S3 OutputStream that stores user metadata with the object.
+     * @param s3Client the AmazonS3 client
+     * @param bucket name of the bucket
+     * @param path path within the bucket
+     * @param maxPartsInFlight the maximum number of parts uploaded concurrently while writing continues
+     * @param resumeFrom the multipart upload to continue, null to start a new upload. Its object keeps the user metadata
+     *                   given when the upload was started.
+     * @param progressListener told about the acknowledged parts whenever another one follows them without a gap,
+     *                         invoked from the uploading threads, may be null
+     * @param userMetadata the user metadata (<code>x-amz-meta-*</code>) of the object, may be null
+     */
+    public S3OutputStream(AmazonS3 s3Client, String bucket, String path, int maxPartsInFlight,
+                          UploadState resumeFrom, Consumer<UploadState> progressListener, Map<String, String> userMetadata) {
+        if (maxPartsInFlight < 1) {
+            throw new IllegalArgumentException("At least one part must be allowed in flight, but was " + maxPartsInFlight);
+        }
         this.s3Client = s3Client;
         this.bucket = bucket;
         this.path = path;
-        this.buf = new byte[BUFFER_SIZE];
+        this.maxPartsInFlight = maxPartsInFlight;
+        this.bufferPool = new LinkedBlockingQueue<>();
+        this.buf = nextBuffer();
         this.position = 0;
         this.etags = new ArrayList<>();
         this.open = true;
+        this.progressListener = progressListener;
+        this.userMetadata = userMetadata;
+
+        if (resumeFrom != null) {
+            log.debug("Resuming upload {} of {} after {} parts", resumeFrom.getUploadId(), path, resumeFrom.getParts().size());
+            this.uploadId = resumeFrom.getUploadId();
+            for (UploadState.Part part : resumeFrom.getParts()) {
+                this.etags.add(CompletableFuture.completedFuture(new PartETag(part.getPartNumber(), part.getETag())));
+                this.reportedParts.add(part);
+            }
+        }
     }
 
     /**
@@ -105,24 +214,123 @@ public class S3OutputStream extends OutputStream {
 
     protected void flushBufferAndRewind() {
         if (uploadId == null) {
-            final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.path)
+            final InitiateMultipartUploadRequest request = new InitiateMultipartUploadRequest(this.bucket, this.path, newObjectMetadata())
                     .withCannedACL(CannedAccessControlList.BucketOwnerFullControl);
             InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(request);
             this.uploadId = initResponse.getUploadId();
         }
+        assertNoFailedPart();
         uploadPart();
+        this.buf = nextBuffer();
         this.position = 0;
     }
 
+    /**
+     * Starts the upload of the current buffer as the next part. The buffer returns to the pool once the part is
+     * acknowledged.
+     */
     protected void uploadPart() {
-        UploadPartResult uploadResult = this.s3Client.uploadPart(new UploadPartRequest()
+        final byte[] partBuffer = this.buf;
+        final int partSize = this.position;
+        final int partNumber = this.etags.size() + 1;
+        final UploadPartRequest request = new UploadPartRequest()
                 .withBucketName(this.bucket)
                 .withKey(this.path)
                 .withUploadId(this.uploadId)
-                .withInputStream(new ByteArrayInputStream(buf,0,this.position))
-                .withPartNumber(this.etags.size() + 1)
-                .withPartSize(this.position));
-        this.etags.add(uploadResult.getPartETag());
+                .withInputStream(new ByteArrayInputStream(partBuffer, 0, partSize))
+                .withPartNumber(partNumber)
+                .withPartSize(partSize);
+
+        log.trace("Uploading part {} of {} with {} bytes", partNumber, this.path, partSize);
+        this.partSizes.put(partNumber, partSize);
+        this.etags.add(PART_UPLOADERS.submit(() -> {
+            PartETag partETag;
+            try {
+                UploadPartResult uploadResult = this.s3Client.uploadPart(request);
+                partETag = uploadResult.getPartETag();
+            } finally {
+                this.bufferPool.add(partBuffer);
+            }
+            if (this.progressListener != null) {
+                this.acknowledgedParts.put(partNumber, partETag);
+                reportProgress();
+            }
+            return partETag;
+        }));
+    }
+
+    /**
+     * Reports the acknowledged parts if the part following the last reported one has been acknowledged.
+     */
+    private synchronized void reportProgress() {
+        int reported = this.reportedParts.size();
+        PartETag next;
+        while ((next = this.acknowledgedParts.remove(this.reportedParts.size() + 1)) != null) {
+            int partNumber = next.getPartNumber();
+            this.reportedParts.add(new UploadState.Part(partNumber, next.getETag(), this.partSizes.get(partNumber)));
+        }
+        if (this.reportedParts.size() > reported) {
+            this.progressListener.accept(new UploadState(this.uploadId, this.reportedParts));
+        }
+    }
+
+    /**
+     * Takes a buffer from the pool. Allocates a new one as long as less than one buffer more than the parts in flight
+     * exists, otherwise waits for the next part to be acknowledged.
+     */
+    private byte[] nextBuffer() {
+        byte[] buffer = this.bufferPool.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+        if (this.allocatedBuffers <= this.maxPartsInFlight) {
+            this.allocatedBuffers++;
+            return new byte[BUFFER_SIZE];
+        }
+        try {
+            return this.bufferPool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new RuntimeIOException("Interrupted while waiting for a part upload of " + this.path, e);
+        }
+    }
+
+    /**
+     * Fails early if the upload of a previous part has already failed.
+     */
+    private void assertNoFailedPart() {
+        for (Future<PartETag> etag : this.etags) {
+            if (etag.isDone()) {
+                try {
+                    etag.get();
+                } catch (ExecutionException | InterruptedException e) {
+                    awaitPartETags();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for all parts to be acknowledged.
+     *
+     * @return the etags of all parts in part number order.
+     */
+    private List<PartETag> awaitPartETags() {
+        List<PartETag> partETags = new ArrayList<>(this.etags.size());
+        try {
+            for (Future<PartETag> etag : this.etags) {
+                partETags.add(etag.get());
+            }
+        } catch (ExecutionException e) {
+            cancel();
+            throw new RuntimeIOException("Cannot upload part of " + this.path, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new RuntimeIOException("Interrupted while waiting for the part uploads of " + this.path, e);
+        }
+        return partETags;
     }
 
     @Override
@@ -133,10 +341,11 @@ public class S3OutputStream extends OutputStream {
                 if (this.position > 0) {
                     uploadPart();
                 }
-                this.s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, path, uploadId, etags));
+                List<PartETag> partETags = awaitPartETags();
+                this.s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, path, uploadId, partETags));
             }
             else {
-                final ObjectMetadata metadata = new ObjectMetadata();
+                final ObjectMetadata metadata = newObjectMetadata();
                 metadata.setContentLength(this.position);
                 final PutObjectRequest request = new PutObjectRequest(this.bucket, this.path, new ByteArrayInputStream(this.buf, 0, this.position), metadata)
                         .withCannedAcl(CannedAccessControlList.BucketOwnerFullControl);
@@ -145,8 +354,23 @@ public class S3OutputStream extends OutputStream {
         }
     }
 
+    private ObjectMetadata newObjectMetadata() {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        if (this.userMetadata != null) {
+            metadata.setUserMetadata(this.userMetadata);
+        }
+        return metadata;
+    }
+
     public void cancel() {
+        if (this.cancelled) {
+            return;
+        }
+        this.cancelled = true;
         this.open = false;
+        for (Future<PartETag> etag : this.etags) {
+            etag.cancel(true);
+        }
         if (this.uploadId != null) {
             this.s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(this.bucket, this.path, this.uploadId));
         }
@@ -0,0 +1,104 @@
+package de.andywolf.sftpbridge.s3;
+
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import de.andywolf.sftpbridge.util.ParallelRangeInputStream;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads an S3 object with several ranged GET requests at the same time.
+ * <p/>
+ * The first range is served from the response that was used to learn the length of the object, all further ranges
+ * are fetched with their own request.
+ */
+@Slf4j
+@ToString(of = {"bucket", "key"}, callSuper = false)
+class S3RangedInputStream extends ParallelRangeInputStream {
+
+    private final AmazonS3 s3Client;
+    private final String bucket;
+    private final String key;
+
+    /** The already opened response of the first range, consumed by the first call to readRange */
+    private S3Object firstRange;
+
+    /**
+     * @param s3Client    the AmazonS3 client
+     * @param bucket      name of the bucket
+     * @param key         key of the object
+     * @param firstRange  the open response of a ranged GET starting at offset 0 and covering one range
+     * @param rangeSize   the size of each range
+     * @param concurrency the maximum number of ranges fetched at the same time
+     */
+    S3RangedInputStream(AmazonS3 s3Client, String bucket, String key, S3Object firstRange, int rangeSize, int concurrency) {
+        super(firstRange.getObjectMetadata().getInstanceLength(), rangeSize, concurrency);
+        this.s3Client = s3Client;
+        this.bucket = bucket;
+        this.key = key;
+        this.firstRange = firstRange;
+    }
+
+    @Override
+    protected byte[] readRange(long offset, int length) throws IOException {
+        S3Object s3Object = takeFirstRange(offset);
+        if (s3Object == null) {
+            try {
+                s3Object = s3Client.getObject(new GetObjectRequest(bucket, key).withRange(offset, offset + length - 1));
+            } catch (SdkClientException e) {
+                throw new IOException("Cannot read range " + offset + "-" + (offset + length - 1) + " of " + this, e);
+            }
+        }
+
+        // closing the content closes the object as well
+        try (InputStream in = s3Object.getObjectContent()) {
+            byte[] range = new byte[length];
+            int position = 0;
+            int nRead;
+            while (position < length && (nRead = in.read(range, position, length - position)) != -1) {
+                position += nRead;
+            }
+            if (position < length) {
+                throw new IOException("Range " + offset + "-" + (offset + length - 1) + " of " + this + " ended after " + position + " bytes");
+            }
+            return range;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            S3Object unread = takeFirstRange(0);
+            if (unread != null) {
+                abortQuietly(unread);
+            }
+        }
+    }
+
+    private synchronized S3Object takeFirstRange(long offset) {
+        if (offset != 0) {
+            return null;
+        }
+        S3Object s3Object = firstRange;
+        firstRange = null;
+        return s3Object;
+    }
+
+    private void abortQuietly(S3Object s3Object) {
+        S3ObjectInputStream content = s3Object.getObjectContent();
+        try {
+            content.abort();
+            s3Object.close();
+        } catch (IOException e) {
+            log.warn("IOException while closing S3 object", e);
+        }
+    }
+}
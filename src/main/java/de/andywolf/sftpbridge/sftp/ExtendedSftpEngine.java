@@ -0,0 +1,90 @@
+package de.andywolf.sftpbridge.sftp;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.common.SSHException;
+import net.schmizz.sshj.connection.channel.direct.SessionFactory;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Request;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link SFTPEngine} that tells which extensions the server announced in its version packet and that opens files
+ * as {@link SftpRemoteFile}s and directories as {@link SftpRemoteDirectory}s.
+ * <p/>
+ * Extended requests must only be sent for announced extensions: SSHJ cannot recover from some servers' replies to
+ * extended requests they do not know, and the whole SFTP session is lost.
+ */
+class ExtendedSftpEngine extends SFTPEngine {
+
+    ExtendedSftpEngine(SessionFactory ssh) throws SSHException {
+        super(ssh);
+    }
+
+    /**
+     * @param name the name of the extension, e.g. <code>limits@openssh.com</code>.
+     * @return <code>true</code> if the server announced the extension.
+     */
+    boolean hasServerExtension(String name) {
+        return serverExtensions.containsKey(name);
+    }
+
+    Charset getRemoteCharset() {
+        return sub.getRemoteCharset();
+    }
+
+    /**
+     * Sends a request for a path without waiting for the reply.
+     *
+     * @param type the type of the request, e.g. {@link PacketType#REMOVE} or {@link PacketType#RMDIR}.
+     * @param path the path the request refers to.
+     * @return the promise of the reply.
+     * @throws IOException if the request cannot be sent.
+     */
+    Promise<Response, SFTPException> requestAsync(PacketType type, String path) throws IOException {
+        return request(newRequest(type).putString(path, sub.getRemoteCharset()));
+    }
+
+    /**
+     * Sends a request to create a directory with default attributes without waiting for the reply.
+     *
+     * @param path the path of the directory.
+     * @return the promise of the reply.
+     * @throws IOException if the request cannot be sent.
+     */
+    Promise<Response, SFTPException> makeDirAsync(String path) throws IOException {
+        return request(newRequest(PacketType.MKDIR).putString(path, sub.getRemoteCharset()).putFileAttributes(FileAttributes.EMPTY));
+    }
+
+    @Override
+    public SftpRemoteFile open(String path, Set<OpenMode> modes, FileAttributes fa) throws IOException {
+        Request request = newRequest(PacketType.OPEN)
+                .putString(path, sub.getRemoteCharset())
+                .putUInt32(OpenMode.toMask(modes))
+                .putFileAttributes(fa);
+        byte[] handle = request(request)
+                .retrieve(getTimeoutMs(), TimeUnit.MILLISECONDS)
+                .ensurePacketTypeIs(PacketType.HANDLE)
+                .readBytes();
+        return new SftpRemoteFile(this, path, handle);
+    }
+
+    @Override
+    public SftpRemoteDirectory openDir(String path) throws IOException {
+        Request request = newRequest(PacketType.OPENDIR)
+                .putString(path, sub.getRemoteCharset());
+        byte[] handle = request(request)
+                .retrieve(getTimeoutMs(), TimeUnit.MILLISECONDS)
+                .ensurePacketTypeIs(PacketType.HANDLE)
+                .readBytes();
+        return new SftpRemoteDirectory(this, path, handle);
+    }
+}
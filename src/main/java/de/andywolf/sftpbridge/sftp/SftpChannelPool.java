@@ -0,0 +1,153 @@
+package de.andywolf.sftpbridge.sftp;
+
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.sshj.sftp.SFTPClient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps up to <code>maxChannels</code> additional SFTP channels of a {@link SftpConnection}, opened on its SSH
+ * session as they are needed, so that streams and listings running at the same time do not share the flow control of
+ * one channel and reuse channels instead of opening one each time.
+ * <p/>
+ * The pool never blocks: if all channels are borrowed, {@link #borrow()} returns <code>null</code> and the caller
+ * falls back to the shared channel, which serves concurrent requests as well. So a caller that already holds a
+ * channel cannot deadlock waiting for another one.
+ * <p/>
+ * The channels live as long as the SSH session: when the connection is closed, the idle channels are closed and the
+ * borrowed ones are dropped when they are handed back. All methods are thread-safe.
+ */
+@Slf4j
+@ToString(onlyExplicitlyIncluded = true)
+class SftpChannelPool implements Closeable {
+
+    private final SftpConnection connection;
+
+    @ToString.Include
+    private final int maxChannels;
+
+    private final Deque<SFTPClient> idle = new ArrayDeque<>();
+
+    private final Set<SFTPClient> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /** The number of channels borrowed or idle, including those being opened */
+    @ToString.Include
+    private int open;
+
+    /**
+     * @param connection  the connection to open the channels on.
+     * @param maxChannels the maximum number of channels open at the same time.
+     */
+    SftpChannelPool(SftpConnection connection, int maxChannels) {
+        this.connection = connection;
+        this.maxChannels = maxChannels;
+    }
+
+    /**
+     * Borrows an idle channel or opens a new one.
+     *
+     * @return a channel of its own, which has to be handed back with {@link #release(SFTPClient)}, or
+     * <code>null</code> if all channels are borrowed.
+     * @throws IOException if a new channel cannot be opened.
+     */
+    SFTPClient borrow() throws IOException {
+        List<SFTPClient> lost = new ArrayList<>();
+        try {
+            synchronized (this) {
+                SFTPClient channel;
+                while ((channel = idle.pollLast()) != null) {
+                    if (isOpen(channel)) {
+                        borrowed.add(channel);
+                        return channel;
+                    }
+                    open--;
+                    lost.add(channel);
+                }
+                if (open >= maxChannels) {
+                    return null;
+                }
+                // reserve the slot, the channel is opened outside of the lock
+                open++;
+            }
+        } finally {
+            for (SFTPClient channel : lost) {
+                closeQuietly(channel);
+            }
+        }
+
+        SFTPClient channel;
+        try {
+            channel = connection.openSftpClient();
+        } catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                open--;
+            }
+            throw e;
+        }
+        synchronized (this) {
+            borrowed.add(channel);
+        }
+        return channel;
+    }
+
+    /**
+     * Hands a borrowed channel back. A channel that has been closed in the meantime is dropped, a channel not borrowed
+     * from this pool is ignored.
+     *
+     * @param channel the channel.
+     */
+    void release(SFTPClient channel) {
+        boolean discard;
+        synchronized (this) {
+            if (!borrowed.remove(channel)) {
+                return;
+            }
+            discard = !isOpen(channel);
+            if (discard) {
+                open--;
+            } else {
+                idle.addLast(channel);
+            }
+        }
+        if (discard) {
+            closeQuietly(channel);
+        }
+    }
+
+    /**
+     * Closes the idle channels.
+     */
+    @Override
+    public void close() {
+        List<SFTPClient> channels;
+        synchronized (this) {
+            channels = new ArrayList<>(idle);
+            open -= idle.size();
+            idle.clear();
+        }
+        for (SFTPClient channel : channels) {
+            closeQuietly(channel);
+        }
+    }
+
+    private static boolean isOpen(SFTPClient channel) {
+        return channel.getSFTPEngine().getSubsystem().isOpen();
+    }
+
+    private static void closeQuietly(SFTPClient channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("IOException while closing SFTP channel", e);
+        }
+    }
+}
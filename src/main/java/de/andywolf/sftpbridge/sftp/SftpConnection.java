@@ -5,6 +5,7 @@ import de.andywolf.sftpbridge.RuntimeIOException;
 import de.andywolf.sftpbridge.base.Connection;
 import de.andywolf.sftpbridge.base.Directory;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.ListingCache;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
 import net.schmizz.keepalive.KeepAliveProvider;
@@ -58,33 +59,107 @@ public class SftpConnection implements Connection {
     @NonNull
     private final ConnectionOptions options;
 
-    @Getter
     private SFTPClient sharedSftpClient;
     private SSHClient sshClient;
 
+    /** The additional SFTP channels of streams and listings */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final SftpChannelPool channelPool;
+
+    /** The limits of the server, queried on first use */
+    @EqualsAndHashCode.Exclude
+    private SftpServerLimits serverLimits;
+
+    /** The cache of directory listings, null if disabled */
+    @Getter
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private final ListingCache listingCache;
+
     private volatile boolean isConnected;
 
+    /** Whether the connection is opened by its first operation, until it is opened or closed */
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private volatile boolean connectPending;
+
 
     // Constructor
 
     public SftpConnection(ConnectionOptions options) {
         this.options = options;
+        this.listingCache = ListingCache.fromOptions(options);
+        this.channelPool = new SftpChannelPool(this, Math.max(0, options.getInteger(SFTP_MAX_CHANNELS, SFTP_MAX_CHANNELS_DEFAULT)));
+        this.connectPending = options.getBoolean(LAZY_CONNECT, LAZY_CONNECT_DEFAULT);
     }
 
     public void connect() {
+        SSHClient client = connnectSSH();
         try {
             // TODO: Optimize exception handling
-            SSHClient client = connnectSSH();
             authenticateSSH(client);
             connectSFTP(client);
-
-            this.sshClient = client;
-            this.isConnected = true;
         } catch (SSHException e) {
+            disconnectQuietly(client);
             throw new RuntimeIOException("Cannot connect to " + this, e);
+        } catch (RuntimeException e) {
+            disconnectQuietly(client);
+            throw e;
+        }
+
+        this.sshClient = client;
+        this.isConnected = true;
+        // only once connected, so that the next operation tries again after a failed lazy connect
+        this.connectPending = false;
+    }
+
+    private void disconnectQuietly(SSHClient client) {
+        try {
+            client.disconnect();
+        } catch (IOException e) {
+            log.warn("IOException while disconnecting from {}", this, e);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the SSH session is connected and authenticated and the shared SFTP channel is open.
+     */
+    @Override
+    public boolean isConnected() {
+        if (!isConnected || !sshClient.isConnected() || !sshClient.isAuthenticated()) {
+            return false;
+        }
+        SFTPClient sftpClient = sharedSftpClient;
+        return sftpClient == null || sftpClient.getSFTPEngine().getSubsystem().isOpen();
+    }
+
+    /**
+     * With {@link ConnectionOptions#LAZY_CONNECT}, connects on the first operation that needs the SSH session.
+     */
+    private void connectLazily() {
+        if (connectPending) {
+            synchronized (this) {
+                if (connectPending) {
+                    log.debug("Connecting lazily to {}", this);
+                    connect();
+                }
+            }
         }
     }
 
+    /**
+     * @return the SFTP client of the channel shared by all single requests of this connection.
+     */
+    public SFTPClient getSharedSftpClient() {
+        connectLazily();
+        SFTPClient sftpClient = sharedSftpClient;
+        if (sftpClient == null) {
+            throw new IllegalStateException("Cannot use SFTP channel, " + this + " is not connected");
+        }
+        return sftpClient;
+    }
+
     private SSHClient connnectSSH() {
         int connectionTimeoutMillis = options.getInteger(CONNECTION_TIMEOUT_MILLIS, CONNECTION_TIMEOUT_MILLIS_DEFAULT);
         int socketTimeoutMillis = options.getInteger(SOCKET_TIMEOUT_MILLIS, SOCKET_TIMEOUT_MILLIS_DEFAULT);
@@ -143,22 +218,66 @@ public class SftpConnection implements Connection {
             log.debug("Opening SFTP client to {}", this);
 
             try {
-                sharedSftpClient = sshClient.newSFTPClient();
+                sharedSftpClient = newSftpClient(sshClient);
             } catch (IOException e) {
                 throw new RuntimeIOException(format("Cannot start SFTP session for %s", this), e);
             }
         }
     }
 
+    private static SFTPClient newSftpClient(@NonNull final SSHClient sshClient) throws IOException {
+        return new SFTPClient(new ExtendedSftpEngine(sshClient).init());
+    }
+
+    /**
+     * Opens an additional SFTP channel on the SSH session of this connection. The caller has to close it.
+     *
+     * @return the SFTP client of the new channel.
+     * @throws IOException if the channel cannot be opened.
+     */
+    SFTPClient openSftpClient() throws IOException {
+        connectLazily();
+        if (!isConnected) {
+            throw new IllegalStateException("Cannot open SFTP channel, " + this + " is not connected");
+        }
+        log.debug("Opening additional SFTP channel to {}", this);
+        return newSftpClient(sshClient);
+    }
+
+    /**
+     * Borrows an SFTP channel of its own for a stream or a listing, so that it does not queue behind the transfers of
+     * other streams on the shared channel. If all pooled channels are in use, the shared channel is returned.
+     *
+     * @return the SFTP client of the channel, to be handed back with {@link #releaseSftpClient(SFTPClient)}.
+     * @throws IOException if a new channel cannot be opened.
+     */
+    SFTPClient borrowSftpClient() throws IOException {
+        connectLazily();
+        SFTPClient channel = channelPool.borrow();
+        return channel != null ? channel : getSharedSftpClient();
+    }
+
+    /**
+     * Hands back an SFTP channel borrowed with {@link #borrowSftpClient()}.
+     *
+     * @param sftpClient the SFTP client of the channel.
+     */
+    void releaseSftpClient(SFTPClient sftpClient) {
+        channelPool.release(sftpClient);
+    }
+
     /**
      * Closes the connection.
      */
     @Override
     public final void close() {
+        connectPending = false;
         if (!isConnected) {
             return;
         }
 
+        channelPool.close();
+
         if (sharedSftpClient != null) {
             log.debug("Closing SFTP client to {}", this);
 
@@ -169,6 +288,7 @@ public class SftpConnection implements Connection {
             }
 
             sharedSftpClient = null;
+            serverLimits = null;
         }
 
         if (sshClient != null) {
@@ -184,6 +304,10 @@ public class SftpConnection implements Connection {
             sshClient = null;
         }
 
+        if (listingCache != null) {
+            listingCache.clear();
+        }
+
         log.info("Disconnected from {}", this);
 
         isConnected = false;
@@ -210,6 +334,67 @@ public class SftpConnection implements Connection {
         return options.getInteger(REMOTE_COPY_BUFFER_SIZE, REMOTE_COPY_BUFFER_SIZE_DEFAULT);
     }
 
+    /**
+     * @return the number of read requests sent ahead without waiting for their replies, <code>0</code> to send one
+     * request at a time.
+     */
+    public int getReadAheadRequests() {
+        return options.getInteger(SFTP_READ_AHEAD_REQUESTS, SFTP_READ_AHEAD_REQUESTS_DEFAULT);
+    }
+
+    /**
+     * @return the length of a single read request, limited to the maximum read length the server advertises.
+     */
+    public int getReadSize() {
+        return getServerLimits().clampReadSize(options.getInteger(SFTP_READ_SIZE, SFTP_READ_SIZE_DEFAULT));
+    }
+
+    /**
+     * @return the number of write requests sent without waiting for their replies, <code>0</code> to wait for the
+     * reply to every request.
+     */
+    public int getMaxUnconfirmedWrites() {
+        return options.getInteger(SFTP_MAX_UNCONFIRMED_WRITES, SFTP_MAX_UNCONFIRMED_WRITES_DEFAULT);
+    }
+
+    /**
+     * @return the length of a single write request, limited to the maximum write length the server advertises.
+     */
+    public int getWriteSize() {
+        return getServerLimits().clampWriteSize(options.getInteger(SFTP_WRITE_SIZE, SFTP_WRITE_SIZE_DEFAULT));
+    }
+
+    /**
+     * @return the number of remove requests a recursive delete sends without waiting for their replies.
+     */
+    public int getMaxPendingDeletes() {
+        return Math.max(1, options.getInteger(SFTP_MAX_PENDING_DELETES, SFTP_MAX_PENDING_DELETES_DEFAULT));
+    }
+
+    /**
+     * @return the number of SFTP channels a large file is downloaded with, <code>1</code> to read every file over the
+     * shared channel only.
+     */
+    public int getDownloadChannels() {
+        return options.getInteger(SFTP_DOWNLOAD_CHANNELS, SFTP_DOWNLOAD_CHANNELS_DEFAULT);
+    }
+
+    /**
+     * @return the size of the byte ranges read by the channels of a download. Files up to this size are read over the
+     * shared channel only.
+     */
+    public int getDownloadRangeSize() {
+        return options.getInteger(SFTP_DOWNLOAD_RANGE_SIZE, SFTP_DOWNLOAD_RANGE_SIZE_DEFAULT);
+    }
+
+    synchronized SftpServerLimits getServerLimits() {
+        if (serverLimits == null) {
+            serverLimits = SftpServerLimits.query((ExtendedSftpEngine) getSharedSftpClient().getSFTPEngine());
+            log.debug("Using {} for {}", serverLimits, this);
+        }
+        return serverLimits;
+    }
+
 
     // Utilities
 
@@ -1,19 +1,30 @@
 package de.andywolf.sftpbridge.sftp;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ListingCache;
+import de.andywolf.sftpbridge.util.PagedIterator;
 import de.andywolf.sftpbridge.util.Utils;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NonNull;
 import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.PacketType;
 import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
 
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static java.lang.String.format;
 
@@ -65,10 +76,22 @@ class SftpDirectory implements Directory {
 
     @Override
     public boolean exists() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            Boolean cached = cache.getExistence(getFullDirectoryPath());
+            if (cached != null) {
+                return cached;
+            }
+        }
+
         log.debug("Checking {} for existence", this);
 
         try {
-            return connection.getSharedSftpClient().statExistence(getFullDirectoryPath()) != null;
+            boolean exists = connection.getSharedSftpClient().statExistence(getFullDirectoryPath()) != null;
+            if (cache != null) {
+                cache.putExistence(getFullDirectoryPath(), exists);
+            }
+            return exists;
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot check existence of file %s", this), e);
         }
@@ -79,54 +102,174 @@ class SftpDirectory implements Directory {
 
     @Override
     public List<File> listFiles() {
-        log.debug("Listing files in directory {}", this);
+        return Utils.toList(iterateFiles());
+    }
 
-        try {
-            // read files from host
-            List<RemoteResourceInfo> ls = connection.getSharedSftpClient().ls(getFullDirectoryPath());
+    @Override
+    public List<Directory> listSubDirectories() {
+        return Utils.toList(iterateSubDirectories());
+    }
+
+    @Override
+    public CloseableIterator<File> iterateFiles() {
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterateFiles(cached);
+        }
 
-            // copy files to list, skipping . and ..
-            List<File> files = new ArrayList<>();
-            for (RemoteResourceInfo l : ls) {
+        log.debug("Listing files in directory {}", this);
 
+        return new ListingIterator<File>() {
+            @Override
+            protected void addEntry(RemoteResourceInfo entry, List<File> page) {
                 // Skipping sub-directories
-                if(l.isRegularFile()) {
-                    String filename = l.getName();
-                    if (filename.equals(".") || filename.equals("..")) {
-                        continue;
-                    }
-                    files.add(getFile(filename));
+                if (entry.isRegularFile()) {
+                    page.add(newFile(entry));
                 }
             }
+        };
+    }
 
-            return files;
-        } catch (IOException e) {
-            throw new RuntimeIOException(format("Cannot list files in directory %s", this), e);
+    @Override
+    public CloseableIterator<Directory> iterateSubDirectories() {
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterateSubDirectories(cached);
         }
+
+        log.debug("Listing sub-directories in directory {}", this);
+
+        return new ListingIterator<Directory>() {
+            @Override
+            protected void addEntry(RemoteResourceInfo entry, List<Directory> page) {
+                if (entry.isDirectory()) {
+                    page.add(getSubDirectory(entry.getName()));
+                }
+            }
+        };
     }
 
     @Override
-    public List<Directory> listSubDirectories() {
-        log.debug("Listing sub-directories in directory {}", this);
+    public CloseableIterator<DirectoryEntry> iterateEntries() {
+        List<DirectoryEntry> cached = cachedEntries();
+        if (cached != null) {
+            return Utils.iterate(cached);
+        }
+        return listEntries();
+    }
 
-        try {
-            // read files from host
-            List<RemoteResourceInfo> ls = connection.getSharedSftpClient().ls(getFullDirectoryPath());
+    @Override
+    public CloseableIterator<DirectoryEntry> iterateEntries(String namePrefix) {
+        if (namePrefix.isEmpty() || connection.getListingCache() != null) {
+            return Directory.super.iterateEntries(namePrefix);
+        }
+        return listEntries(namePrefix);
+    }
 
-            // copy files to list, skipping . and ..
-            List<Directory> directories = new ArrayList<>();
-            for (RemoteResourceInfo l : ls) {
+    /**
+     * With a listing cache, returns the cached entries of this directory, listing the whole directory first if they
+     * are not cached.
+     *
+     * @return the entries of this directory or <code>null</code> if the connection does not cache listings.
+     */
+    private List<DirectoryEntry> cachedEntries() {
+        ListingCache cache = connection.getListingCache();
+        if (cache == null) {
+            return null;
+        }
 
-                // Skipping sub-directories
-                if(l.isDirectory()) {
-                    String dirname = l.getName();
-                    directories.add(getSubDirectory(dirname));
+        List<DirectoryEntry> entries = cache.getListing(getFullDirectoryPath());
+        if (entries == null) {
+            entries = Utils.toList(listEntries());
+            cache.putListing(getFullDirectoryPath(), entries);
+        }
+        return entries;
+    }
+
+    private CloseableIterator<DirectoryEntry> listEntries() {
+        return listEntries("");
+    }
+
+    /**
+     * Lists the entries whose names start with a prefix. The other entries are skipped before any {@link File} is
+     * created for them.
+     */
+    private CloseableIterator<DirectoryEntry> listEntries(String namePrefix) {
+        log.debug("Listing directory {}", this);
+
+        return new ListingIterator<DirectoryEntry>() {
+            @Override
+            protected void addEntry(RemoteResourceInfo entry, List<DirectoryEntry> page) {
+                if (!entry.getName().startsWith(namePrefix)) {
+                    return;
+                }
+                if (entry.isRegularFile()) {
+                    page.add(DirectoryEntry.of(newFile(entry)));
+                } else if (entry.isDirectory()) {
+                    page.add(DirectoryEntry.of(getSubDirectory(entry.getName())));
                 }
             }
+        };
+    }
 
-            return directories;
-        } catch (IOException e) {
-            throw new RuntimeIOException(format("Cannot list sub-directories in directory %s", this), e);
+    private File newFile(RemoteResourceInfo entry) {
+        return new SftpFile(connection, this, entry.getName(), SftpFile.toMetadata(entry.getAttributes()));
+    }
+
+    /**
+     * Lists this directory one <code>READDIR</code> reply at a time through an open directory handle, on an SFTP
+     * channel borrowed from the connection until the iterator is closed.
+     */
+    private abstract class ListingIterator<T> extends PagedIterator<T> {
+
+        private final SFTPClient sftpClient;
+        private final SftpRemoteDirectory remoteDirectory;
+
+        private ListingIterator() {
+            SFTPClient borrowed = null;
+            try {
+                borrowed = connection.borrowSftpClient();
+                this.remoteDirectory = (SftpRemoteDirectory) borrowed.getSFTPEngine().openDir(getFullDirectoryPath());
+                this.sftpClient = borrowed;
+            } catch (IOException e) {
+                if (borrowed != null) {
+                    connection.releaseSftpClient(borrowed);
+                }
+                throw new RuntimeIOException(format("Cannot list directory %s", SftpDirectory.this), e);
+            }
+        }
+
+        protected abstract void addEntry(RemoteResourceInfo entry, List<T> page);
+
+        @Override
+        protected List<T> nextPage() {
+            List<RemoteResourceInfo> entries;
+            try {
+                entries = remoteDirectory.readBatch();
+            } catch (IOException e) {
+                close();
+                throw new RuntimeIOException(format("Cannot list directory %s", SftpDirectory.this), e);
+            }
+            if (entries == null) {
+                return null;
+            }
+
+            List<T> page = new ArrayList<>();
+            for (RemoteResourceInfo entry : entries) {
+                addEntry(entry, page);
+            }
+            return page;
+        }
+
+        @Override
+        protected void release() {
+            try {
+                remoteDirectory.close();
+            } catch (IOException e) {
+                log.warn("IOException while closing directory {}", SftpDirectory.this, e);
+            } finally {
+                connection.releaseSftpClient(sftpClient);
+            }
         }
     }
 
@@ -142,6 +285,8 @@ class SftpDirectory implements Directory {
                 connection.getSharedSftpClient().rmdir(getFullDirectoryPath());
             } catch (IOException e) {
                 throw new RuntimeIOException(format("Cannot delete directory %s", this), e);
+            } finally {
+                invalidateCache();
             }
         }
     }
@@ -156,40 +301,119 @@ class SftpDirectory implements Directory {
             connection.getSharedSftpClient().mkdir(getFullDirectoryPath());
         } catch (IOException e) {
             throw new RuntimeIOException(format("Cannot create directory %s", this), e);
+        } finally {
+            invalidateCache();
+        }
+    }
+
+    private void invalidateCache() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidate(getFullDirectoryPath());
         }
     }
 
+    /**
+     * Creates this directory and its missing parents in a single round trip: the SSH_FXP_MKDIR requests for all
+     * directories from the top are sent without waiting for their replies, followed by an SSH_FXP_STAT request for
+     * this directory. The server handles them in order, so the requests for existing directories simply fail and the
+     * final check tells whether this directory exists.
+     */
+    @Override
+    public void mkdirs() {
+        if (pathComponents.isEmpty()) {
+            return;
+        }
+        log.debug("Creating directory {} with its parents", this);
+
+        ExtendedSftpEngine engine = (ExtendedSftpEngine) connection.getSharedSftpClient().getSFTPEngine();
+        try {
+            // the requests are pipelined, which relies on the server executing them in order; if the directory is
+            // still missing, a server that does not has failed a level before its parent existed, so the levels are
+            // created once more one after the other
+            if (!makeDirs(engine, true)) {
+                log.debug("Creating directory {} level by level", this);
+                makeDirs(engine, false);
+            }
+        } finally {
+            ListingCache cache = connection.getListingCache();
+            if (cache != null) {
+                for (int i = 1; i <= pathComponents.size(); i++) {
+                    cache.invalidate(Utils.joinPath(pathComponents.subList(0, i)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a MKDIR for each level of this directory and a STAT for the directory itself.
+     *
+     * @param engine    the engine to send the requests with.
+     * @param pipelined whether to send all requests at once or to wait for each reply before sending the next request.
+     * @return whether the directory exists afterwards, <code>false</code> if it is still missing after pipelined
+     * requests.
+     */
+    private boolean makeDirs(ExtendedSftpEngine engine, boolean pipelined) {
+        List<Promise<Response, SFTPException>> replies = new ArrayList<>();
+        Response lastReply = null;
+        Response stat;
+        try {
+            for (int i = 1; i <= pathComponents.size(); i++) {
+                String path = Utils.joinPath(pathComponents.subList(0, i));
+                Promise<Response, SFTPException> reply = engine.makeDirAsync(path);
+                if (pipelined) {
+                    replies.add(reply);
+                } else {
+                    lastReply = reply.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+                }
+            }
+            Promise<Response, SFTPException> statReply = engine.requestAsync(PacketType.STAT, getFullDirectoryPath());
+            for (Promise<Response, SFTPException> reply : replies) {
+                lastReply = reply.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            }
+            stat = statReply.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (IOException e) {
+            throw new RuntimeIOException(format("Cannot create directory %s", this), e);
+        }
+
+        if (stat.getType() == PacketType.ATTRS) {
+            return true;
+        }
+        if (pipelined) {
+            return false;
+        }
+        try {
+            lastReply.ensureStatusPacketIsOK();
+        } catch (IOException e) {
+            throw new RuntimeIOException(format("Cannot create directory %s", this), e);
+        }
+        throw new RuntimeIOException(format("Cannot create directory %s", this));
+    }
+
     @Override
     public File getFile(String name) {
         return connection.getFile(this, name);
     }
 
+    @Override
+    public File getFile(String name, FileMetadata metadata) {
+        return new SftpFile(connection, this, name, metadata);
+    }
+
     @Override
     public void deleteRecursively() {
-        RuntimeIOException accumulator = new RuntimeIOException("Cannot delete " + this + ", not all children are deleted.");
-        for (File each : listFiles()) {
-            try {
-                each.delete();
-            } catch (RuntimeIOException rio) {
-                log.warn("Unable to delete child {}. Continue...", each);
-                accumulator.addSuppressed(rio);
-            }
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidateTree(getFullDirectoryPath());
         }
 
-        for (Directory each : listSubDirectories()) {
-            try {
-                each.deleteRecursively();
-            } catch (RuntimeIOException rio) {
-                log.warn("Unable to delete child {}. Continue...", each);
-                accumulator.addSuppressed(rio);
+        try {
+            new SftpTreeDeleter(connection).delete(this);
+        } finally {
+            // the deleter's listings have been cached again
+            if (cache != null) {
+                cache.invalidateTree(getFullDirectoryPath());
             }
         }
-
-        Throwable[] suppressed = accumulator.getSuppressed();
-        if (suppressed == null || suppressed.length == 0) {
-            delete();
-        } else {
-            throw accumulator;
-        }
     }
 }
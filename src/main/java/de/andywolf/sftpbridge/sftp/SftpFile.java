@@ -2,9 +2,12 @@ package de.andywolf.sftpbridge.sftp;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ListingCache;
 import de.andywolf.sftpbridge.util.Utils;
 import lombok.*;
 import lombok.extern.slf4j.Slf4j;
+import net.schmizz.sshj.sftp.FileAttributes;
 import net.schmizz.sshj.sftp.OpenMode;
 import net.schmizz.sshj.sftp.RemoteFile;
 import net.schmizz.sshj.sftp.SFTPClient;
@@ -36,10 +39,32 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
     @NonNull
     protected final String fileName;
 
+    /**
+     * The metadata taken from the listing this file was found in or fetched last, if any
+     */
+    @EqualsAndHashCode.Exclude
+    private volatile FileMetadata metadata;
+
     public SftpFile(SftpConnection connection, SftpDirectory directory, String fileName) {
+        this(connection, directory, fileName, null);
+    }
+
+    SftpFile(SftpConnection connection, SftpDirectory directory, String fileName, FileMetadata metadata) {
         this.connection = connection;
         this.directory = directory;
         this.fileName = fileName;
+        this.metadata = metadata;
+    }
+
+    /**
+     * The modification time is reported as source modification time as well: a copy sets it to that of its source, so
+     * it equals the source modification time until someone else writes the file.
+     */
+    static FileMetadata toMetadata(FileAttributes attributes) {
+        int permissions = attributes.has(FileAttributes.Flag.MODE)
+                ? attributes.getMode().getPermissionsMask() : FileMetadata.PERMISSIONS_UNKNOWN;
+        long lastModified = attributes.getMtime() * 1000L;
+        return new FileMetadata(attributes.getSize(), lastModified, null, permissions, lastModified);
     }
 
     @Override
@@ -49,13 +74,38 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
 
     @Override
     public InputStream getInputStream() {
-        log.debug("Opening SFTP input stream for {}", this);
+        return getInputStream(0);
+    }
 
+    @Override
+    public InputStream getInputStream(long offset) {
+        log.debug("Opening SFTP input stream for {} at offset {}", this, offset);
+
+        SFTPClient borrowed = null;
         try {
             //connection.connect();
-            final SFTPClient sftp = connection.getSharedSftpClient();
+            final SFTPClient sftp = borrowed = connection.borrowSftpClient();
             final RemoteFile remoteFile = sftp.open(getFullFilePath(), EnumSet.of(OpenMode.READ));
-            final InputStream wrapped = remoteFile.new RemoteFileInputStream();
+
+            final int downloadChannels = connection.getDownloadChannels();
+            if (downloadChannels > 1 && offset == 0) {
+                long length = remoteFile.length();
+                int rangeSize = connection.getDownloadRangeSize();
+                if (length > rangeSize) {
+                    log.debug("Reading [{}] of [{}] bytes over [{}] channels in ranges of [{}] bytes", this, length, downloadChannels, rangeSize);
+                    return SftpRangedInputStream.open(connection, sftp, remoteFile, length, downloadChannels, rangeSize);
+                }
+            }
+
+            final int readAheadRequests = connection.getReadAheadRequests();
+            final int readSize = connection.getReadSize();
+            final InputStream wrapped;
+            if (readAheadRequests > 0) {
+                log.debug("Reading [{}] with [{}] requests of size [{}] ahead", this, readAheadRequests, readSize);
+                wrapped = remoteFile.new ReadAheadRemoteFileInputStream(readAheadRequests, offset);
+            } else {
+                wrapped = remoteFile.new RemoteFileInputStream(offset);
+            }
 
             InputStream is = new InputStream() {
 
@@ -66,12 +116,13 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
 
                 @Override
                 public int read(byte[] b) throws IOException {
-                    return wrapped.read(b);
+                    return read(b, 0, b.length);
                 }
 
                 @Override
                 public int read(byte[] b, int off, int len) throws IOException {
-                    return wrapped.read(b, off, len);
+                    // The length of a read request follows the length asked for here
+                    return wrapped.read(b, off, Math.min(len, readSize));
                 }
 
                 @Override
@@ -101,7 +152,7 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
 
                 @Override
                 public void close() throws IOException {
-                    log.info("Closing SFTP input stream for {}", SftpFile.this);
+                    log.debug("Closing SFTP input stream for {}", SftpFile.this);
                     try {
                         wrapped.close();
                     } finally {
@@ -110,7 +161,7 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
                         } catch (IOException e) {
                             log.warn("IOException while closing remote file", e);
                         }
-                        connection.close();
+                        connection.releaseSftpClient(sftp);
                     }
                 }
             };
@@ -119,19 +170,41 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
             log.debug("Using buffer of size [{}] for streaming from [{}]", streamBufferSize, this);
             return new BufferedInputStream(is, streamBufferSize);
         } catch (IOException e) {
+            if (borrowed != null) {
+                connection.releaseSftpClient(borrowed);
+            }
             throw new RuntimeIOException("Cannot read from file " + this, e);
         }
     }
 
     @Override
     public OutputStream getOutputStream() {
+        return getOutputStream(null);
+    }
+
+    /**
+     * Returns an output stream that sets the modification time of this file to that of the source once it is closed,
+     * which {@link #toMetadata(FileAttributes)} then reports as the source modification time.
+     */
+    @Override
+    public OutputStream getOutputStream(FileMetadata source) {
         log.debug("Opening SFTP ouput stream for {}", this);
+        metadata = null;
 
+        SFTPClient borrowed = null;
         try {
             //connection.connect();
-            final SFTPClient sftp = connection.getSharedSftpClient();
+            final SFTPClient sftp = borrowed = connection.borrowSftpClient();
             final RemoteFile remoteFile = sftp.open(getFullFilePath(), EnumSet.of(OpenMode.CREAT, OpenMode.WRITE, OpenMode.TRUNC));
-            final OutputStream wrapped = remoteFile.new RemoteFileOutputStream();
+            final int maxUnconfirmedWrites = connection.getMaxUnconfirmedWrites();
+            final OutputStream wrapped;
+            if (maxUnconfirmedWrites > 0 && remoteFile instanceof SftpRemoteFile) {
+                int writeSize = connection.getWriteSize();
+                log.debug("Writing [{}] with up to [{}] unconfirmed requests of size [{}]", this, maxUnconfirmedWrites, writeSize);
+                wrapped = new WindowedRemoteFileOutputStream((SftpRemoteFile) remoteFile, maxUnconfirmedWrites, writeSize);
+            } else {
+                wrapped = remoteFile.new RemoteFileOutputStream();
+            }
 
             OutputStream os = new OutputStream() {
 
@@ -157,16 +230,23 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
 
                 @Override
                 public void close() throws IOException {
-                    log.info("Closing SFTP output stream for {}", SftpFile.this);
+                    log.debug("Closing SFTP output stream for {}", SftpFile.this);
                     try {
-                        wrapped.close();
-                    } finally {
                         try {
-                            remoteFile.close();
-                        } catch (IOException e) {
-                            log.warn("IOException while closing remote file", e);
+                            wrapped.close();
+                        } finally {
+                            try {
+                                remoteFile.close();
+                            } catch (IOException e) {
+                                log.warn("IOException while closing remote file", e);
+                            }
                         }
-                        connection.close();
+                        if (source != null && source.getLastModified() > 0) {
+                            setLastModified(sftp, source.getLastModified());
+                        }
+                    } finally {
+                        connection.releaseSftpClient(sftp);
+                        invalidateCachedListing();
                     }
                 }
             };
@@ -175,21 +255,55 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
             log.debug("Using buffer of size [{}] for streaming to [{}]", streamBufferSize, this);
             return new BufferedOutputStream(os, streamBufferSize);
         } catch (IOException e) {
+            if (borrowed != null) {
+                connection.releaseSftpClient(borrowed);
+            }
             throw new RuntimeIOException(format("Cannot write to %s", this), e);
         }
     }
 
+    /**
+     * Sets the modification time, to the second. A server that refuses is logged only, the next sync then copies the
+     * file again.
+     */
+    private void setLastModified(SFTPClient sftp, long lastModified) {
+        long seconds = lastModified / 1000L;
+        try {
+            sftp.setattr(getFullFilePath(), new FileAttributes.Builder().withAtimeMtime(seconds, seconds).build());
+        } catch (IOException e) {
+            log.warn("Cannot set modification time of {}", this, e);
+        }
+    }
+
     @Override
-    public boolean exists() {
-        log.debug("Checking {} for existence", this);
+    public FileMetadata getMetadata() {
+        FileMetadata cached = metadata;
+        return cached != null ? cached : refreshMetadata();
+    }
 
+    @Override
+    public FileMetadata refreshMetadata() {
+        log.debug("Fetching metadata of {}", this);
         try {
-            return connection.getSharedSftpClient().statExistence(getFullFilePath()) != null;
+            FileAttributes attributes = connection.getSharedSftpClient().statExistence(getFullFilePath());
+            FileMetadata fetched = attributes == null ? null : toMetadata(attributes);
+            metadata = fetched;
+            return fetched;
         } catch (IOException e) {
-            throw new RuntimeIOException(format("Cannot check existence of file %s", this), e);
+            throw new RuntimeIOException(format("Cannot fetch metadata of file %s", this), e);
         }
     }
 
+    @Override
+    public boolean exists() {
+        if (metadata != null) {
+            return true;
+        }
+
+        log.debug("Checking {} for existence", this);
+        return refreshMetadata() != null;
+    }
+
 
     // Deleting
 
@@ -200,10 +314,20 @@ class SftpFile implements de.andywolf.sftpbridge.base.File {
 
             try {
                 connection.getSharedSftpClient().rm(getFullFilePath());
+                metadata = null;
             } catch (IOException e) {
                 throw new RuntimeIOException(format("Cannot delete file %s", this), e);
+            } finally {
+                invalidateCachedListing();
             }
         }
     }
 
+    private void invalidateCachedListing() {
+        ListingCache cache = connection.getListingCache();
+        if (cache != null) {
+            cache.invalidateListing(directory.getFullDirectoryPath());
+        }
+    }
+
 }
@@ -0,0 +1,214 @@
+package de.andywolf.sftpbridge.sftp;
+
+import de.andywolf.sftpbridge.util.ParallelRangeInputStream;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.OpenMode;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPClient;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a remote file over several pooled SFTP channels of the same SSH session, each channel reading other byte
+ * ranges.
+ * <p/>
+ * Every channel has its own handle of the file and reads one range at a time, sending up to
+ * <code>readAheadRequests</code> read requests at once but none past the end of the range. The ranges are returned in
+ * order.
+ */
+@Slf4j
+@ToString(of = "path", callSuper = false)
+class SftpRangedInputStream extends ParallelRangeInputStream {
+
+    private final String path;
+    private final int readAheadRequests;
+    private final int readSize;
+    private final int timeoutMs;
+
+    /** The handles not reading a range at the moment */
+    private final BlockingQueue<RemoteFile> idleHandles;
+    private final int handleCount;
+
+    /** The handles to close and the channels to hand back with the stream */
+    private final List<Closeable> resources;
+
+    private SftpRangedInputStream(String path, long length, int rangeSize, int readAheadRequests, int readSize,
+                                  int timeoutMs, List<RemoteFile> handles, List<Closeable> resources) {
+        super(length, rangeSize, handles.size());
+        this.path = path;
+        this.readAheadRequests = readAheadRequests;
+        this.readSize = readSize;
+        this.timeoutMs = timeoutMs;
+        this.idleHandles = new ArrayBlockingQueue<>(handles.size(), false, handles);
+        this.handleCount = handles.size();
+        this.resources = resources;
+    }
+
+    /**
+     * Borrows the additional channels from the connection and opens the file on each of them.
+     *
+     * @param connection   the connection to borrow the channels from.
+     * @param sftpClient   the channel the file is opened on, handed back to the connection with the stream.
+     * @param remoteFile   the file, already opened on <code>sftpClient</code>. Closed with the stream.
+     * @param length       the length of the file.
+     * @param channelCount the number of channels to read from, including <code>sftpClient</code>.
+     * @param rangeSize    the size of each range.
+     * @return the stream.
+     * @throws IOException if a channel or a handle cannot be opened. The file is closed and all borrowed channels
+     *                     except <code>sftpClient</code> are handed back.
+     */
+    static SftpRangedInputStream open(SftpConnection connection, SFTPClient sftpClient, RemoteFile remoteFile, long length,
+                                      int channelCount, int rangeSize) throws IOException {
+        List<RemoteFile> handles = new ArrayList<>();
+        List<Closeable> resources = new ArrayList<>();
+        handles.add(remoteFile);
+        resources.add(remoteFile);
+        try {
+            for (int i = 1; i < channelCount; i++) {
+                // the shared channel if the pool is exhausted, which then serves another handle
+                SFTPClient channel = connection.borrowSftpClient();
+                resources.add(() -> connection.releaseSftpClient(channel));
+                RemoteFile handle = channel.open(remoteFile.getPath(), EnumSet.of(OpenMode.READ));
+                handles.add(handle);
+                resources.add(handle);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeAll(resources);
+            throw e;
+        }
+        // handed back last, after its handle
+        resources.add(0, () -> connection.releaseSftpClient(sftpClient));
+        return new SftpRangedInputStream(remoteFile.getPath(), length, rangeSize, connection.getReadAheadRequests(),
+                connection.getReadSize(), sftpClient.getSFTPEngine().getTimeoutMs(), handles, resources);
+    }
+
+    @Override
+    protected byte[] readRange(long offset, int length) throws IOException {
+        RemoteFile handle = takeHandle();
+        try {
+            byte[] range = new byte[length];
+            int position = 0;
+            while (position < length) {
+                int nRead = readAheadRequests > 0 && handle instanceof SftpRemoteFile
+                        ? readPipelined((SftpRemoteFile) handle, offset, range, position)
+                        : handle.read(offset + position, range, position, Math.min(readSize, length - position));
+                if (nRead <= 0) {
+                    throw new IOException("Range " + offset + "-" + (offset + length - 1) + " of " + this + " ended after " + position + " bytes");
+                }
+                position += nRead;
+            }
+            return range;
+        } finally {
+            idleHandles.add(handle);
+        }
+    }
+
+    /**
+     * Reads the rest of a range from <code>position</code> on, keeping up to <code>readAheadRequests</code> requests in
+     * flight. If the server returns less than requested, the requests in flight are drained and discarded, so the
+     * caller continues after the bytes read so far.
+     *
+     * @return the number of bytes read in sequence, <code>0</code> at the end of the file.
+     */
+    private int readPipelined(SftpRemoteFile handle, long offset, byte[] range, int position) throws IOException {
+        Deque<Promise<Response, SFTPException>> replies = new ArrayDeque<>();
+        Deque<Integer> lengths = new ArrayDeque<>();
+        int requested = position;
+        int received = position;
+        boolean inSequence = true;
+        do {
+            while (inSequence && replies.size() < readAheadRequests && requested < range.length) {
+                int length = Math.min(readSize, range.length - requested);
+                replies.add(handle.readAsync(offset + requested, length));
+                lengths.add(length);
+                requested += length;
+            }
+            Response reply = replies.poll().retrieve(handle.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            int length = lengths.poll();
+            if (inSequence) {
+                int nRead = handle.readResponse(reply, range, received);
+                received += Math.max(nRead, 0);
+                inSequence = nRead == length;
+            }
+        } while (!replies.isEmpty());
+        return received - position;
+    }
+
+    /**
+     * Cancels the ranges still being read and waits until their reads have handed back the handles, so that no handle
+     * is closed and no channel handed back while a read is still using it. Then closes the handles and hands back the
+     * channels.
+     */
+    @Override
+    public void close() throws IOException {
+        if (resources.isEmpty()) {
+            return;
+        }
+        try {
+            super.close();
+        } finally {
+            awaitIdleHandles();
+            closeAll(resources);
+            resources.clear();
+        }
+    }
+
+    /**
+     * Takes all handles out of the idle queue, waiting at most the request timeout for the reads still running. A read
+     * that has not finished by then fails once its handle is closed.
+     */
+    private void awaitIdleHandles() {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        boolean interrupted = false;
+        int drained = 0;
+        while (drained < handleCount) {
+            try {
+                if (idleHandles.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) == null) {
+                    log.warn("{} of {} reads of {} still running after {} ms, closing their handles", handleCount - drained,
+                            handleCount, this, timeoutMs);
+                    break;
+                }
+                drained++;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private RemoteFile takeHandle() throws InterruptedIOException {
+        try {
+            return idleHandles.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a channel to read " + this);
+        }
+    }
+
+    private static void closeAll(List<Closeable> resources) {
+        // Handles before their channels
+        for (int i = resources.size() - 1; i >= 0; i--) {
+            try {
+                resources.get(i).close();
+            } catch (IOException e) {
+                log.warn("IOException while closing {}", resources.get(i), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package de.andywolf.sftpbridge.sftp;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.RemoteDirectory;
+import net.schmizz.sshj.sftp.RemoteResourceInfo;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link RemoteDirectory} that is read one <code>READDIR</code> reply at a time instead of all at once.
+ * <p/>
+ * The request for the next batch of entries is sent as soon as a batch arrives, so the server lists while the caller
+ * processes the entries.
+ */
+class SftpRemoteDirectory extends RemoteDirectory {
+
+    private final Charset remoteCharset;
+
+    /** The request for the next batch, null until the first batch is read and after the end of the directory */
+    private Promise<Response, SFTPException> nextBatch;
+
+    private boolean eof;
+
+    SftpRemoteDirectory(ExtendedSftpEngine requester, String path, byte[] handle) {
+        super(requester, path, handle);
+        this.remoteCharset = requester.getRemoteCharset();
+    }
+
+    /**
+     * Reads the next batch of entries, skipping <code>.</code> and <code>..</code>.
+     *
+     * @return the entries of the next batch, which may be empty, or <code>null</code> at the end of the directory.
+     */
+    List<RemoteResourceInfo> readBatch() throws IOException {
+        if (eof) {
+            return null;
+        }
+
+        Promise<Response, SFTPException> batch = nextBatch != null ? nextBatch : requester.request(newRequest(PacketType.READDIR));
+        Response response = batch.retrieve(requester.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        nextBatch = null;
+
+        switch (response.getType()) {
+            case NAME:
+                nextBatch = requester.request(newRequest(PacketType.READDIR));
+                int count = response.readUInt32AsInt();
+                List<RemoteResourceInfo> entries = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    String name = response.readString(remoteCharset);
+                    response.readString(); // long name
+                    FileAttributes attributes = response.readFileAttributes();
+                    if (!".".equals(name) && !"..".equals(name)) {
+                        entries.add(new RemoteResourceInfo(requester.getPathHelper().getComponents(path, name), attributes));
+                    }
+                }
+                return entries;
+            case STATUS:
+                response.ensureStatusIs(Response.StatusCode.EOF);
+                eof = true;
+                return null;
+            default:
+                throw new SFTPException("Unexpected packet: " + response.getType());
+        }
+    }
+
+    /**
+     * Waits for the reply to an outstanding request before the handle is closed, then closes the handle.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (nextBatch != null) {
+                nextBatch.retrieve(requester.getTimeoutMs(), TimeUnit.MILLISECONDS);
+                nextBatch = null;
+            }
+        } finally {
+            super.close();
+        }
+    }
+}
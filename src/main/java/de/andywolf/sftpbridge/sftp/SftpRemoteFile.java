@@ -0,0 +1,50 @@
+package de.andywolf.sftpbridge.sftp;
+
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.RemoteFile;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPEngine;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+
+/**
+ * A {@link RemoteFile} that lets the streams of this package send requests without waiting for their replies.
+ */
+class SftpRemoteFile extends RemoteFile {
+
+    SftpRemoteFile(SFTPEngine requester, String path, byte[] handle) {
+        super(requester, path, handle);
+    }
+
+    /**
+     * Sends a write request.
+     *
+     * @return the promise of the status reply.
+     */
+    Promise<Response, SFTPException> writeAsync(long fileOffset, byte[] data, int off, int len) throws IOException {
+        return asyncWrite(fileOffset, data, off, len);
+    }
+
+    /**
+     * Sends a read request.
+     *
+     * @return the promise of the data or status reply, to be passed to {@link #readResponse(Response, byte[], int)}.
+     */
+    Promise<Response, SFTPException> readAsync(long fileOffset, int len) throws IOException {
+        return asyncRead(fileOffset, len);
+    }
+
+    /**
+     * Copies the data of a read reply.
+     *
+     * @return the number of bytes copied, <code>-1</code> at the end of the file.
+     */
+    int readResponse(Response response, byte[] to, int off) throws IOException {
+        return checkReadResponse(response, to, off);
+    }
+
+    int getTimeoutMs() {
+        return requester.getTimeoutMs();
+    }
+}
@@ -0,0 +1,81 @@
+package de.andywolf.sftpbridge.sftp;
+
+import lombok.Getter;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Response;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The limits a SFTP server advertises through the <code>limits@openssh.com</code> extension. A value of
+ * <code>0</code> means that the server did not state a limit.
+ */
+@Slf4j
+@Getter
+@ToString
+class SftpServerLimits {
+
+    static final String LIMITS_EXTENSION = "limits@openssh.com";
+
+    static final SftpServerLimits UNKNOWN = new SftpServerLimits(0, 0, 0, 0);
+
+    private final long maxPacketLength;
+    private final long maxReadLength;
+    private final long maxWriteLength;
+    private final long maxOpenHandles;
+
+    SftpServerLimits(long maxPacketLength, long maxReadLength, long maxWriteLength, long maxOpenHandles) {
+        this.maxPacketLength = maxPacketLength;
+        this.maxReadLength = maxReadLength;
+        this.maxWriteLength = maxWriteLength;
+        this.maxOpenHandles = maxOpenHandles;
+    }
+
+    /**
+     * Asks the server for its limits.
+     *
+     * @param engine the SFTP engine of an open session.
+     * @return the limits of the server or {@link #UNKNOWN} if the server does not support the extension.
+     */
+    static SftpServerLimits query(ExtendedSftpEngine engine) {
+        if (!engine.hasServerExtension(LIMITS_EXTENSION)) {
+            log.debug("Server does not announce {}", LIMITS_EXTENSION);
+            return UNKNOWN;
+        }
+        try {
+            Response response = engine.request(engine.newExtendedRequest(LIMITS_EXTENSION))
+                    .retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS);
+            if (response.getType() != PacketType.EXTENDED_REPLY) {
+                log.debug("Server does not support {}, reply was {}", LIMITS_EXTENSION, response.getType());
+                return UNKNOWN;
+            }
+            return new SftpServerLimits(response.readUInt64(), response.readUInt64(), response.readUInt64(), response.readUInt64());
+        } catch (IOException e) {
+            log.debug("Cannot query {}", LIMITS_EXTENSION, e);
+            return UNKNOWN;
+        }
+    }
+
+    /**
+     * Clamps a requested length of a single read to the limit of the server.
+     *
+     * @param readSize the requested length.
+     * @return the requested length or the maximum read length of the server, whichever is smaller.
+     */
+    int clampReadSize(int readSize) {
+        return maxReadLength > 0 ? (int) Math.min(readSize, maxReadLength) : readSize;
+    }
+
+    /**
+     * Clamps a requested length of a single write to the limit of the server.
+     *
+     * @param writeSize the requested length.
+     * @return the requested length or the maximum write length of the server, whichever is smaller.
+     */
+    int clampWriteSize(int writeSize) {
+        return maxWriteLength > 0 ? (int) Math.min(writeSize, maxWriteLength) : writeSize;
+    }
+}
@@ -0,0 +1,203 @@
+package de.andywolf.sftpbridge.sftp;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.CloseableIterator;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.PacketType;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.String.format;
+
+/**
+ * Deletes a directory tree with up to <code>maxPendingDeletes</code> SSH_FXP_REMOVE and SSH_FXP_RMDIR requests in
+ * flight on the shared SFTP channel.
+ * <p/>
+ * Each directory is listed once. The files are removed while the listing is read, the sub-directories are deleted
+ * depth-first afterwards. A directory is removed once the replies for its files and sub-directories have arrived and
+ * only if nothing below it failed, so a failure keeps the directory and all directories above it. Its removal is sent
+ * by whichever reply completes it, so the next directory is listed without waiting for the replies of the previous
+ * ones. Failures are collected like
+ * {@link SftpDirectory#deleteRecursively()} always did: each one is added as suppressed exception to a single
+ * {@link RuntimeIOException} that is thrown at the end.
+ */
+@Slf4j
+class SftpTreeDeleter {
+
+    private final ExtendedSftpEngine engine;
+    private final int maxPendingDeletes;
+
+    private final Deque<PendingDelete> pendingDeletes = new ArrayDeque<>();
+
+    private RuntimeIOException accumulator;
+
+    /**
+     * @param connection the connection whose shared SFTP channel sends the requests.
+     */
+    SftpTreeDeleter(SftpConnection connection) {
+        this.engine = (ExtendedSftpEngine) connection.getSharedSftpClient().getSFTPEngine();
+        this.maxPendingDeletes = connection.getMaxPendingDeletes();
+    }
+
+    /**
+     * Deletes a directory with everything below it.
+     *
+     * @param directory the directory to delete.
+     * @throws RuntimeIOException with the failures as suppressed exceptions if anything could not be deleted.
+     */
+    void delete(SftpDirectory directory) {
+        accumulator = new RuntimeIOException("Cannot delete " + directory + ", not all children are deleted.");
+        try {
+            deleteTree(directory, null);
+            awaitAll();
+        } finally {
+            pendingDeletes.clear();
+        }
+
+        Throwable[] suppressed = accumulator.getSuppressed();
+        if (suppressed != null && suppressed.length > 0) {
+            throw accumulator;
+        }
+    }
+
+    private void deleteTree(SftpDirectory directory, Node parent) {
+        Node node = new Node(directory.getFullDirectoryPath(), parent);
+        List<SftpDirectory> subDirectories = new ArrayList<>();
+
+        // sub-directories are deleted after the listing is closed, so that only one directory handle is open at a time
+        try (CloseableIterator<DirectoryEntry> entries = directory.iterateEntries()) {
+            while (entries.hasNext()) {
+                DirectoryEntry each = entries.next();
+                if (each.isDirectory()) {
+                    subDirectories.add((SftpDirectory) each.getDirectory());
+                } else {
+                    node.pending++;
+                    send(PacketType.REMOVE, ((SftpFile) each.getFile()).getFullFilePath(), node);
+                }
+            }
+        } catch (RuntimeIOException rio) {
+            fail(node, rio);
+        }
+
+        for (SftpDirectory each : subDirectories) {
+            deleteTree(each, node);
+        }
+
+        node.listed = true;
+        removeIfEmptied(node);
+    }
+
+    /**
+     * Sends the removal of a directory once it has been listed and the replies for all its children have arrived, or
+     * gives up its place in the parent if something below it failed.
+     */
+    private void removeIfEmptied(Node node) {
+        if (!node.listed || node.pending > 0) {
+            return;
+        }
+        if (node.failed) {
+            completed(node.parent);
+        } else {
+            log.debug("Deleting directory {}", node.path);
+            send(PacketType.RMDIR, node.path, node.parent);
+        }
+    }
+
+    /**
+     * Counts a reply for a child of a directory, which may complete the directory.
+     */
+    private void completed(Node owner) {
+        if (owner != null) {
+            owner.pending--;
+            removeIfEmptied(owner);
+        }
+    }
+
+    /**
+     * Sends a request and reads the replies that have already arrived.
+     *
+     * @param owner the directory whose child is deleted, <code>null</code> for the removal of the top directory.
+     */
+    private void send(PacketType type, String path, Node owner) {
+        while (pendingDeletes.size() >= maxPendingDeletes) {
+            await(pendingDeletes.poll());
+        }
+        try {
+            pendingDeletes.add(new PendingDelete(engine.requestAsync(type, path), path, owner));
+        } catch (IOException e) {
+            fail(owner, new RuntimeIOException(format("Cannot delete %s", path), e));
+            completed(owner);
+        }
+        while (!pendingDeletes.isEmpty() && pendingDeletes.peek().reply.isDelivered()) {
+            await(pendingDeletes.poll());
+        }
+    }
+
+    private void awaitAll() {
+        while (!pendingDeletes.isEmpty()) {
+            await(pendingDeletes.poll());
+        }
+    }
+
+    private void await(PendingDelete delete) {
+        try {
+            delete.reply.retrieve(engine.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+        } catch (SFTPException e) {
+            // deleted by someone else in the meantime
+            if (e.getStatusCode() != Response.StatusCode.NO_SUCH_FILE) {
+                fail(delete.owner, new RuntimeIOException(format("Cannot delete %s", delete.path), e));
+            }
+        }
+        completed(delete.owner);
+    }
+
+    private void fail(Node owner, RuntimeIOException rio) {
+        log.warn("Unable to delete child {}. Continue...", rio.getMessage());
+        accumulator.addSuppressed(rio);
+        for (Node node = owner; node != null && !node.failed; node = node.parent) {
+            node.failed = true;
+        }
+    }
+
+    /**
+     * A directory being deleted, which must be kept if anything below it could not be deleted.
+     */
+    private static final class Node {
+        private final String path;
+        private final Node parent;
+        /** The files removed and the sub-directories being deleted whose replies have not arrived yet */
+        private int pending;
+        private boolean listed;
+        private boolean failed;
+
+        private Node(String path, Node parent) {
+            this.path = path;
+            this.parent = parent;
+            if (parent != null) {
+                // released by the reply for the removal of this directory
+                parent.pending++;
+            }
+        }
+    }
+
+    private static final class PendingDelete {
+        private final Promise<Response, SFTPException> reply;
+        private final String path;
+        private final Node owner;
+
+        private PendingDelete(Promise<Response, SFTPException> reply, String path, Node owner) {
+            this.reply = reply;
+            this.path = path;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package de.andywolf.sftpbridge.sftp;
+
+import lombok.extern.slf4j.Slf4j;
+import net.schmizz.concurrent.Promise;
+import net.schmizz.sshj.sftp.Response;
+import net.schmizz.sshj.sftp.SFTPException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a remote file with up to <code>maxUnconfirmedWrites</code> SSH_FXP_WRITE requests in flight.
+ * <p/>
+ * The status replies are checked without blocking on every write, so a failed write is reported by the next call to
+ * {@link #write} or by {@link #close} at the latest. The stream waits for the oldest reply only while the window is
+ * full. Once a write failed, every further call fails with the same exception.
+ */
+@Slf4j
+class WindowedRemoteFileOutputStream extends OutputStream {
+
+    private final SftpRemoteFile remoteFile;
+    private final int maxUnconfirmedWrites;
+    private final int writeSize;
+
+    private final Deque<Promise<Response, SFTPException>> unconfirmedWrites = new ArrayDeque<>();
+
+    private long fileOffset;
+    private IOException failure;
+
+    /**
+     * @param remoteFile           the file to write.
+     * @param maxUnconfirmedWrites the maximum number of write requests without a reply.
+     * @param writeSize            the maximum length of a single write request.
+     */
+    WindowedRemoteFileOutputStream(SftpRemoteFile remoteFile, int maxUnconfirmedWrites, int writeSize) {
+        if (maxUnconfirmedWrites < 1 || writeSize < 1) {
+            throw new IllegalArgumentException("Window and write size must be at least 1");
+        }
+        this.remoteFile = remoteFile;
+        this.maxUnconfirmedWrites = maxUnconfirmedWrites;
+        this.writeSize = writeSize;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        checkDeliveredWrites();
+        while (len > 0) {
+            while (unconfirmedWrites.size() >= maxUnconfirmedWrites) {
+                checkWrite(unconfirmedWrites.poll());
+            }
+            int n = Math.min(len, writeSize);
+            unconfirmedWrites.add(remoteFile.writeAsync(fileOffset, b, off, n));
+            fileOffset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Waits for the replies to all write requests.
+     */
+    @Override
+    public void flush() throws IOException {
+        rethrowFailure();
+        while (!unconfirmedWrites.isEmpty()) {
+            checkWrite(unconfirmedWrites.poll());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            unconfirmedWrites.clear();
+        }
+    }
+
+    private void checkDeliveredWrites() throws IOException {
+        rethrowFailure();
+        while (!unconfirmedWrites.isEmpty() && unconfirmedWrites.peek().isDelivered()) {
+            checkWrite(unconfirmedWrites.poll());
+        }
+    }
+
+    private void checkWrite(Promise<Response, SFTPException> write) throws IOException {
+        try {
+            write.retrieve(remoteFile.getTimeoutMs(), TimeUnit.MILLISECONDS).ensureStatusPacketIsOK();
+        } catch (IOException e) {
+            log.debug("Write to {} failed, {} writes still unconfirmed", remoteFile, unconfirmedWrites.size());
+            failure = e;
+            throw e;
+        }
+    }
+
+    private void rethrowFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("An earlier write to " + remoteFile + " failed", failure);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.base.UploadState;
+import lombok.ToString;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * The progress of a directory copy, so that a later copy can continue where an interrupted one stopped.
+ * <p/>
+ * All paths are relative to the copied source directory, using <code>/</code> as separator; the source directory
+ * itself is the empty path. A completed directory replaces the entries of everything below it, which keeps the
+ * checkpoint small. The methods are thread-safe.
+ */
+@ToString
+public class Checkpoint {
+
+    private static final String DIRECTORY_PREFIX = "directory.";
+    private static final String FILE_PREFIX = "file.";
+    private static final String UPLOAD_PREFIX = "upload.";
+
+    private final Set<String> completedDirectories = new TreeSet<>();
+    private final Set<String> completedFiles = new TreeSet<>();
+    private final Map<String, UploadState> uploads = new TreeMap<>();
+
+    public synchronized boolean isDirectoryCompleted(String path) {
+        return completedDirectories.contains(path);
+    }
+
+    public synchronized boolean isFileCompleted(String path) {
+        return completedFiles.contains(path);
+    }
+
+    /**
+     * @return the state of the interrupted upload of a file, <code>null</code> if there is none.
+     */
+    public synchronized UploadState getUpload(String path) {
+        return uploads.get(path);
+    }
+
+    public synchronized void directoryCompleted(String path) {
+        String prefix = path.isEmpty() ? "" : path + Utils.PATH_SEPARATOR;
+        removeBelow(completedDirectories, prefix);
+        removeBelow(completedFiles, prefix);
+        removeBelow(uploads.keySet(), prefix);
+        completedDirectories.add(path);
+    }
+
+    public synchronized void fileCompleted(String path) {
+        uploads.remove(path);
+        completedFiles.add(path);
+    }
+
+    public synchronized void uploadProgressed(String path, UploadState upload) {
+        uploads.put(path, upload);
+    }
+
+    public synchronized void removeUpload(String path) {
+        uploads.remove(path);
+    }
+
+    /**
+     * Writes this checkpoint in the {@link Properties} format.
+     */
+    public synchronized void store(OutputStream out) throws IOException {
+        Properties properties = new Properties();
+        for (String path : completedDirectories) {
+            properties.setProperty(DIRECTORY_PREFIX + path, "");
+        }
+        for (String path : completedFiles) {
+            properties.setProperty(FILE_PREFIX + path, "");
+        }
+        for (Map.Entry<String, UploadState> upload : uploads.entrySet()) {
+            properties.setProperty(UPLOAD_PREFIX + upload.getKey(), format(upload.getValue()));
+        }
+        properties.store(out, "sftp-bridge checkpoint");
+    }
+
+    /**
+     * Reads a checkpoint written by {@link #store(OutputStream)}.
+     */
+    public static Checkpoint load(InputStream in) throws IOException {
+        Properties properties = new Properties();
+        properties.load(in);
+
+        Checkpoint checkpoint = new Checkpoint();
+        for (String key : properties.stringPropertyNames()) {
+            if (key.startsWith(DIRECTORY_PREFIX)) {
+                checkpoint.completedDirectories.add(key.substring(DIRECTORY_PREFIX.length()));
+            } else if (key.startsWith(FILE_PREFIX)) {
+                checkpoint.completedFiles.add(key.substring(FILE_PREFIX.length()));
+            } else if (key.startsWith(UPLOAD_PREFIX)) {
+                checkpoint.uploads.put(key.substring(UPLOAD_PREFIX.length()), parse(properties.getProperty(key)));
+            } else {
+                throw new IOException("Unknown checkpoint entry " + key);
+            }
+        }
+        return checkpoint;
+    }
+
+    private static void removeBelow(Set<String> paths, String prefix) {
+        for (Iterator<String> it = paths.iterator(); it.hasNext(); ) {
+            if (it.next().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Formats an upload as <code>uploadId|sourceSize:sourceLastModified|partNumber:eTag:size,...</code>
+     */
+    private static String format(UploadState upload) {
+        StringBuilder b = new StringBuilder(upload.getUploadId()).append('|')
+                .append(upload.getSourceSize()).append(':').append(upload.getSourceLastModified()).append('|');
+        List<UploadState.Part> parts = upload.getParts();
+        for (int i = 0; i < parts.size(); i++) {
+            UploadState.Part part = parts.get(i);
+            if (i > 0) {
+                b.append(',');
+            }
+            b.append(part.getPartNumber()).append(':').append(part.getETag()).append(':').append(part.getSize());
+        }
+        return b.toString();
+    }
+
+    /**
+     * Parses an upload, also in the former format <code>uploadId|partNumber:eTag:size,...</code> without the source,
+     * which is then never continued.
+     */
+    private static UploadState parse(String value) throws IOException {
+        String[] fields = value.split("\\|", -1);
+        if (fields.length < 2 || fields.length > 3) {
+            throw new IOException("Malformed upload in checkpoint: " + value);
+        }
+        long sourceSize = -1;
+        long sourceLastModified = 0;
+        if (fields.length == 3) {
+            String[] source = fields[1].split(":");
+            if (source.length != 2) {
+                throw new IOException("Malformed upload source in checkpoint: " + fields[1]);
+            }
+            sourceSize = Long.parseLong(source[0]);
+            sourceLastModified = Long.parseLong(source[1]);
+        }
+        String partList = fields[fields.length - 1];
+        List<UploadState.Part> parts = new ArrayList<>();
+        if (!partList.isEmpty()) {
+            for (String part : partList.split(",")) {
+                String[] partFields = part.split(":");
+                if (partFields.length != 3) {
+                    throw new IOException("Malformed upload part in checkpoint: " + part);
+                }
+                parts.add(new UploadState.Part(Integer.parseInt(partFields[0]), partFields[1], Long.parseLong(partFields[2])));
+            }
+        }
+        return new UploadState(fields[0], parts, sourceSize, sourceLastModified);
+    }
+}
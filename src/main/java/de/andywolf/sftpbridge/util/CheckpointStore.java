@@ -0,0 +1,26 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+
+/**
+ * Persists the {@link Checkpoint} of a directory copy between invocations.
+ * <p/>
+ * All methods in this interface may throw a {@link RuntimeIOException} if an error occurs.
+ */
+public interface CheckpointStore {
+
+    /**
+     * @return the stored checkpoint, an empty one if none is stored.
+     */
+    Checkpoint load();
+
+    /**
+     * Replaces the stored checkpoint.
+     */
+    void save(Checkpoint checkpoint);
+
+    /**
+     * Removes the stored checkpoint, so that the next copy starts from the beginning.
+     */
+    void clear();
+}
@@ -0,0 +1,193 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.base.Connection;
+import de.andywolf.sftpbridge.base.ConnectionBuilder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Represents options to use when copying a directory with the {@link FileCopier}.
+ */
+@Getter
+@ToString
+public class CopyOptions {
+
+    public static final int PARALLELISM_DEFAULT = 1;
+
+    public static final int PIPELINE_BUFFER_SIZE_DEFAULT = 64 * 1024; // 64 KB
+
+    public static final int PIPELINE_BUFFER_COUNT_DEFAULT = 0;
+
+    public static final long CHECKPOINT_INTERVAL_MILLIS_DEFAULT = 1000;
+
+    public static final int WALK_PARALLELISM_DEFAULT = 1;
+
+    public static final long NO_LIMIT = -1;
+
+    /**
+     * The number of files transferred at the same time. Each worker uses its own source and target {@link Connection}.
+     */
+    private int parallelism = PARALLELISM_DEFAULT;
+
+    /**
+     * Builds the source connections of the workers. Required if the parallelism is greater than one.
+     */
+    private ConnectionBuilder sourceConnectionBuilder;
+
+    /**
+     * Builds the target connections of the workers. Required if the parallelism is greater than one.
+     */
+    private ConnectionBuilder targetConnectionBuilder;
+
+    /**
+     * The size of the buffers handed over from the reading to the writing thread of a pipelined transfer.
+     */
+    private int pipelineBufferSize = PIPELINE_BUFFER_SIZE_DEFAULT;
+
+    /**
+     * The number of buffers of a pipelined transfer. With less than two buffers, files are transferred without a
+     * pipeline.
+     */
+    private int pipelineBufferCount = PIPELINE_BUFFER_COUNT_DEFAULT;
+
+    /**
+     * Whether unchanged files are skipped. A file is unchanged if the target has the same size and was modified at or
+     * after the source, or if both sides report the same entity tag. The metadata of both sides is taken from the
+     * directory listings, so no request is made per file.
+     */
+    private boolean sync;
+
+    /**
+     * Stores the progress of the copy, so that a copy of the same source directory continues where an interrupted
+     * one stopped. Without a store, every copy starts from the beginning.
+     */
+    private CheckpointStore checkpointStore;
+
+    /**
+     * The minimum time between two saves of the checkpoint. The progress made since the last save is repeated after
+     * an interruption.
+     */
+    private long checkpointIntervalMillis = CHECKPOINT_INTERVAL_MILLIS_DEFAULT;
+
+    /**
+     * The number of directories listed at the same time. Sibling directories are walked concurrently on the shared
+     * source and target connections.
+     */
+    private int walkParallelism = WALK_PARALLELISM_DEFAULT;
+
+    /**
+     * Selects the files to copy, <code>null</code> to copy all files. Directories that cannot contain selected files
+     * are neither listed nor created in the target.
+     */
+    private FileFilter filter;
+
+    /**
+     * The maximum number of files a copy transfers, {@link #NO_LIMIT} for no limit. Skipped unchanged files do not
+     * count.
+     */
+    private long maxFiles = NO_LIMIT;
+
+    /**
+     * The maximum number of bytes a copy transfers, {@link #NO_LIMIT} for no limit. A file that would exceed the limit
+     * is left for the next copy, unless it is the first one.
+     */
+    private long maxBytes = NO_LIMIT;
+
+    /**
+     * The time in milliseconds since the epoch after which a copy starts no further transfer, {@link #NO_LIMIT} for no
+     * deadline. Transfers started before the deadline are completed, so leave them time to finish.
+     */
+    private long deadlineMillis = NO_LIMIT;
+
+    public CopyOptions withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public CopyOptions withWalkParallelism(int walkParallelism) {
+        if (walkParallelism < 1) {
+            throw new IllegalArgumentException("Walk parallelism must be at least 1, but was " + walkParallelism);
+        }
+        this.walkParallelism = walkParallelism;
+        return this;
+    }
+
+    public CopyOptions withSourceConnectionBuilder(ConnectionBuilder sourceConnectionBuilder) {
+        this.sourceConnectionBuilder = sourceConnectionBuilder;
+        return this;
+    }
+
+    public CopyOptions withTargetConnectionBuilder(ConnectionBuilder targetConnectionBuilder) {
+        this.targetConnectionBuilder = targetConnectionBuilder;
+        return this;
+    }
+
+    public CopyOptions withPipeline(int bufferSize, int bufferCount) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Pipeline buffer size must be at least 1, but was " + bufferSize);
+        }
+        this.pipelineBufferSize = bufferSize;
+        this.pipelineBufferCount = bufferCount;
+        return this;
+    }
+
+    public CopyOptions withSync(boolean sync) {
+        this.sync = sync;
+        return this;
+    }
+
+    public CopyOptions withFilter(FileFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public CopyOptions withMaxFiles(long maxFiles) {
+        this.maxFiles = maxFiles;
+        return this;
+    }
+
+    public CopyOptions withMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public CopyOptions withDeadline(long deadlineMillis) {
+        this.deadlineMillis = deadlineMillis;
+        return this;
+    }
+
+    /**
+     * Sets the deadline to a time span from now.
+     *
+     * @param timeLimitMillis the time span in milliseconds, {@link #NO_LIMIT} for no deadline.
+     * @return these options.
+     */
+    public CopyOptions withTimeLimit(long timeLimitMillis) {
+        return withDeadline(timeLimitMillis == NO_LIMIT ? NO_LIMIT : System.currentTimeMillis() + timeLimitMillis);
+    }
+
+    public CopyOptions withCheckpointStore(CheckpointStore checkpointStore) {
+        this.checkpointStore = checkpointStore;
+        return this;
+    }
+
+    public CopyOptions withCheckpointInterval(long checkpointIntervalMillis) {
+        this.checkpointIntervalMillis = checkpointIntervalMillis;
+        return this;
+    }
+
+    public boolean isParallel() {
+        return parallelism > 1;
+    }
+
+    public boolean isPipelined() {
+        return pipelineBufferCount > 1;
+    }
+
+    public boolean isBudgeted() {
+        return maxFiles != NO_LIMIT || maxBytes != NO_LIMIT || deadlineMillis != NO_LIMIT;
+    }
+}
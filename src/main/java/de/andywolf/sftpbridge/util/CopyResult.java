@@ -0,0 +1,53 @@
+package de.andywolf.sftpbridge.util;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tells what a directory copy by the {@link FileCopier} has done and what it has left for the next copy because the
+ * budget of its {@link CopyOptions} was exhausted.
+ * <p/>
+ * A copy with a {@link CheckpointStore} continues from the left work by itself; without one, a copy with
+ * {@link CopyOptions#isSync()} skips the files that are already copied.
+ */
+@Getter
+@ToString
+public class CopyResult {
+
+    /**
+     * The number of files transferred.
+     */
+    private final long copiedFiles;
+
+    /**
+     * The number of files skipped as unchanged.
+     */
+    private final long unchangedFiles;
+
+    /**
+     * The files left, by their path relative to the source directory.
+     */
+    private final List<String> remainingFiles;
+
+    /**
+     * The directories left without being listed, by their path relative to the source directory.
+     */
+    private final List<String> remainingDirectories;
+
+    CopyResult(long copiedFiles, long unchangedFiles, List<String> remainingFiles, List<String> remainingDirectories) {
+        this.copiedFiles = copiedFiles;
+        this.unchangedFiles = unchangedFiles;
+        this.remainingFiles = Collections.unmodifiableList(remainingFiles);
+        this.remainingDirectories = Collections.unmodifiableList(remainingDirectories);
+    }
+
+    /**
+     * @return <code>true</code> if nothing was left.
+     */
+    public boolean isComplete() {
+        return remainingFiles.isEmpty() && remainingDirectories.isEmpty();
+    }
+}
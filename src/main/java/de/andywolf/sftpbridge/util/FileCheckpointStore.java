@@ -0,0 +1,62 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Stores the checkpoint in a local file, e.g. below <code>/tmp</code> of a warm Lambda container.
+ */
+@Slf4j
+@ToString
+public class FileCheckpointStore implements CheckpointStore {
+
+    private final Path path;
+
+    public FileCheckpointStore(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public Checkpoint load() {
+        try (InputStream in = Files.newInputStream(path)) {
+            return Checkpoint.load(in);
+        } catch (NoSuchFileException e) {
+            log.debug("No checkpoint stored in {}", path);
+            return new Checkpoint();
+        } catch (IOException e) {
+            throw new RuntimeIOException("Cannot load checkpoint from " + path, e);
+        }
+    }
+
+    @Override
+    public void save(Checkpoint checkpoint) {
+        // Replace the file atomically, a killed process must not leave a truncated checkpoint
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                checkpoint.store(out);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Cannot save checkpoint to " + path, e);
+        }
+    }
+
+    @Override
+    public void clear() {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new RuntimeIOException("Cannot delete checkpoint " + path, e);
+        }
+    }
+}
@@ -1,15 +1,31 @@
 package de.andywolf.sftpbridge.util;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.Cancellable;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ResumableFile;
+import de.andywolf.sftpbridge.base.UploadState;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Stack;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 
 /**
@@ -20,12 +36,30 @@ import java.util.Stack;
 @NoArgsConstructor
 public final class FileCopier extends FileDirectoryWalker {
 
-    private final Stack<Directory> dstDirStack = new Stack<>();
+    /** The directories being walked, by their path relative to the source directory */
+    private final Map<String, DirectoryState> directories = new ConcurrentHashMap<>();
+    private final AtomicInteger unchangedFiles = new AtomicInteger();
+    private final AtomicInteger copiedFiles = new AtomicInteger();
+    private final List<String> remainingFiles = Collections.synchronizedList(new ArrayList<>());
+    private final List<String> remainingDirectories = Collections.synchronizedList(new ArrayList<>());
     private Directory srcDir;
+    private Directory dstDir;
+    private CopyOptions copyOptions = new CopyOptions();
+    private FileTransferPool transferPool;
+    private TransferBudget budget;
 
-    private FileCopier(Directory srcDir, Directory dstDir) {
-        FileCopier.this.dstDirStack.push(dstDir);
+    private Checkpoint checkpoint;
+    private long lastCheckpointSave;
+    private int completedFiles;
+
+    private FileCopier(Directory srcDir, Directory dstDir, CopyOptions copyOptions) {
+        super(-1, copyOptions.getWalkParallelism(), copyOptions.getFilter());
         this.srcDir = srcDir;
+        this.dstDir = dstDir;
+        this.copyOptions = copyOptions;
+        if (copyOptions.isBudgeted()) {
+            this.budget = new TransferBudget(copyOptions);
+        }
         checkDirectoryExists(srcDir);
     }
 
@@ -54,11 +88,45 @@ public final class FileCopier extends FileDirectoryWalker {
      * Copies a directory recursively.
      *
      * @param srcDir the source directory. Must exist.
-     * @param dstDir the destination directory. May exists. Its parent directory must exist.
+     * @param dstDir the destination directory. May exists. Missing parent directories are created.
+     * @return what has been copied.
+     */
+    public static CopyResult copy(Directory srcDir, Directory dstDir) {
+        return copy(srcDir, dstDir, new CopyOptions());
+    }
+
+    /**
+     * Copies a directory recursively. If the options ask for more than one worker, the files are transferred
+     * concurrently, each worker using its own source and target connection. The directories are created by the
+     * walking threads; if the options ask for a walk parallelism above one, sibling directories are listed and created
+     * concurrently and, without workers, their files are transferred concurrently over the shared connections.
+     * <p/>
+     * A target directory is only checked for existence if this copy does not know already: the sub-directories of a
+     * directory the copy has created are created right away, and with sync the sub-directories are looked up in the
+     * listing of their parent.
+     * <p/>
+     * If the options name a {@link CheckpointStore}, the copy skips the files and directories a previous copy has
+     * completed, continues its interrupted uploads and records its own progress. The checkpoint is cleared once the
+     * whole directory has been copied.
+     * <p/>
+     * The checkpoint is loaded and the destination directory is checked or created only once a file or a
+     * sub-directory has been found, so copying an empty directory sends no request to the target.
+     * <p/>
+     * If the options set a budget of files, bytes or time, the copy stops picking up files once the budget is
+     * exhausted, lets the transfers already started finish and returns what it has left. Directories that have not
+     * been listed by then are left as a whole. A checkpoint is saved rather than cleared, so the next copy continues
+     * with the left work.
+     *
+     * @param srcDir      the source directory. Must exist.
+     * @param dstDir      the destination directory. May exists. Missing parent directories are created.
+     * @param copyOptions the options to use.
+     * @return what has been copied and what has been left.
+     * @throws RuntimeIOException if at least one file could not be copied. In parallel mode all files are attempted
+     *                            and the failures of single files are attached as suppressed exceptions.
      */
-    public static void copy(Directory srcDir, Directory dstDir) {
-        FileCopier dirCopier = new FileCopier(srcDir, dstDir);
-        dirCopier.startTransmission();
+    public static CopyResult copy(Directory srcDir, Directory dstDir, CopyOptions copyOptions) {
+        FileCopier dirCopier = new FileCopier(srcDir, dstDir, copyOptions);
+        return dirCopier.startTransmission();
     }
 
     /**
@@ -69,58 +137,510 @@ public final class FileCopier extends FileDirectoryWalker {
      */
     protected void transmitFile(final File srcFile, final File dstFile) {
         checkFileExists(srcFile);
+        transmitListedFile(srcFile, dstFile);
+    }
 
+    /**
+     * Copies a regular file that has been found in a listing of its directory, so it is not checked for existence
+     * again. A file that has disappeared since the listing fails when it is opened.
+     *
+     * @param srcFile the source file.
+     * @param dstFile the destination file. May exists. Its parent directory must exist.
+     */
+    void transmitListedFile(final File srcFile, final File dstFile) {
         log.debug("Copying file {} to {}", srcFile, dstFile);
-        if (dstFile.exists())
+        if (log.isTraceEnabled() && dstFile.exists())
             log.trace("About to overwrite existing file {}", dstFile);
 
-        try(InputStream is = srcFile.getInputStream();
-            OutputStream os = dstFile.getOutputStream()) {
-            Utils.write(is, os);
+        if (checkpoint() != null && dstFile instanceof ResumableFile) {
+            transmitResumableFile(srcFile, (ResumableFile) dstFile);
+            return;
+        }
+
+        try (InputStream is = srcFile.getInputStream()) {
+            writeAndClose(is, dstFile.getOutputStream(srcFile.getMetadata()));
         } catch (RuntimeIOException|IOException exc) {
             throw new RuntimeIOException("Cannot copy " + srcFile + " to " + dstFile, exc.getCause());
         }
     }
 
-    protected void startTransmission() {
-        walk(srcDir, 0);
+    /**
+     * Copies a regular file, continuing the upload recorded in the checkpoint and recording the progress of the upload.
+     * An upload is only continued if the source has the same size and modification time as when the upload was
+     * started; otherwise it is dropped from the checkpoint and the file is uploaded from the start. Once the upload
+     * has been completed or cancelled, it is dropped from the checkpoint as well.
+     */
+    private void transmitResumableFile(final File srcFile, final ResumableFile dstFile) {
+        final String path = relativePath(srcFile);
+        final FileMetadata source = srcFile.getMetadata();
+        UploadState resumeFrom = checkpoint.getUpload(path);
+        if (resumeFrom != null && !resumeFrom.isFrom(source)) {
+            log.info("Copying {} from the start, it has changed since upload {} was started", srcFile, resumeFrom.getUploadId());
+            checkpoint.removeUpload(path);
+            resumeFrom = null;
+        }
+
+        // the uploading threads may still report progress after the upload has ended
+        final AtomicBoolean ended = new AtomicBoolean();
+        Consumer<UploadState> progressListener = upload -> {
+            synchronized (ended) {
+                if (!ended.get()) {
+                    checkpoint.uploadProgressed(path, upload.withSource(source));
+                    saveCheckpoint(false);
+                }
+            }
+        };
+
+        long offset = 0;
+        if (resumeFrom != null) {
+            offset = resumeFrom.getLength();
+            log.info("Resuming copy of {} to {} at byte {}", srcFile, dstFile, offset);
+        }
+
+        boolean started = false;
+        try (InputStream is = srcFile.getInputStream(offset)) {
+            OutputStream os = dstFile.getOutputStream(source, resumeFrom, progressListener);
+            started = true;
+            writeAndClose(is, os);
+        } catch (RuntimeIOException|IOException exc) {
+            throw new RuntimeIOException("Cannot copy " + srcFile + " to " + dstFile, exc.getCause());
+        } finally {
+            if (started) {
+                synchronized (ended) {
+                    ended.set(true);
+                    checkpoint.removeUpload(path);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the content to the target and stores it by closing the stream. If the content cannot be copied
+     * completely, a {@link Cancellable} stream is cancelled rather than closed, so that the part written so far is not
+     * stored as the whole file.
+     */
+    private void writeAndClose(InputStream is, OutputStream os) throws IOException {
+        try {
+            write(is, os);
+        } catch (RuntimeException e) {
+            try {
+                if (os instanceof Cancellable) {
+                    ((Cancellable) os).cancel();
+                } else {
+                    os.close();
+                }
+            } catch (RuntimeException | IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        os.close();
+    }
+
+    private void write(InputStream is, OutputStream os) {
+        if (copyOptions.isPipelined()) {
+            Utils.write(is, os, copyOptions.getPipelineBufferSize(), copyOptions.getPipelineBufferCount());
+        } else {
+            Utils.write(is, os);
+        }
+    }
+
+    protected CopyResult startTransmission() {
+        try {
+            walkAndTransmit();
+        } catch (RuntimeException e) {
+            if (checkpoint != null) {
+                try {
+                    saveCheckpoint(true);
+                } catch (RuntimeIOException rio) {
+                    e.addSuppressed(rio);
+                }
+            }
+            throw e;
+        }
+
+        CopyResult result = new CopyResult(copiedFiles.get(), unchangedFiles.get(), remainingFiles, remainingDirectories);
+        if (!result.isComplete()) {
+            log.info("Copied {} files of {}, leaving {} files and {} directories for the next copy", copiedFiles.get(),
+                    srcDir, remainingFiles.size(), remainingDirectories.size());
+            if (checkpoint != null) {
+                saveCheckpoint(true);
+            }
+        } else if (checkpoint != null) {
+            log.info("Copied {} files of {}, clearing checkpoint", completedFiles, srcDir);
+            copyOptions.getCheckpointStore().clear();
+        }
+        logUnchangedFiles();
+        return result;
+    }
+
+    private void walkAndTransmit() {
+        if (!copyOptions.isParallel()) {
+            walk(srcDir);
+            return;
+        }
+
+        log.debug("Copying {} with {} workers", srcDir, copyOptions.getParallelism());
+        transferPool = new FileTransferPool(this, copyOptions);
+        try {
+            walk(srcDir);
+        } catch (RuntimeException e) {
+            try {
+                transferPool.awaitCompletion();
+            } catch (RuntimeIOException rio) {
+                e.addSuppressed(rio);
+            }
+            throw e;
+        }
+        transferPool.awaitCompletion();
+    }
+
+    private void logUnchangedFiles() {
+        if (copyOptions.isSync()) {
+            log.info("Skipped {} unchanged files of {}", unchangedFiles.get(), srcDir);
+        }
+    }
+
+    /**
+     * Loads the checkpoint on first use, so that a copy of an empty directory does not read the checkpoint store. A
+     * stored checkpoint never records the source directory itself as completed, as it is cleared then.
+     *
+     * @return the checkpoint, <code>null</code> if the options name no checkpoint store.
+     */
+    private synchronized Checkpoint checkpoint() {
+        CheckpointStore checkpointStore = copyOptions.getCheckpointStore();
+        if (checkpoint == null && checkpointStore != null) {
+            checkpoint = checkpointStore.load();
+            lastCheckpointSave = System.currentTimeMillis();
+            log.debug("Copying {} from checkpoint {}", srcDir, checkpoint);
+        }
+        return checkpoint;
+    }
+
+    @Override
+    protected boolean handleDirectory(Directory scrDir, int depth) {
+        if (depth != ROOT && checkpoint() != null && checkpoint.isDirectoryCompleted(relativePath(scrDir))) {
+            log.debug("Skipping directory {} completed by a previous copy", scrDir);
+            return false;
+        }
+        if (depth != ROOT && budget != null && budget.isExhausted()) {
+            String path = relativePath(scrDir);
+            log.debug("Leaving directory {}, the budget is exhausted", scrDir);
+            remainingDirectories.add(path);
+            leaveIncomplete(directories.get(parentPath(path)));
+            return false;
+        }
+        return true;
     }
 
     @Override
     protected void handleDirectoryStart(Directory scrDir, int depth) {
-        Directory dstDir = getCurrentDestinationDir();
-        if (depth != ROOT) {
-            dstDir = createSubdirectoryAndMakeCurrent(dstDir, scrDir.getDirectoryName());
+        String path = relativePath(scrDir);
+        DirectoryState parent = depth == ROOT ? null : directories.get(parentPath(path));
+        Directory currentDstDir = parent == null ? dstDir : parent.dstDir.getSubDirectory(scrDir.getDirectoryName());
+        DirectoryState state = new DirectoryState(path, parent, currentDstDir);
+
+        if (parent != null) {
+            prepareDestination(parent);
+            prepareDestination(state);
+            if (checkpoint() != null) {
+                synchronized (this) {
+                    parent.pendingDirectories++;
+                }
+            }
         }
+        directories.put(path, state);
+    }
 
-        if (dstDir.exists()) {
-            log.trace("About to copy files into existing directory {}", dstDir);
-        } else {
-            dstDir.mkdir();
+    /**
+     * Checks, lists or creates the destination directory of a source directory once. For the source directory of the
+     * copy this is deferred to its first file or sub-directory, so that a copy of an empty directory sends no request
+     * to the target.
+     */
+    private void prepareDestination(DirectoryState state) {
+        synchronized (state) {
+            if (state.prepared) {
+                return;
+            }
+            if (dstDirectoryExists(state.parent, state.dstDir)) {
+                log.trace("About to copy files into existing directory {}", state.dstDir);
+                if (copyOptions.isSync()) {
+                    listDestination(state);
+                }
+            } else {
+                if (state.parent == null) {
+                    state.dstDir.mkdirs();
+                } else {
+                    state.dstDir.mkdir();
+                }
+                state.created = true;
+            }
+            state.prepared = true;
         }
     }
 
     @Override
     protected void handleFile(File srcFile, int depth) {
-        File dstFile = getCurrentDestinationDir().getFile(srcFile.getFileName());
-        transmitFile(srcFile, dstFile);
+        if (checkpoint() != null && checkpoint.isFileCompleted(relativePath(srcFile))) {
+            log.debug("Skipping file {} completed by a previous copy", srcFile);
+            return;
+        }
+
+        DirectoryState state = directories.get(relativePath(srcFile.getDirectory()));
+        // before the target is prepared and compared, which costs requests
+        if (budget != null && budget.isExhausted()) {
+            leaveFile(srcFile, state);
+            return;
+        }
+        prepareDestination(state);
+        if (copyOptions.isSync() && isUnchanged(srcFile.getMetadata(), dstMetadata(srcFile, state))) {
+            log.debug("Skipping unchanged file {}", srcFile);
+            unchangedFiles.incrementAndGet();
+            return;
+        }
+
+        if (transferPool != null) {
+            // the worker charges the budget once it picks up the file
+            transferPool.submit(srcFile, state.dstDir.getFullDirectoryPath(), () -> admit(srcFile, state),
+                    fileCompletion(srcFile, state));
+            return;
+        }
+
+        if (!admit(srcFile, state)) {
+            return;
+        }
+        Runnable onSuccess = fileCompletion(srcFile, state);
+        File dstFile = state.dstDir.getFile(srcFile.getFileName());
+        transmitListedFile(srcFile, dstFile);
+        onSuccess.run();
+    }
+
+    /**
+     * Charges a file to the budget right before it is transferred, or leaves it for the next copy.
+     *
+     * @param srcFile the source file as listed, with its metadata.
+     * @return <code>false</code> if the file has been left.
+     */
+    private boolean admit(File srcFile, DirectoryState state) {
+        if (budget == null || budget.tryAcquire(srcFile)) {
+            return true;
+        }
+        leaveFile(srcFile, state);
+        return false;
+    }
+
+    private void leaveFile(File srcFile, DirectoryState state) {
+        log.debug("Leaving file {}, the budget is exhausted", srcFile);
+        remainingFiles.add(relativePath(srcFile));
+        leaveIncomplete(state);
     }
 
     @Override
     protected void handleDirectoryEnd(Directory directory, int depth) {
-        if(depth != ROOT) {
-            dstDirStack.pop();
+        DirectoryState state = directories.remove(relativePath(directory));
+        synchronized (this) {
+            // not loaded yet if nothing has been found below the source directory
+            if (checkpoint != null) {
+                state.ended = true;
+                completeIfDone(state);
+            }
         }
     }
 
-    private Directory createSubdirectoryAndMakeCurrent(Directory parentDir, String subdirName) {
-        Directory subdir = parentDir.getSubDirectory(subdirName);
-        dstDirStack.push(subdir);
-        return subdir;
+    /**
+     * @return the action that records a copied file in the budget and the checkpoint, run by the thread that copied
+     * the file.
+     */
+    private Runnable fileCompletion(File srcFile, final DirectoryState state) {
+        if (budget != null) {
+            Runnable completion = checkpointedFileCompletion(srcFile, state);
+            return () -> {
+                budget.completed(srcFile);
+                completion.run();
+            };
+        }
+        return checkpointedFileCompletion(srcFile, state);
     }
 
-    private Directory getCurrentDestinationDir() {
-        return dstDirStack.peek();
+    private Runnable checkpointedFileCompletion(File srcFile, final DirectoryState state) {
+        if (checkpoint == null) {
+            return copiedFiles::incrementAndGet;
+        }
+
+        final String path = relativePath(srcFile);
+        synchronized (this) {
+            state.pendingFiles++;
+        }
+        return () -> {
+            synchronized (this) {
+                checkpoint.fileCompleted(path);
+                completedFiles++;
+                copiedFiles.incrementAndGet();
+                state.pendingFiles--;
+                completeIfDone(state);
+            }
+            saveCheckpoint(false);
+        };
+    }
+
+    /**
+     * Records a directory as completed once it has been walked and all its files and subdirectories have been copied,
+     * then checks its parent.
+     */
+    private synchronized void completeIfDone(DirectoryState state) {
+        if (!state.ended || state.incomplete || state.pendingFiles > 0 || state.pendingDirectories > 0) {
+            return;
+        }
+        checkpoint.directoryCompleted(state.path);
+        if (state.parent != null) {
+            state.parent.pendingDirectories--;
+            completeIfDone(state.parent);
+        }
+    }
+
+    /**
+     * Keeps a directory from being recorded as completed because some of its work has been left. Its parent is kept
+     * as well, as it waits for the directory to complete.
+     */
+    private synchronized void leaveIncomplete(DirectoryState state) {
+        if (state != null) {
+            state.incomplete = true;
+        }
+    }
+
+    /**
+     * Saves the checkpoint if the checkpoint interval has passed since the last save.
+     *
+     * @param force <code>true</code> to save regardless of the interval.
+     */
+    private synchronized void saveCheckpoint(boolean force) {
+        long now = System.currentTimeMillis();
+        if (!force && now - lastCheckpointSave < copyOptions.getCheckpointIntervalMillis()) {
+            return;
+        }
+        copyOptions.getCheckpointStore().save(checkpoint);
+        lastCheckpointSave = now;
+    }
+
+    /**
+     * @return the path of a directory relative to the source directory, the empty string for the source directory.
+     */
+    private String relativePath(Directory directory) {
+        return Utils.relativePath(srcDir, directory);
+    }
+
+    private static String parentPath(String path) {
+        int separator = path.lastIndexOf(Utils.PATH_SEPARATOR_CHAR);
+        return separator < 0 ? "" : path.substring(0, separator);
+    }
+
+    private String relativePath(File file) {
+        return Utils.relativePath(srcDir, file);
+    }
+
+    /**
+     * Tells whether a destination directory exists, answered without a request where this copy knows already: a
+     * directory this copy has just created has no sub-directories, and a synced directory has been listed.
+     *
+     * @param parent the state of the parent directory, <code>null</code> for the destination directory itself.
+     * @param dstDir the destination directory.
+     */
+    private static boolean dstDirectoryExists(DirectoryState parent, Directory dstDir) {
+        if (parent != null && parent.created) {
+            return false;
+        }
+        if (parent != null && parent.dstSubDirectories != null) {
+            return parent.dstSubDirectories.contains(dstDir.getDirectoryName());
+        }
+        return dstDir.exists();
+    }
+
+    /**
+     * Lists the metadata of the files and the names of the sub-directories of a destination directory.
+     */
+    private static void listDestination(DirectoryState state) {
+        Map<String, FileMetadata> metadata = new HashMap<>();
+        Set<String> subDirectories = new HashSet<>();
+        try (CloseableIterator<DirectoryEntry> entries = state.dstDir.iterateEntries()) {
+            while (entries.hasNext()) {
+                DirectoryEntry entry = entries.next();
+                if (entry.isDirectory()) {
+                    subDirectories.add(entry.getDirectory().getDirectoryName());
+                } else {
+                    metadata.put(entry.getFile().getFileName(), entry.getFile().getMetadata());
+                }
+            }
+        }
+        state.dstMetadata = metadata;
+        state.dstSubDirectories = subDirectories;
+    }
+
+    /**
+     * Tells whether the target file is a copy of the source file as it is now: the sizes match and either the entity
+     * tags match or the target records exactly the modification time of the source, to the second. The modification
+     * time of the target itself is never compared, as it comes from another clock.
+     *
+     * @param src the metadata of the source file.
+     * @param dst the metadata of the target file, <code>null</code> if the target file does not exist.
+     * @return <code>true</code> if the source file needs not be copied.
+     */
+    static boolean isUnchanged(FileMetadata src, FileMetadata dst) {
+        if (src == null || dst == null || src.getSize() != dst.getSize()) {
+            return false;
+        }
+        if (src.getETag() != null && dst.getETag() != null) {
+            return src.getETag().equals(dst.getETag());
+        }
+        return src.getLastModified() > 0 && dst.getSourceLastModified() > 0
+                && src.getLastModified() / 1000 == dst.getSourceLastModified() / 1000;
+    }
+
+    /**
+     * Returns the metadata of a target file for {@link #isUnchanged(FileMetadata, FileMetadata)}. A listing does not
+     * tell the source modification time on every remote system, e.g. not the user metadata of S3, so it is fetched
+     * for a target file of the same size that could only be compared by it.
+     */
+    private FileMetadata dstMetadata(File srcFile, DirectoryState state) {
+        FileMetadata src = srcFile.getMetadata();
+        FileMetadata dst = state.dstMetadata.get(srcFile.getFileName());
+        if (src == null || dst == null || src.getSize() != dst.getSize() || src.getLastModified() <= 0
+                || dst.getSourceLastModified() > 0 || (src.getETag() != null && dst.getETag() != null)) {
+            return dst;
+        }
+        return state.dstDir.getFile(srcFile.getFileName()).refreshMetadata();
+    }
+
+    /**
+     * A source directory that is being copied.
+     */
+    private static final class DirectoryState {
+        private final String path;
+        private final DirectoryState parent;
+        private final Directory dstDir;
+
+        /** The metadata of the files in the destination directory, by name; only listed when syncing */
+        private Map<String, FileMetadata> dstMetadata = Collections.emptyMap();
+
+        /** The names of the sub-directories of the destination directory; only listed when syncing */
+        private Set<String> dstSubDirectories;
+
+        /** Whether the destination directory has been checked, listed or created, guarded by the state */
+        private boolean prepared;
+
+        /** Whether this copy has created the destination directory, which is then empty */
+        private boolean created;
+
+        // The progress of the copy, guarded by the copier; only tracked with a checkpoint
+        private int pendingFiles;
+        private int pendingDirectories;
+        private boolean ended;
+        private boolean incomplete;
+
+        private DirectoryState(String path, DirectoryState parent, Directory dstDir) {
+            this.path = path;
+            this.parent = parent;
+            this.dstDir = dstDir;
+        }
     }
 
     /**
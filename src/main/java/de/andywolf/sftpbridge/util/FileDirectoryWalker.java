@@ -1,22 +1,32 @@
 package de.andywolf.sftpbridge.util;
 
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
 import de.andywolf.sftpbridge.base.File;
-import lombok.AllArgsConstructor;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Abstract class that walks through a directory hierarchy and provides subclasses with convenient hooks to add specific
  * behaviour.
  * <p/>
- * This class operates with a maximum depth to limit the files and direcories visited.
+ * This class operates with a maximum depth to limit the files and direcories visited. A {@link FileFilter} further
+ * limits the files visited; it is pushed down into the listings, so that directories which cannot contain selected
+ * files are not listed and names that cannot match are left out by remote systems that list by prefix.
+ * <p/>
+ * With a parallelism above one, sibling sub-directories are walked concurrently by a {@link ForkJoinPool}. The
+ * callbacks are then invoked from several threads at the same time and must be thread-safe. They still keep their
+ * order within a directory: {@link #handleDirectoryStart} of a directory completes before anything below it is
+ * handled, and {@link #handleDirectoryEnd} is invoked after everything below it has been handled.
  * <p/>
  */
 @Slf4j
-@AllArgsConstructor
 public abstract class FileDirectoryWalker {
 
     /**
@@ -29,6 +39,21 @@ public abstract class FileDirectoryWalker {
      */
     private final int depthLimit;
 
+    /**
+     * The maximum number of directories walked at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Selects the files to visit, null to visit all files.
+     */
+    private final FileFilter filter;
+
+    /**
+     * The directory the current walk started from, which the filter paths are relative to.
+     */
+    private volatile Directory startDirectory;
+
     /**
      * Construct an instance with unlimited <i>depth</i>.
      */
@@ -36,6 +61,60 @@ public abstract class FileDirectoryWalker {
         this(-1);
     }
 
+    /**
+     * Construct an instance that walks one directory at a time.
+     *
+     * @param depthLimit the limit on the directory depth to walk, <code>-1</code> for unlimited depth
+     */
+    protected FileDirectoryWalker(int depthLimit) {
+        this(depthLimit, 1);
+    }
+
+    /**
+     * @param depthLimit  the limit on the directory depth to walk, <code>-1</code> for unlimited depth
+     * @param parallelism the maximum number of directories walked at the same time
+     */
+    protected FileDirectoryWalker(int depthLimit, int parallelism) {
+        this(depthLimit, parallelism, null);
+    }
+
+    /**
+     * @param depthLimit  the limit on the directory depth to walk, <code>-1</code> for unlimited depth
+     * @param parallelism the maximum number of directories walked at the same time
+     * @param filter      selects the files to visit, <code>null</code> to visit all files
+     */
+    protected FileDirectoryWalker(int depthLimit, int parallelism, FileFilter filter) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, but was " + parallelism);
+        }
+        this.depthLimit = depthLimit;
+        this.parallelism = parallelism;
+        this.filter = filter;
+    }
+
+    /**
+     * Examines the directory hierarchy below a starting directory. Without a depth limit the whole tree is listed
+     * ahead through {@link Directory#listTree(String)}, which saves requests on remote systems that list trees in one
+     * pass.
+     *
+     * @param startDirectory the directory to start from, not null
+     */
+    protected void walk(@NonNull Directory startDirectory) {
+        Directory directory = depthLimit < 0 ? startDirectory.listTree(filter == null ? "" : filter.pathPrefix()) : startDirectory;
+        if (parallelism == 1) {
+            walk(directory, ROOT);
+            return;
+        }
+
+        log.debug("Walking {} with {} threads", startDirectory, parallelism);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new WalkTask(directory, ROOT));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
     /**
      * Main recursive method to examine the directory hierarchy.
      *
@@ -43,25 +122,43 @@ public abstract class FileDirectoryWalker {
      * @param depth     the directory level (starting directory = 0)
      */
     protected void walk(@NonNull Directory directory, int depth) {
+        if (!acceptsDirectory(directory, depth) || !handleDirectory(directory, depth)) {
+            return;
+        }
+
         handleDirectoryStart(directory, depth);
 
         int childDepth = depth + 1;
 
         if (depthLimit < 0 || childDepth <= depthLimit) {
-            List<Directory> childDirs = listSubDirectories(directory);
-            for (Directory childDir : childDirs) {
-                walk(childDir, childDepth);
-            }
-
-            List<File> childFiles = listFiles(directory);
-            for (File childFile : childFiles) {
-                handleFile(childFile, childDepth);
+            try (CloseableIterator<DirectoryEntry> children = iterateEntries(directory)) {
+                while (children.hasNext()) {
+                    DirectoryEntry child = children.next();
+                    if (child.isDirectory()) {
+                        walk(child.getDirectory(), childDepth);
+                    } else if (acceptsFile(child.getFile())) {
+                        handleFile(child.getFile(), childDepth);
+                    }
+                }
             }
         }
 
         handleDirectoryEnd(directory, depth);
     }
 
+    /**
+     * Overridable callback method invoked to determine if a directory should be processed.
+     * <p/>
+     * This implementation returns <code>true</code>.
+     *
+     * @param directory the current directory being processed
+     * @param depth     the current directory level (starting directory = 0)
+     * @return <code>true</code> to process this directory, <code>false</code> to skip it and everything below it
+     */
+    protected boolean handleDirectory(@NonNull Directory directory, int depth) {
+        return true;
+    }
+
     /**
      * Overridable callback method invoked at the start of processing each directory.
      * <p/>
@@ -99,22 +196,105 @@ public abstract class FileDirectoryWalker {
     }
 
     /**
-     * Lists the files in the directory.
+     * Iterates over the files and sub-directories in the directory with a single listing. Each file is handled and
+     * each sub-directory is walked as soon as it has been listed. With a filter, only the names that may lead to
+     * selected files are listed.
      *
-     * @param directory in which to list files.
-     * @return all the files in the directory as filtering.
+     * @param directory in which to list files and sub-directories.
+     * @return all the files and sub-directories in the directory as filtering.
      */
-    protected List<File> listFiles(@NonNull Directory directory) {
-        return directory.listFiles();
+    protected CloseableIterator<DirectoryEntry> iterateEntries(@NonNull Directory directory) {
+        if (filter == null) {
+            return directory.iterateEntries();
+        }
+        return directory.iterateEntries(filter.namePrefix(relativePath(directory)));
+    }
+
+    private boolean acceptsDirectory(Directory directory, int depth) {
+        if (depth == ROOT) {
+            startDirectory = directory;
+            return true;
+        }
+        return filter == null || filter.acceptsDirectory(relativePath(directory));
+    }
+
+    private boolean acceptsFile(File file) {
+        if (filter == null) {
+            return true;
+        }
+        if (filter.accepts(Utils.relativePath(startDirectory, file), file)) {
+            return true;
+        }
+        log.trace("Skipping file {} not selected by {}", file, filter);
+        return false;
+    }
+
+    private String relativePath(Directory directory) {
+        return startDirectory == null ? "" : Utils.relativePath(startDirectory, directory);
     }
 
     /**
-     * Lists the sub-directories in the directory.
-     *
-     * @param directory in which to list sub-directories.
-     * @return all the sub-directories in the directory as filtering.
+     * Walks a directory like {@link #walk(Directory, int)}, but forks a task for each sub-directory. The directory
+     * ends after all its sub-directories have ended.
      */
-    protected List<Directory> listSubDirectories(@NonNull Directory directory) {
-        return directory.listSubDirectories();
+    private final class WalkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Directory directory;
+        private final int depth;
+
+        private WalkTask(Directory directory, int depth) {
+            this.directory = directory;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (!acceptsDirectory(directory, depth) || !handleDirectory(directory, depth)) {
+                return;
+            }
+
+            handleDirectoryStart(directory, depth);
+
+            int childDepth = depth + 1;
+            List<WalkTask> subtrees = new ArrayList<>();
+            RuntimeException failure = null;
+
+            if (depthLimit < 0 || childDepth <= depthLimit) {
+                try (CloseableIterator<DirectoryEntry> children = iterateEntries(directory)) {
+                    while (children.hasNext()) {
+                        DirectoryEntry child = children.next();
+                        if (child.isDirectory()) {
+                            WalkTask subtree = new WalkTask(child.getDirectory(), childDepth);
+                            subtree.fork();
+                            subtrees.add(subtree);
+                        } else if (acceptsFile(child.getFile())) {
+                            handleFile(child.getFile(), childDepth);
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    failure = e;
+                }
+            }
+
+            // wait for all sub-directories, even after a failure, so that nothing below this directory runs later
+            for (int i = subtrees.size() - 1; i >= 0; i--) {
+                try {
+                    subtrees.get(i).join();
+                } catch (RuntimeException e) {
+                    if (failure == null) {
+                        failure = e;
+                    } else {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+
+            handleDirectoryEnd(directory, depth);
+        }
     }
 }
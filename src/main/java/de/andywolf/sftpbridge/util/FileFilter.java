@@ -0,0 +1,236 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the files a {@link FileDirectoryWalker} visits, by their paths relative to the directory the walk starts
+ * from and by their metadata.
+ * <p/>
+ * A file is selected if it matches at least one include glob and contains at least one include pattern, as far as
+ * there are any, neither matches an exclude glob nor contains an exclude pattern, and keeps the size and age limits.
+ * A directory matched by an exclude glob is skipped with everything below it, as is a directory below which no
+ * include glob can match. The globs also limit the names listed in each directory to their literal beginnings, see
+ * {@link #namePrefix(String)}, so that remote systems leave out what cannot match.
+ * <p/>
+ * Size and age are taken from the metadata of the listings, so no filter makes any request of its own.
+ */
+@ToString
+public class FileFilter {
+
+    public static final long NO_LIMIT = -1;
+
+    /**
+     * The globs of which a file has to match one, see {@link Glob} for the syntax.
+     */
+    private final List<Glob> includes = new ArrayList<>();
+
+    /**
+     * The globs of which a file must not match any.
+     */
+    private final List<Glob> excludes = new ArrayList<>();
+
+    /**
+     * The regular expressions of which one has to be found in a file's relative path.
+     */
+    private final List<Pattern> includePatterns = new ArrayList<>();
+
+    /**
+     * The regular expressions of which none may be found in a file's relative path.
+     */
+    private final List<Pattern> excludePatterns = new ArrayList<>();
+
+    /**
+     * The minimum size of a file in bytes, {@link #NO_LIMIT} for no limit.
+     */
+    @Getter
+    private long minSize = NO_LIMIT;
+
+    /**
+     * The maximum size of a file in bytes, {@link #NO_LIMIT} for no limit.
+     */
+    @Getter
+    private long maxSize = NO_LIMIT;
+
+    /**
+     * The minimum time since the last modification of a file in milliseconds, {@link #NO_LIMIT} for no limit. Keeps
+     * away files that may still be written.
+     */
+    @Getter
+    private long minAgeMillis = NO_LIMIT;
+
+    /**
+     * The maximum time since the last modification of a file in milliseconds, {@link #NO_LIMIT} for no limit.
+     */
+    @Getter
+    private long maxAgeMillis = NO_LIMIT;
+
+    public FileFilter withInclude(String glob) {
+        includes.add(new Glob(glob));
+        return this;
+    }
+
+    public FileFilter withExclude(String glob) {
+        excludes.add(new Glob(glob));
+        return this;
+    }
+
+    public FileFilter withIncludePattern(String regex) {
+        includePatterns.add(Pattern.compile(regex));
+        return this;
+    }
+
+    public FileFilter withExcludePattern(String regex) {
+        excludePatterns.add(Pattern.compile(regex));
+        return this;
+    }
+
+    public FileFilter withSize(long minSize, long maxSize) {
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        return this;
+    }
+
+    public FileFilter withAge(long minAgeMillis, long maxAgeMillis) {
+        this.minAgeMillis = minAgeMillis;
+        this.maxAgeMillis = maxAgeMillis;
+        return this;
+    }
+
+    /**
+     * Tells whether a file may be selected, judged by its path only.
+     *
+     * @param relativePath the path of the file relative to the start directory.
+     * @return <code>false</code> if the file is not selected whatever its metadata.
+     */
+    public boolean acceptsPath(String relativePath) {
+        if (!includes.isEmpty() && !matchesAny(includes, relativePath)) {
+            return false;
+        }
+        for (Glob exclude : excludes) {
+            if (exclude.matches(relativePath)) {
+                return false;
+            }
+        }
+        if (!includePatterns.isEmpty() && !findsAny(includePatterns, relativePath)) {
+            return false;
+        }
+        return !findsAny(excludePatterns, relativePath);
+    }
+
+    /**
+     * Tells whether a file is selected.
+     *
+     * @param relativePath the path of the file relative to the start directory.
+     * @param file         the file, whose metadata is only read if there are size or age limits.
+     * @return whether the file is selected.
+     */
+    public boolean accepts(String relativePath, File file) {
+        if (!acceptsPath(relativePath)) {
+            return false;
+        }
+        if (minSize == NO_LIMIT && maxSize == NO_LIMIT && minAgeMillis == NO_LIMIT && maxAgeMillis == NO_LIMIT) {
+            return true;
+        }
+        FileMetadata metadata = file.getMetadata();
+        if (metadata == null) {
+            return false;
+        }
+
+        long size = metadata.getSize();
+        if ((minSize != NO_LIMIT && size < minSize) || (maxSize != NO_LIMIT && size > maxSize)) {
+            return false;
+        }
+        long age = System.currentTimeMillis() - metadata.getLastModified();
+        return (minAgeMillis == NO_LIMIT || age >= minAgeMillis) && (maxAgeMillis == NO_LIMIT || age <= maxAgeMillis);
+    }
+
+    /**
+     * Tells whether a directory has to be walked, as there may be selected files below it.
+     *
+     * @param relativeDirectoryPath the path of the directory relative to the start directory.
+     * @return <code>false</code> if no file below the directory is selected.
+     */
+    public boolean acceptsDirectory(String relativeDirectoryPath) {
+        for (Glob exclude : excludes) {
+            if (exclude.matchesDirectory(relativeDirectoryPath)) {
+                return false;
+            }
+        }
+        if (includes.isEmpty()) {
+            return true;
+        }
+        for (Glob include : includes) {
+            if (include.mayMatchBelow(relativeDirectoryPath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the beginning shared by the names of all files and sub-directories in a directory that may lead to a
+     * selected file.
+     *
+     * @param relativeDirectoryPath the path of the directory relative to the start directory, empty for the start
+     *                              directory itself.
+     * @return the beginning of the names to list, empty to list all names.
+     */
+    public String namePrefix(String relativeDirectoryPath) {
+        String prefix = null;
+        for (Glob include : includes) {
+            if (include.mayMatchBelow(relativeDirectoryPath)) {
+                prefix = commonPrefix(prefix, include.namePrefix(relativeDirectoryPath));
+            }
+        }
+        return prefix == null ? "" : prefix;
+    }
+
+    /**
+     * Returns the beginning shared by the paths of all selected files.
+     *
+     * @return the beginning of the paths relative to the start directory, empty if any path may be selected.
+     */
+    public String pathPrefix() {
+        String prefix = null;
+        for (Glob include : includes) {
+            prefix = commonPrefix(prefix, include.getLiteralPrefix());
+        }
+        return prefix == null ? "" : prefix;
+    }
+
+    private static String commonPrefix(String prefix, String other) {
+        if (prefix == null) {
+            return other;
+        }
+        int length = 0;
+        while (length < prefix.length() && length < other.length() && prefix.charAt(length) == other.charAt(length)) {
+            length++;
+        }
+        return prefix.substring(0, length);
+    }
+
+    private static boolean matchesAny(List<Glob> globs, String relativePath) {
+        for (Glob glob : globs) {
+            if (glob.matches(relativePath)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean findsAny(List<Pattern> patterns, String relativePath) {
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(relativePath).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
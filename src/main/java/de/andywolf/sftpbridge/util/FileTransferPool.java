@@ -0,0 +1,187 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.Connection;
+import de.andywolf.sftpbridge.base.ConnectionBuilder;
+import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import lombok.AllArgsConstructor;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A bounded pool of workers that transfer files concurrently. Each worker builds its own source and target
+ * {@link Connection} when it takes its first file and copies the files handed over by
+ * {@link #submit(File, String, BooleanSupplier, Runnable)} one after the other. A worker that cannot connect fails the
+ * file it has taken and ends, leaving the remaining files to the other workers.
+ * The connections are closed when the worker ends, so builders that borrow them from a
+ * {@link de.andywolf.sftpbridge.base.ConnectionPool} hand them back for reuse.
+ * <p/>
+ * Failures of single files do not stop the other transfers. They are collected and thrown as suppressed exceptions
+ * of a {@link RuntimeIOException} by {@link #awaitCompletion()}.
+ */
+@Slf4j
+class FileTransferPool {
+
+    private static final Task POISON_PILL = new Task(null, null, null, null, null, null);
+
+    private final FileCopier copier;
+    private final ConnectionBuilder sourceConnectionBuilder;
+    private final ConnectionBuilder targetConnectionBuilder;
+    private final int parallelism;
+
+    private final BlockingQueue<Task> tasks;
+    private final ExecutorService executor;
+    private final AtomicInteger liveWorkers = new AtomicInteger();
+    private final RuntimeIOException accumulator = new RuntimeIOException("Cannot copy all files, see suppressed exceptions.");
+
+    FileTransferPool(FileCopier copier, CopyOptions copyOptions) {
+        if (copyOptions.getSourceConnectionBuilder() == null || copyOptions.getTargetConnectionBuilder() == null) {
+            throw new IllegalArgumentException("Parallel copying requires a source and a target connection builder");
+        }
+
+        this.copier = copier;
+        this.sourceConnectionBuilder = copyOptions.getSourceConnectionBuilder();
+        this.targetConnectionBuilder = copyOptions.getTargetConnectionBuilder();
+        this.parallelism = copyOptions.getParallelism();
+        this.tasks = new ArrayBlockingQueue<>(2 * parallelism);
+        this.executor = Executors.newFixedThreadPool(parallelism);
+
+        for (int i = 0; i < parallelism; i++) {
+            liveWorkers.incrementAndGet();
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Hands a file over to the workers. Blocks while all workers are busy and the queue is full.
+     *
+     * @param srcFile          the source file, whose metadata is handed over to the worker along with its path.
+     * @param dstDirectoryPath the full path of the destination directory on the target connection.
+     * @param admission        invoked by the worker when it picks up the file, the file is skipped if it returns
+     *                         <code>false</code>.
+     * @param onSuccess        invoked by the worker once the file has been copied.
+     */
+    void submit(File srcFile, String dstDirectoryPath, BooleanSupplier admission, Runnable onSuccess) {
+        Task task = new Task(srcFile.getDirectory().getFullDirectoryPath(), dstDirectoryPath, srcFile.getFileName(),
+                srcFile.getMetadata(), admission, onSuccess);
+        try {
+            while (!tasks.offer(task, 1, TimeUnit.SECONDS)) {
+                if (liveWorkers.get() == 0) {
+                    throw new RuntimeIOException("No worker left to copy " + srcFile, accumulator);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while submitting " + srcFile, e);
+        }
+    }
+
+    /**
+     * Waits until all submitted files have been transferred and shuts down the workers.
+     *
+     * @throws RuntimeIOException if at least one file could not be copied.
+     */
+    void awaitCompletion() {
+        try {
+            for (int i = 0; i < parallelism; i++) {
+                while (liveWorkers.get() > 0 && !tasks.offer(POISON_PILL, 1, TimeUnit.SECONDS)) {
+                    log.trace("Waiting for {} workers to drain the queue", liveWorkers.get());
+                }
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                log.trace("Waiting for {} workers to finish", liveWorkers.get());
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while waiting for transfers to finish", e);
+        }
+
+        // Files left in the queue when the last worker died
+        for (Task task : tasks) {
+            if (task != POISON_PILL) {
+                accumulator.addSuppressed(new RuntimeIOException("File " + task + " was not copied, no worker left"));
+            }
+        }
+
+        Throwable[] suppressed = accumulator.getSuppressed();
+        if (suppressed != null && suppressed.length > 0) {
+            throw accumulator;
+        }
+    }
+
+    private void work() {
+        Connection srcConnection = null;
+        Connection dstConnection = null;
+        try {
+            Task task;
+            while ((task = tasks.take()) != POISON_PILL) {
+                // connected with the first file, so the file taken is the one that fails if the worker cannot connect
+                try {
+                    if (srcConnection == null) {
+                        srcConnection = sourceConnectionBuilder.build();
+                    }
+                    if (dstConnection == null) {
+                        dstConnection = targetConnectionBuilder.build();
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Worker cannot connect, leaving the remaining files to the other workers", e);
+                    accumulator.addSuppressed(new RuntimeIOException("File " + task + " was not copied, the worker cannot connect", e));
+                    return;
+                }
+
+                try {
+                    File srcFile = srcConnection.getDirectory(task.srcDirectoryPath).getFile(task.fileName, task.srcMetadata);
+                    File dstFile = dstConnection.getDirectory(task.dstDirectoryPath).getFile(task.fileName);
+                    if (task.admission.getAsBoolean()) {
+                        copier.transmitListedFile(srcFile, dstFile);
+                        task.onSuccess.run();
+                    }
+                } catch (RuntimeException e) {
+                    log.warn("Unable to copy {}. Continue...", task);
+                    accumulator.addSuppressed(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly(srcConnection);
+            closeQuietly(dstConnection);
+            liveWorkers.decrementAndGet();
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (RuntimeException e) {
+                log.warn("Exception while closing worker connection {}", connection, e);
+            }
+        }
+    }
+
+    @ToString
+    @AllArgsConstructor
+    private static class Task {
+        private final String srcDirectoryPath;
+        private final String dstDirectoryPath;
+        private final String fileName;
+        @ToString.Exclude
+        private final FileMetadata srcMetadata;
+        @ToString.Exclude
+        private final BooleanSupplier admission;
+        @ToString.Exclude
+        private final Runnable onSuccess;
+    }
+}
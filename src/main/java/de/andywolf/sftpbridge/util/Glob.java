@@ -0,0 +1,193 @@
+package de.andywolf.sftpbridge.util;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * A glob pattern matched against paths relative to the directory a walk starts from, separated by slashes.
+ * <p/>
+ * <code>*</code> matches any characters within a path segment, <code>**</code> matches any characters across
+ * segments, <code>?</code> matches a single character within a segment, <code>[abc]</code> and <code>[!abc]</code>
+ * match a character from or not from a set, <code>{a,b}</code> matches one of the alternatives and a backslash
+ * escapes the next character. Alternatives must not contain slashes.
+ */
+@ToString(of = "glob")
+@EqualsAndHashCode(of = "glob")
+class Glob {
+
+    private static final String SPECIAL_CHARACTERS = "*?[{\\";
+
+    private final String glob;
+
+    private final Pattern pattern;
+
+    /** The patterns of the single path segments, null for segments containing <code>**</code> */
+    private final List<Pattern> segments = new ArrayList<>();
+
+    /** The part of the glob before the first special character */
+    private final String literalPrefix;
+
+    Glob(String glob) {
+        this.glob = glob;
+        this.pattern = Pattern.compile(toRegex(glob));
+        for (String segment : Utils.splitPath(glob)) {
+            segments.add(segment.contains("**") ? null : Pattern.compile(toRegex(segment)));
+        }
+        this.literalPrefix = literalPrefix(glob);
+    }
+
+    /**
+     * @param relativePath the path of a file.
+     * @return whether the glob matches the file.
+     */
+    boolean matches(String relativePath) {
+        return pattern.matcher(relativePath).matches();
+    }
+
+    /**
+     * Tells whether the glob may match a path below a directory, judged by the segments of the directory path only.
+     *
+     * @param relativeDirectoryPath the path of a directory, empty for the start directory.
+     * @return <code>false</code> if the glob cannot match any path below the directory.
+     */
+    boolean mayMatchBelow(String relativeDirectoryPath) {
+        List<String> directories = Utils.splitPath(relativeDirectoryPath);
+        for (int i = 0; i < directories.size(); i++) {
+            if (i < segments.size() && segments.get(i) == null) {
+                return true;
+            }
+            // The last segment names the file, so the directory has to be above it
+            if (i >= segments.size() - 1 || !segments.get(i).matcher(directories.get(i)).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells whether the glob matches a directory as a whole, that is the directory itself or the directory followed
+     * by <code>/**</code>.
+     *
+     * @param relativeDirectoryPath the path of a directory.
+     * @return whether everything below the directory matches the glob.
+     */
+    boolean matchesDirectory(String relativeDirectoryPath) {
+        if (matches(relativeDirectoryPath)) {
+            return true;
+        }
+        if (glob.endsWith("/**")) {
+            return Pattern.matches(toRegex(glob.substring(0, glob.length() - 3)), relativeDirectoryPath);
+        }
+        return false;
+    }
+
+    /**
+     * Returns the beginning all names in a directory matched by the glob share.
+     *
+     * @param relativeDirectoryPath the path of a directory, empty for the start directory.
+     * @return the beginning of the matching names, empty if any name may match.
+     */
+    String namePrefix(String relativeDirectoryPath) {
+        int depth = Utils.splitPath(relativeDirectoryPath).size();
+        for (int i = 0; i <= depth && i < segments.size(); i++) {
+            if (segments.get(i) == null) {
+                return "";
+            }
+        }
+        if (depth >= segments.size()) {
+            return "";
+        }
+        return literalPrefix(Utils.splitPath(glob).get(depth));
+    }
+
+    /**
+     * @return the part of the glob before its first special character, which all matching paths start with.
+     */
+    String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    private static String literalPrefix(String glob) {
+        for (int i = 0; i < glob.length(); i++) {
+            if (SPECIAL_CHARACTERS.indexOf(glob.charAt(i)) >= 0) {
+                return glob.substring(0, i);
+            }
+        }
+        return glob;
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder regex = new StringBuilder();
+        boolean inAlternatives = false;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*':
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == Utils.PATH_SEPARATOR_CHAR) {
+                            // "**/" also matches no directory at all
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                    break;
+                case '?':
+                    regex.append("[^/]");
+                    break;
+                case '[':
+                    int end = glob.indexOf(']', i + 1);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed character class in glob " + glob);
+                    }
+                    String characters = glob.substring(i + 1, end);
+                    if (characters.startsWith("!")) {
+                        characters = "^" + characters.substring(1);
+                    }
+                    regex.append('[').append(characters.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                    break;
+                case '{':
+                    if (inAlternatives) {
+                        throw new IllegalArgumentException("Nested alternatives in glob " + glob);
+                    }
+                    inAlternatives = true;
+                    regex.append("(?:");
+                    break;
+                case '}':
+                    if (inAlternatives) {
+                        inAlternatives = false;
+                        regex.append(')');
+                    } else {
+                        regex.append("\\}");
+                    }
+                    break;
+                case ',':
+                    regex.append(inAlternatives ? "|" : ",");
+                    break;
+                case '\\':
+                    if (i + 1 < glob.length()) {
+                        i++;
+                        regex.append(Pattern.quote(Character.toString(glob.charAt(i))));
+                    } else {
+                        regex.append("\\\\");
+                    }
+                    break;
+                default:
+                    regex.append(Pattern.quote(Character.toString(c)));
+            }
+        }
+        if (inAlternatives) {
+            throw new IllegalArgumentException("Unclosed alternatives in glob " + glob);
+        }
+        return regex.toString();
+    }
+}
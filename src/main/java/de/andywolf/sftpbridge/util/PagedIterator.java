@@ -0,0 +1,70 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.base.CloseableIterator;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A {@link CloseableIterator} over a remote listing that is fetched in pages. The next page is fetched only when the
+ * elements of the current one have been read.
+ *
+ * @param <T> the type of the elements.
+ */
+public abstract class PagedIterator<T> implements CloseableIterator<T> {
+
+    private Iterator<T> page = Collections.emptyIterator();
+    private boolean exhausted;
+    private boolean closed;
+
+    /**
+     * Fetches the next page of the listing. A page may be empty even if more pages follow.
+     *
+     * @return the elements of the next page, <code>null</code> if the listing has ended.
+     */
+    protected abstract List<T> nextPage();
+
+    /**
+     * Releases the remote resources of the listing. This implementation does nothing.
+     */
+    protected void release() {
+        // do nothing - overridable by subclass
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!page.hasNext()) {
+            if (exhausted || closed) {
+                return false;
+            }
+            List<T> next = nextPage();
+            if (next == null) {
+                exhausted = true;
+                close();
+                return false;
+            }
+            page = next.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return page.next();
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        page = Collections.emptyIterator();
+        release();
+    }
+}
@@ -0,0 +1,159 @@
+package de.andywolf.sftpbridge.util;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream that reads a remote file of known length in consecutive byte ranges, fetching several ranges at the
+ * same time.
+ * <p/>
+ * The ranges are returned to the caller in order. At most <code>concurrency</code> ranges are requested or waiting to
+ * be read besides the range the caller is reading, so at most <code>(concurrency + 1) * rangeSize</code> bytes are
+ * buffered.
+ */
+@Slf4j
+public abstract class ParallelRangeInputStream extends InputStream {
+
+    private static final ExecutorService RANGE_READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "range-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final long length;
+    private final int rangeSize;
+    private final int concurrency;
+
+    /** The ranges requested but not read yet, in offset order */
+    private final Deque<Future<byte[]>> window = new ArrayDeque<>();
+
+    /** The offset of the next range to request */
+    private long nextRangeOffset;
+
+    /** The range currently read by the caller */
+    private byte[] current = new byte[0];
+    private int currentPosition;
+
+    private boolean closed;
+
+    /**
+     * @param length      the length of the remote file.
+     * @param rangeSize   the size of each range.
+     * @param concurrency the maximum number of ranges fetched at the same time.
+     */
+    protected ParallelRangeInputStream(long length, int rangeSize, int concurrency) {
+        if (rangeSize < 1 || concurrency < 1) {
+            throw new IllegalArgumentException("Range size and concurrency must be at least 1");
+        }
+        this.length = length;
+        this.rangeSize = rangeSize;
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Reads one range of the remote file completely. Invoked concurrently from several threads.
+     *
+     * @param offset the offset of the range in the remote file.
+     * @param length the length of the range.
+     * @return the content of the range.
+     * @throws IOException if the range cannot be read.
+     */
+    protected abstract byte[] readRange(long offset, int length) throws IOException;
+
+    @Override
+    public int read() throws IOException {
+        if (!nextRangeIfExhausted()) {
+            return -1;
+        }
+        return current[currentPosition++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextRangeIfExhausted()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - currentPosition);
+        System.arraycopy(current, currentPosition, b, off, n);
+        currentPosition += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current.length - currentPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Future<byte[]> range : window) {
+            range.cancel(true);
+        }
+        window.clear();
+    }
+
+    /**
+     * Makes the next range current if the current one has been read completely.
+     *
+     * @return <code>false</code> if the end of the file has been reached.
+     */
+    private boolean nextRangeIfExhausted() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        while (currentPosition >= current.length) {
+            requestRanges();
+            Future<byte[]> next = window.poll();
+            if (next == null) {
+                return false;
+            }
+            current = await(next);
+            currentPosition = 0;
+            requestRanges();
+        }
+        return true;
+    }
+
+    private void requestRanges() {
+        while (window.size() < concurrency && nextRangeOffset < length) {
+            final long offset = nextRangeOffset;
+            final int size = (int) Math.min(rangeSize, length - offset);
+            log.trace("Requesting range {}-{} of {}", offset, offset + size - 1, this);
+            window.add(RANGE_READERS.submit(() -> readRange(offset, size)));
+            nextRangeOffset += size;
+        }
+    }
+
+    private byte[] await(Future<byte[]> range) throws IOException {
+        try {
+            return range.get();
+        } catch (ExecutionException e) {
+            close();
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Cannot read range of " + this, cause);
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading " + this);
+        }
+    }
+}
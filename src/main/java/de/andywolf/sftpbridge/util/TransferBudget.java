@@ -0,0 +1,115 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import static de.andywolf.sftpbridge.util.CopyOptions.NO_LIMIT;
+
+/**
+ * Counts the files and bytes a copy transfers against the limits and the deadline of its {@link CopyOptions}.
+ * <p/>
+ * Once a file would exceed a limit or the deadline, the budget is exhausted and no further file is admitted, so that
+ * the copy stops picking up work in a well-defined place. The first file is always admitted, so a file larger than
+ * the byte limit cannot block every copy. Whether a file would finish after the deadline is estimated from the
+ * time the files completed so far took per byte. All methods are thread-safe.
+ */
+@Slf4j
+@ToString
+class TransferBudget {
+
+    private final long maxFiles;
+    private final long maxBytes;
+    private final long deadlineMillis;
+
+    /** The start times of the admitted transfers, by source file; only tracked with a deadline */
+    @ToString.Exclude
+    private final Map<File, Long> started = new IdentityHashMap<>();
+
+    private long files;
+    private long bytes;
+    private long completedBytes;
+    private long completedMillis;
+    private boolean exhausted;
+
+    TransferBudget(CopyOptions copyOptions) {
+        this.maxFiles = copyOptions.getMaxFiles();
+        this.maxBytes = copyOptions.getMaxBytes();
+        this.deadlineMillis = copyOptions.getDeadlineMillis();
+    }
+
+    /**
+     * Admits a file if it fits into the budget. Call it right before the file is transferred, so that the deadline is
+     * checked against the time the transfer actually starts. The size is taken from the metadata of the listing and
+     * only if there is a byte limit or a deadline.
+     *
+     * @param file the file to transfer.
+     * @return <code>false</code> if the file must be left for the next copy.
+     */
+    synchronized boolean tryAcquire(File file) {
+        if (isExhausted()) {
+            return false;
+        }
+        if (maxFiles != NO_LIMIT && files + 1 > maxFiles) {
+            return exhaust("Transferred {} files, the maximum", files);
+        }
+
+        long size = 0;
+        if (maxBytes != NO_LIMIT || deadlineMillis != NO_LIMIT) {
+            size = sizeOf(file);
+        }
+        if (maxBytes != NO_LIMIT && files > 0 && bytes + size > maxBytes) {
+            return exhaust("Transferred {} bytes, another {} would exceed the maximum", bytes, size);
+        }
+        if (deadlineMillis != NO_LIMIT) {
+            long now = System.currentTimeMillis();
+            long estimatedMillis = completedBytes > 0 ? completedMillis * size / completedBytes : 0;
+            if (now + estimatedMillis > deadlineMillis) {
+                return exhaust("Another {} bytes would take about {} ms and finish after the deadline", size, estimatedMillis);
+            }
+            started.put(file, now);
+        }
+
+        files++;
+        bytes += size;
+        return true;
+    }
+
+    /**
+     * Records a file that has been transferred, for the estimate of the time further files take.
+     *
+     * @param file the file admitted by {@link #tryAcquire(File)}.
+     */
+    synchronized void completed(File file) {
+        Long start = started.remove(file);
+        if (start != null) {
+            completedMillis += System.currentTimeMillis() - start;
+            completedBytes += sizeOf(file);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if no further file is admitted.
+     */
+    synchronized boolean isExhausted() {
+        if (!exhausted && deadlineMillis != NO_LIMIT && System.currentTimeMillis() >= deadlineMillis) {
+            exhaust("Deadline passed after {} files", files);
+        }
+        return exhausted;
+    }
+
+    private static long sizeOf(File file) {
+        FileMetadata metadata = file.getMetadata();
+        return metadata == null ? 0 : metadata.getSize();
+    }
+
+    private boolean exhaust(String message, Object... arguments) {
+        log.info(message + ", starting no further transfer", arguments);
+        exhausted = true;
+        return false;
+    }
+}
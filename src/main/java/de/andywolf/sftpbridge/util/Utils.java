@@ -1,7 +1,10 @@
 package de.andywolf.sftpbridge.util;
 
 import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
+import de.andywolf.sftpbridge.base.File;
 import lombok.AccessLevel;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -10,7 +13,16 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 /**
@@ -24,6 +36,86 @@ public class Utils {
     public static final String PATH_SEPARATOR = Character.toString(PATH_SEPARATOR_CHAR);
     public static final Pattern PATH_SEPARATOR_PATTERN = Pattern.compile(PATH_SEPARATOR);
 
+    private static final ExecutorService PIPELINE_READERS = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "pipeline-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Iterates over elements that are already known, without any remote resources to release.
+     *
+     * @param elements the elements to iterate over.
+     * @return an iterator over the elements.
+     */
+    public static <T> CloseableIterator<T> iterate(Collection<? extends T> elements) {
+        final Iterator<? extends T> iterator = elements.iterator();
+        return new CloseableIterator<T>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public T next() {
+                return iterator.next();
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+
+    /**
+     * Iterates over the files among directory entries.
+     *
+     * @param entries the entries of a directory.
+     * @return an iterator over the files.
+     */
+    public static CloseableIterator<File> iterateFiles(List<DirectoryEntry> entries) {
+        List<File> files = new ArrayList<>();
+        for (DirectoryEntry entry : entries) {
+            if (!entry.isDirectory()) {
+                files.add(entry.getFile());
+            }
+        }
+        return iterate(files);
+    }
+
+    /**
+     * Iterates over the sub-directories among directory entries.
+     *
+     * @param entries the entries of a directory.
+     * @return an iterator over the sub-directories.
+     */
+    public static CloseableIterator<Directory> iterateSubDirectories(List<DirectoryEntry> entries) {
+        List<Directory> directories = new ArrayList<>();
+        for (DirectoryEntry entry : entries) {
+            if (entry.isDirectory()) {
+                directories.add(entry.getDirectory());
+            }
+        }
+        return iterate(directories);
+    }
+
+    /**
+     * Reads an iterator to its end and closes it.
+     *
+     * @param iterator the iterator to read.
+     * @return the elements of the iterator.
+     */
+    public static <T> List<T> toList(CloseableIterator<T> iterator) {
+        try (CloseableIterator<T> closeable = iterator) {
+            List<T> list = new ArrayList<>();
+            while (closeable.hasNext()) {
+                list.add(closeable.next());
+            }
+            return list;
+        }
+    }
+
     /**
      * Writes the contents of an {@link InputStream} to an {@link OutputStream}.
      *
@@ -42,6 +134,95 @@ public class Utils {
         }
     }
 
+    /**
+     * Writes the contents of an {@link InputStream} to an {@link OutputStream}, overlapping reads and writes.
+     * <p/>
+     * A reader thread fills buffers taken from a pool of <code>bufferCount</code> buffers and hands them over to the
+     * calling thread through a bounded queue. The calling thread writes them and returns them to the pool. This way
+     * the latency of the source and the latency of the target overlap instead of adding up.
+     * <p/>
+     * The reader thread has stopped reading when this method returns, also if it fails, so the caller may close the
+     * {@link InputStream} right away.
+     *
+     * @param from        the {@link InputStream} to read from.
+     * @param to          the {@link OutputStream} to write to.
+     * @param bufferSize  the size of each buffer.
+     * @param bufferCount the number of buffers. With less than two buffers the streams are copied without a pipeline.
+     */
+    public static void write(InputStream from, OutputStream to, int bufferSize, int bufferCount) {
+        if (bufferCount < 2) {
+            write(from, to);
+            return;
+        }
+
+        final BlockingQueue<byte[]> emptyBuffers = new ArrayBlockingQueue<>(bufferCount);
+        final BlockingQueue<Chunk> filledBuffers = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; i++) {
+            emptyBuffers.add(new byte[bufferSize]);
+        }
+
+        // claimed by the reader when it starts, or by the writer to keep it from starting
+        final AtomicBoolean claimed = new AtomicBoolean();
+        final CountDownLatch readerStopped = new CountDownLatch(1);
+        Future<?> reader = PIPELINE_READERS.submit(() -> {
+            if (!claimed.compareAndSet(false, true)) {
+                return null;
+            }
+            try {
+                while (true) {
+                    byte[] buffer = emptyBuffers.take();
+                    int nRead = from.read(buffer, 0, buffer.length);
+                    if (nRead == -1) {
+                        filledBuffers.put(Chunk.END_OF_STREAM);
+                        return null;
+                    }
+                    filledBuffers.put(new Chunk(buffer, nRead, null));
+                }
+            } catch (IOException | RuntimeException e) {
+                filledBuffers.put(new Chunk(null, -1, e));
+                return null;
+            } finally {
+                readerStopped.countDown();
+            }
+        });
+
+        try {
+            Chunk chunk;
+            while ((chunk = filledBuffers.take()) != Chunk.END_OF_STREAM) {
+                if (chunk.failure != null) {
+                    throw new RuntimeIOException(chunk.failure);
+                }
+                to.write(chunk.buffer, 0, chunk.length);
+                emptyBuffers.add(chunk.buffer);
+            }
+        } catch (IOException ioe) {
+            throw new RuntimeIOException(ioe);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeIOException("Interrupted while writing", ie);
+        } finally {
+            if (!claimed.compareAndSet(false, true)) {
+                reader.cancel(true);
+                awaitUninterruptibly(readerStopped);
+            }
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     /**
      * Construct a new (host) path from a parent directory, and a child.
      *
@@ -53,6 +234,38 @@ public class Utils {
         return parent.getFullDirectoryPath() + PATH_SEPARATOR + child;
     }
 
+    /**
+     * @param base      the directory the path is relative to.
+     * @param directory a directory below the base directory.
+     * @return the path of the directory relative to the base directory, the empty string for the base directory.
+     */
+    public static String relativePath(final Directory base, final Directory directory) {
+        String root = base.getFullDirectoryPath();
+        String path = directory.getFullDirectoryPath();
+        if (path.startsWith(root)) {
+            path = path.substring(root.length());
+        }
+        int begin = 0;
+        int end = path.length();
+        while (begin < end && path.charAt(begin) == PATH_SEPARATOR_CHAR) {
+            begin++;
+        }
+        while (end > begin && path.charAt(end - 1) == PATH_SEPARATOR_CHAR) {
+            end--;
+        }
+        return path.substring(begin, end);
+    }
+
+    /**
+     * @param base the directory the path is relative to.
+     * @param file a file below the base directory.
+     * @return the path of the file relative to the base directory.
+     */
+    public static String relativePath(final Directory base, final File file) {
+        String directory = relativePath(base, file.getDirectory());
+        return directory.isEmpty() ? file.getFileName() : directory + PATH_SEPARATOR + file.getFileName();
+    }
+
     public static String mkString(List<String> strings, String sep) {
         if (strings.isEmpty()) return "";
 
@@ -82,4 +295,18 @@ public class Utils {
         return PATH_SEPARATOR + mkString(pathComponents, PATH_SEPARATOR);
     }
 
+    private static final class Chunk {
+
+        private static final Chunk END_OF_STREAM = new Chunk(null, -1, null);
+
+        private final byte[] buffer;
+        private final int length;
+        private final Exception failure;
+
+        private Chunk(byte[] buffer, int length, Exception failure) {
+            this.buffer = buffer;
+            this.length = length;
+            this.failure = failure;
+        }
+    }
 }
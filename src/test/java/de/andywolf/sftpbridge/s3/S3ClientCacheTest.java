@@ -0,0 +1,47 @@
+package de.andywolf.sftpbridge.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import de.andywolf.sftpbridge.ConnectionOptions;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class S3ClientCacheTest {
+
+    @AfterEach
+    void afterEach() {
+        S3ClientCache.shutdown();
+    }
+
+    @Test
+    void testGetClient_sharedAcrossConnections() {
+        // given
+        ConnectionOptions options = new ConnectionOptions();
+        options.set(ConnectionOptions.ADDRESS, "some-bucket");
+        options.set(ConnectionOptions.ENDPOINT_URL, "http://localhost:4566");
+        S3Connection first = new S3Connection(options);
+        S3Connection second = new S3Connection(options);
+
+        ConnectionOptions tuned = new ConnectionOptions();
+        tuned.set(ConnectionOptions.ADDRESS, "some-bucket");
+        tuned.set(ConnectionOptions.ENDPOINT_URL, "http://localhost:4566");
+        tuned.set(ConnectionOptions.S3_MAX_CONNECTIONS, 128);
+        S3Connection third = new S3Connection(tuned);
+
+        // when
+        first.connect();
+        AmazonS3 firstClient = first.getS3Client();
+        first.close();
+        second.connect();
+        third.connect();
+
+        // then
+        assertNotNull(firstClient);
+        assertSame(firstClient, second.getS3Client());
+        assertNotSame(firstClient, third.getS3Client());
+
+        second.close();
+        third.close();
+    }
+}
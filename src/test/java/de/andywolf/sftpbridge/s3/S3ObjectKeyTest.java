@@ -2,22 +2,34 @@ package de.andywolf.sftpbridge.s3;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import de.andywolf.sftpbridge.RuntimeIOException;
 import de.andywolf.sftpbridge.ConnectionOptions;
 import de.andywolf.sftpbridge.base.Connection;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.File;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
 import org.testcontainers.containers.localstack.LocalStackContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.utility.DockerImageName;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Random;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
 import static org.testcontainers.containers.localstack.LocalStackContainer.Service.S3;
 
 @Slf4j
@@ -175,6 +187,155 @@ class S3ObjectKeyTest {
         connection.close();
     }
 
+    @Test
+    void testListTree() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory directory = connection.getDirectory("/my/tree/folder");
+        writeFile(connection.getFile(directory, "top.txt"));
+        writeFile(connection.getFile(directory.getSubDirectory("a"), "one.txt"));
+        writeFile(connection.getFile(directory.getSubDirectory("a").getSubDirectory("b"), "two.txt"));
+        directory.getSubDirectory("empty").mkdir();
+
+        // when
+        Directory tree = directory.listTree();
+
+        // then
+        assertEquals(directory.getFullDirectoryPath(), tree.getFullDirectoryPath());
+        assertEquals(1, tree.listFiles().size());
+        assertEquals(2, tree.listSubDirectories().size());
+
+        Directory a = tree.getSubDirectory("a");
+        assertEquals("one.txt", a.listFiles().get(0).getFileName());
+        assertEquals(1, a.listFiles().get(0).getMetadata().getSize());
+        assertEquals("two.txt", a.getSubDirectory("b").listFiles().get(0).getFileName());
+        assertTrue(tree.getSubDirectory("empty").listFiles().isEmpty());
+
+        connection.close();
+    }
+
+    @Test
+    void testDeleteDirectoryRecursively() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory directory = connection.getDirectory("/my/deleted/folder");
+        directory.mkdir();
+        writeFile(connection.getFile(directory, "top.txt"));
+        writeFile(connection.getFile(directory.getSubDirectory("a"), "one.txt"));
+        directory.getSubDirectory("empty").mkdir();
+
+        // when
+        directory.deleteRecursively();
+
+        // then
+        assertFalse(directory.exists());
+
+        connection.close();
+    }
+
+    @Test
+    void testDeleteDirectoryRecursively_manyBatches() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory directory = connection.getDirectory("/my/batched/folder");
+        for (int i = 0; i < 2500; i++) {
+            writeFile(connection.getFile(directory.getSubDirectory("sub-" + (i % 10)), "file-" + i + ".txt"));
+        }
+
+        // when
+        directory.deleteRecursively();
+
+        // then
+        assertFalse(directory.exists());
+
+        connection.close();
+    }
+
+    @Test
+    void testDeleteDirectoryRecursively_batchesOfAtMost1000Keys() throws IOException {
+        // given
+        AmazonS3 s3Client = mock(AmazonS3.class, delegatesTo(S3ClientCache.getClient(options)));
+        Connection connection = connectionWith(s3Client);
+
+        Directory directory = connection.getDirectory("/my/counted/folder");
+        for (int i = 0; i < 2500; i++) {
+            writeFile(connection.getFile(directory.getSubDirectory("sub-" + (i % 10)), "file-" + i + ".txt"));
+        }
+
+        // when
+        directory.deleteRecursively();
+
+        // then
+        ArgumentCaptor<DeleteObjectsRequest> requests = ArgumentCaptor.forClass(DeleteObjectsRequest.class);
+        verify(s3Client, times(3)).deleteObjects(requests.capture());
+        int deleted = 0;
+        for (DeleteObjectsRequest request : requests.getAllValues()) {
+            assertTrue(request.getKeys().size() <= 1000);
+            deleted += request.getKeys().size();
+        }
+        assertEquals(2500, deleted);
+        assertFalse(directory.exists());
+
+        connection.close();
+    }
+
+    @Test
+    void testDeleteDirectoryRecursively_failedKeysAreSuppressed() throws IOException {
+        // given
+        AmazonS3 s3Client = mock(AmazonS3.class, delegatesTo(S3ClientCache.getClient(options)));
+        Connection connection = connectionWith(s3Client);
+
+        Directory directory = connection.getDirectory("/my/undeletable/folder");
+        writeFile(connection.getFile(directory, "one.txt"));
+        writeFile(connection.getFile(directory, "two.txt"));
+        doThrow(new MultiObjectDeleteException(
+                Arrays.asList(deleteError("my/undeletable/folder/one.txt"), deleteError("my/undeletable/folder/two.txt")),
+                Collections.emptyList()))
+                .when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
+
+        // when
+        RuntimeIOException failure = assertThrows(RuntimeIOException.class, directory::deleteRecursively);
+
+        // then
+        Throwable[] suppressed = failure.getSuppressed();
+        assertEquals(2, suppressed.length);
+        assertTrue(suppressed[0].getMessage().contains("my/undeletable/folder/one.txt"));
+        assertTrue(suppressed[1].getMessage().contains("my/undeletable/folder/two.txt"));
+
+        connection.close();
+    }
+
+    /**
+     * A connection that sends its requests through the given client
+     */
+    private static Connection connectionWith(AmazonS3 s3Client) {
+        S3Connection connection = new S3Connection(options) {
+            @Override
+            public AmazonS3 getS3Client() {
+                return s3Client;
+            }
+        };
+        connection.connect();
+        return connection;
+    }
+
+    private static MultiObjectDeleteException.DeleteError deleteError(String key) {
+        MultiObjectDeleteException.DeleteError error = new MultiObjectDeleteException.DeleteError();
+        error.setKey(key);
+        error.setCode("AccessDenied");
+        error.setMessage("Access Denied");
+        return error;
+    }
+
+    private static void writeFile(File file) throws IOException {
+        try (OutputStream outputStream = file.getOutputStream()) {
+            outputStream.write(1);
+        }
+    }
+
     private String generateRandomAlphanumericString(final long length) {
         int leftLimit = 48; // numeral '0'
         int rightLimit = 122; // letter 'z'
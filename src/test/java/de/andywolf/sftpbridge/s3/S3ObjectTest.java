@@ -15,7 +15,9 @@ import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 import org.testcontainers.utility.DockerImageName;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
 import java.util.Random;
@@ -116,6 +118,77 @@ class S3ObjectTest {
         connection.close();
     }
 
+    @Test
+    void testCreateMultipartObject() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(newOptions())
+                .withOption(ConnectionOptions.S3_MAX_PARTS_IN_FLIGHT, 2)
+                .build();
+
+        Directory directory = connection.getDirectory("/my/test/folder");
+        File file = connection.getFile(directory, "multipart.bin");
+
+        // when
+        byte[] bytesArray = generateRandomBytes(3 * S3OutputStream.BUFFER_SIZE + 100);
+        OutputStream outputStream = file.getOutputStream();
+        outputStream.write(bytesArray);
+        outputStream.close();
+
+        // then
+        assertArrayEquals(bytesArray, readFully(file));
+
+        connection.close();
+    }
+
+    @Test
+    void testReadObjectInRanges() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(newOptions())
+                .withOption(ConnectionOptions.S3_RANGED_GET_PART_SIZE, 1000)
+                .withOption(ConnectionOptions.S3_RANGED_GET_CONCURRENCY, 3)
+                .build();
+
+        Directory directory = connection.getDirectory("/my/test/folder");
+        File file = connection.getFile(directory, "ranges.bin");
+        File emptyFile = connection.getFile(directory, "empty.bin");
+
+        byte[] bytesArray = generateRandomBytes(10_500);
+        OutputStream outputStream = file.getOutputStream();
+        outputStream.write(bytesArray);
+        outputStream.close();
+
+        emptyFile.getOutputStream().close();
+
+        // when
+        byte[] content = readFully(file);
+        byte[] emptyContent = readFully(emptyFile);
+
+        // then
+        assertArrayEquals(bytesArray, content);
+        assertEquals(0, emptyContent.length);
+
+        connection.close();
+    }
+
+    private static ConnectionOptions newOptions() {
+        ConnectionOptions testOptions = new ConnectionOptions();
+        testOptions.set(ConnectionOptions.ADDRESS, BUCKET_NAME_1);
+        testOptions.set(ConnectionOptions.ENDPOINT_URL, endpoint.toString());
+        return testOptions;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (InputStream inputStream = file.getInputStream()) {
+            byte[] buffer = new byte[4096];
+            int nRead;
+            while ((nRead = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, nRead);
+            }
+        }
+        return content.toByteArray();
+    }
+
     private String generateRandomAlphanumericString(final long length) {
         int leftLimit = 48; // numeral '0'
         int rightLimit = 122; // letter 'z'
@@ -1,13 +1,20 @@
 package de.andywolf.sftpbridge.sftp;
 
 import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.RuntimeIOException;
 import de.andywolf.sftpbridge.base.Connection;
+import de.andywolf.sftpbridge.base.ConnectionBuilder;
+import de.andywolf.sftpbridge.base.ConnectionPool;
+import de.andywolf.sftpbridge.base.Directory;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import static com.github.stefanbirkner.fakesftpserver.lambda.FakeSftpServer.withSftpServer;
-import static org.junit.jupiter.api.Assertions.assertNotNull;
-import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 class SftpConnectionTest {
 
@@ -45,6 +52,157 @@ class SftpConnectionTest {
         assertNull(connection);
     }
 
+    @Test
+    void testConnect_lazy() throws Exception {
+        // given
+        Connection unreachable = new SftpConnectionBuilder(new ConnectionOptions())
+                .withOption(ConnectionOptions.ADDRESS, "localhost")
+                .withOption(ConnectionOptions.PORT, 22)
+                .withOption(ConnectionOptions.USERNAME, "foo")
+                .withOption(ConnectionOptions.PASSWORD, "bar")
+                .withOption(ConnectionOptions.LAZY_CONNECT, "true")
+                .build();
+
+        // then
+        assertFalse(unreachable.isConnected());
+        Directory directory = unreachable.getDirectory("/lazy");
+        assertThrows(RuntimeIOException.class, directory::exists);
+
+        withSftpServer(server -> {
+            // given
+            server.createDirectory("/lazy");
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.LAZY_CONNECT, "true")
+                    .build();
+            assertFalse(connection.isConnected());
+
+            // when
+            boolean exists = connection.getDirectory("/lazy").exists();
+
+            // then
+            assertTrue(exists);
+            assertTrue(connection.isConnected());
+
+            connection.close();
+            assertFalse(connection.isConnected());
+        });
+    }
+
+    @Test
+    void testConnectionPool_reuseAndReconnect() throws Exception {
+        withSftpServer(server -> {
+            // given
+            ConnectionBuilder builder = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar");
+            ConnectionPool pool = new ConnectionPool(1, 60000, 1000);
+            String key = "sftp://foo@localhost:" + server.getPort();
+
+            // when
+            Connection first = pool.borrow(key, builder);
+            pool.release(key, first);
+            Connection reused = pool.borrow(key, builder);
+            pool.release(key, reused);
+            reused.close(); // lost while idle
+            Connection reconnected = pool.borrow(key, builder);
+
+            // then
+            assertSame(first, reused);
+            assertNotSame(reused, reconnected);
+            assertTrue(reconnected.isConnected());
+            assertEquals(1, pool.getOpenConnections(key));
+            assertThrows(RuntimeIOException.class, () -> pool.borrow(key, builder));
+
+            pool.release(key, reconnected);
+            pool.close();
+            assertFalse(reconnected.isConnected());
+        });
+    }
+
+    @Test
+    void testConnectionPool_retryOnReusedConnection() throws Exception {
+        withSftpServer(server -> {
+            // given
+            ConnectionBuilder builder = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar");
+            ConnectionPool pool = new ConnectionPool(2, 60000, 1000);
+            String key = "sftp://foo@localhost:" + server.getPort();
+            Connection idle = pool.pooledBuilder(key, builder).build();
+            idle.close(); // handed back to the pool
+            List<Connection> used = new ArrayList<>();
+
+            // when
+            pool.use(key, builder, connection -> {
+                used.add(connection);
+                if (used.size() == 1) {
+                    connection.close(); // lost while idle, found out by the action
+                    throw new RuntimeIOException("Connection reset");
+                }
+            });
+
+            // then
+            assertEquals(2, used.size());
+            assertFalse(used.get(0).isConnected());
+            assertNotSame(used.get(0), used.get(1));
+            assertTrue(used.get(1).isConnected());
+            assertEquals(1, pool.getOpenConnections(key));
+
+            pool.close();
+        });
+    }
+
+    @Test
+    void testConnectionPool_noRetryOfActionFailure() throws Exception {
+        withSftpServer(server -> {
+            // given
+            ConnectionBuilder builder = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar");
+            ConnectionPool pool = new ConnectionPool(2, 60000, 1000);
+            String outerKey = "sftp://foo@localhost:" + server.getPort() + "/outer";
+            String innerKey = "sftp://foo@localhost:" + server.getPort() + "/inner";
+            pool.pooledBuilder(outerKey, builder).build().close();
+            Connection innerIdle = pool.pooledBuilder(innerKey, builder).build();
+            innerIdle.close();
+            AtomicInteger outerRuns = new AtomicInteger();
+            AtomicInteger innerRuns = new AtomicInteger();
+
+            // when
+            RuntimeIOException failure = assertThrows(RuntimeIOException.class, () ->
+                    pool.use(outerKey, builder, outer -> {
+                        outerRuns.incrementAndGet();
+                        pool.use(innerKey, builder, inner -> {
+                            innerRuns.incrementAndGet();
+                            if (innerRuns.get() == 1) {
+                                inner.close(); // lost, retried once
+                                throw new RuntimeIOException("Connection reset");
+                            }
+                            throw new RuntimeIOException("No such file");
+                        });
+                    }));
+
+            // then
+            assertEquals("No such file", failure.getMessage());
+            assertEquals(1, outerRuns.get());
+            assertEquals(2, innerRuns.get());
+            assertEquals(0, pool.getOpenConnections(outerKey));
+            assertEquals(0, pool.getOpenConnections(innerKey));
+
+            pool.close();
+        });
+    }
+
     @AfterAll
     static void afterAll() throws Exception {
         withSftpServer(server -> {
@@ -1,10 +1,21 @@
 package de.andywolf.sftpbridge.sftp;
 
 import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Connection;
 import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.DirectoryEntry;
+import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.ListingCache;
 import org.junit.jupiter.api.Test;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
 import static com.github.stefanbirkner.fakesftpserver.lambda.FakeSftpServer.withSftpServer;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -36,4 +47,217 @@ class SftpDirectoryTest {
             connection.close();
         });
     }
-}
\ No newline at end of file
+
+    @Test
+    void testMkdirs_missingParents() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.createDirectory("/existing");
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            Directory directory = connection.getDirectory("/existing/new/nested");
+
+            // when
+            directory.mkdirs();
+            directory.mkdirs();
+
+            // then
+            assertTrue(directory.exists());
+            assertTrue(connection.getDirectory("/existing/new").exists());
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testIterateFiles_manyFiles() throws Exception {
+        withSftpServer(server -> {
+            // given
+            int fileCount = 500;
+            Set<String> expected = new HashSet<>();
+            for (int i = 0; i < fileCount; i++) {
+                String name = "file-" + i + ".txt";
+                server.putFile("/many/" + name, ("content " + i).getBytes(StandardCharsets.UTF_8));
+                expected.add(name);
+            }
+            server.createDirectory("/many/sub");
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            Directory directory = connection.getDirectory("/many");
+
+            // when
+            Set<String> names = new HashSet<>();
+            try (CloseableIterator<File> files = directory.iterateFiles()) {
+                while (files.hasNext()) {
+                    File file = files.next();
+                    assertNotNull(file.getMetadata());
+                    names.add(file.getFileName());
+                }
+            }
+
+            Set<String> subDirectories = new HashSet<>();
+            try (CloseableIterator<Directory> directories = directory.iterateSubDirectories()) {
+                while (directories.hasNext()) {
+                    subDirectories.add(directories.next().getDirectoryName());
+                }
+            }
+
+            try (CloseableIterator<File> files = directory.iterateFiles()) {
+                assertTrue(files.hasNext());
+                files.next();
+            }
+
+            // then
+            assertEquals(expected, names);
+            assertEquals(1, subDirectories.size());
+            assertTrue(subDirectories.contains("sub"));
+            assertEquals(fileCount, directory.listFiles().size());
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testIterateEntries() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/mixed/file.txt", "content".getBytes(StandardCharsets.UTF_8));
+            server.putFile("/mixed/sub/nested.txt", "nested".getBytes(StandardCharsets.UTF_8));
+            server.createDirectory("/mixed/empty");
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            Directory directory = connection.getDirectory("/mixed");
+
+            // when
+            Set<String> files = new HashSet<>();
+            Set<String> subDirectories = new HashSet<>();
+            try (CloseableIterator<DirectoryEntry> entries = directory.iterateEntries()) {
+                while (entries.hasNext()) {
+                    DirectoryEntry entry = entries.next();
+                    if (entry.isDirectory()) {
+                        subDirectories.add(entry.getDirectory().getDirectoryName());
+                    } else {
+                        assertEquals(7, entry.getFile().getMetadata().getSize());
+                        files.add(entry.getFile().getFileName());
+                    }
+                }
+            }
+
+            // then
+            assertEquals(Collections.singleton("file.txt"), files);
+            assertEquals(new HashSet<>(Arrays.asList("sub", "empty")), subDirectories);
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testListingCache() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/cached/file.txt", "content".getBytes(StandardCharsets.UTF_8));
+            server.createDirectory("/cached/sub");
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.LISTING_CACHE_TTL_MILLIS, 60000)
+                    .build();
+            ListingCache cache = connection.getListingCache();
+            Directory directory = connection.getDirectory("/cached");
+
+            // when
+            assertEquals(1, directory.listFiles().size());
+            server.putFile("/cached/other.txt", "other".getBytes(StandardCharsets.UTF_8));
+            int cachedFiles = directory.listFiles().size();
+            boolean subExists = directory.getSubDirectory("sub").exists();
+
+            directory.getSubDirectory("new").mkdir();
+            int refreshedFiles = directory.listFiles().size();
+            int refreshedSubDirectories = directory.listSubDirectories().size();
+
+            // then
+            assertEquals(1, cachedFiles);
+            assertTrue(subExists);
+            assertEquals(2, refreshedFiles);
+            assertEquals(2, refreshedSubDirectories);
+            assertEquals(3, cache.getHitCount());
+            assertEquals(2, cache.getMissCount());
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testDeleteRecursively_pipelined() throws Exception {
+        withSftpServer(server -> {
+            // given
+            for (int i = 0; i < 200; i++) {
+                server.putFile("/tree/sub-" + (i % 4) + "/nested/file-" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8));
+                server.putFile("/tree/file-" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            server.createDirectory("/tree/empty");
+            server.putFile("/other/file.txt", "other".getBytes(StandardCharsets.UTF_8));
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.SFTP_MAX_PENDING_DELETES, 16)
+                    .build();
+
+            // when
+            connection.getDirectory("/tree").deleteRecursively();
+
+            // then
+            assertFalse(server.existsFile("/tree/file-0.txt"));
+            assertFalse(connection.getDirectory("/tree").exists());
+            assertTrue(server.existsFile("/other/file.txt"));
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testGetFile_seededMetadataIsNotFetchedAgain() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/seeded/file.txt", "content".getBytes(StandardCharsets.UTF_8));
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            FileMetadata listed = connection.getDirectory("/seeded").listFiles().get(0).getMetadata();
+            server.deleteAllFilesAndDirectories();
+
+            // when
+            File file = connection.getDirectory("/seeded").getFile("file.txt", listed);
+
+            // then
+            assertSame(listed, file.getMetadata());
+            assertNull(file.refreshMetadata());
+
+            connection.close();
+        });
+    }
+}
@@ -1,12 +1,27 @@
 package de.andywolf.sftpbridge.sftp;
 
 import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.base.CloseableIterator;
 import de.andywolf.sftpbridge.base.Connection;
+import de.andywolf.sftpbridge.base.ConnectionBuilder;
 import de.andywolf.sftpbridge.base.Directory;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.util.Checkpoint;
+import de.andywolf.sftpbridge.util.CheckpointStore;
+import de.andywolf.sftpbridge.util.CopyOptions;
+import de.andywolf.sftpbridge.util.CopyResult;
+import de.andywolf.sftpbridge.util.FileCopier;
+import net.schmizz.sshj.sftp.FileAttributes;
+import net.schmizz.sshj.sftp.SFTPClient;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 
 import static com.github.stefanbirkner.fakesftpserver.lambda.FakeSftpServer.withSftpServer;
@@ -14,6 +29,192 @@ import static org.junit.jupiter.api.Assertions.*;
 
 class SftpFileTest {
 
+    @Test
+    void testCopyManyFiles_singleSession() throws Exception {
+        withSftpServer(server -> {
+            // given
+            int fileCount = 300;
+            for (int i = 0; i < fileCount; i++) {
+                server.putFile("/source/file-" + i + ".txt", ("content " + i).getBytes(StandardCharsets.UTF_8));
+            }
+            server.createDirectory("/target");
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            SFTPClient sftpClient = ((SftpConnection) connection).getSharedSftpClient();
+
+            // when
+            FileCopier.copy(connection.getDirectory("/source"), connection.getDirectory("/target"));
+
+            // then
+            assertSame(sftpClient, ((SftpConnection) connection).getSharedSftpClient());
+            assertEquals(fileCount, connection.getDirectory("/target").listFiles().size());
+            assertEquals("content 299", new String(server.getFileContent("/target/file-299.txt"), StandardCharsets.UTF_8));
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testCopyDirectory_syncSameSizeRewriteWithOlderTime() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/source/unchanged.txt", "unchanged".getBytes(StandardCharsets.UTF_8));
+            server.putFile("/source/rewritten.txt", "version 1".getBytes(StandardCharsets.UTF_8));
+            server.createDirectory("/target");
+
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            SFTPClient sftpClient = ((SftpConnection) connection).getSharedSftpClient();
+            long yesterday = System.currentTimeMillis() / 1000 - 24 * 60 * 60;
+            sftpClient.setattr("/source/unchanged.txt", new FileAttributes.Builder().withAtimeMtime(yesterday, yesterday).build());
+            sftpClient.setattr("/source/rewritten.txt", new FileAttributes.Builder().withAtimeMtime(yesterday, yesterday).build());
+
+            CopyOptions copyOptions = new CopyOptions().withSync(true);
+            FileCopier.copy(connection.getDirectory("/source"), connection.getDirectory("/target"), copyOptions);
+
+            // when: rewritten with the same size, keeping an older modification time like put -p
+            server.putFile("/source/rewritten.txt", "version 2".getBytes(StandardCharsets.UTF_8));
+            sftpClient.setattr("/source/rewritten.txt", new FileAttributes.Builder().withAtimeMtime(yesterday - 60, yesterday - 60).build());
+            CopyResult result = FileCopier.copy(connection.getDirectory("/source"), connection.getDirectory("/target"), copyOptions);
+
+            // then
+            assertEquals(1, result.getUnchangedFiles());
+            assertEquals(1, result.getCopiedFiles());
+            assertEquals("version 2", new String(server.getFileContent("/target/rewritten.txt"), StandardCharsets.UTF_8));
+            assertEquals(yesterday * 1000, connection.getDirectory("/target").getFile("unchanged.txt").getMetadata().getSourceLastModified());
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testCopyDirectory_deadlinePassedTouchesNoTarget() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/source/one.txt", "one".getBytes(StandardCharsets.UTF_8));
+            server.putFile("/source/two.txt", "two".getBytes(StandardCharsets.UTF_8));
+
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            CopyOptions copyOptions = new CopyOptions().withSync(true).withDeadline(System.currentTimeMillis() - 1);
+
+            // when
+            CopyResult result = FileCopier.copy(connection.getDirectory("/source"), connection.getDirectory("/missing/target"), copyOptions);
+
+            // then
+            assertEquals(0, result.getCopiedFiles());
+            assertEquals(0, result.getUnchangedFiles());
+            assertEquals(2, result.getRemainingFiles().size());
+            assertFalse(server.existsFile("/missing"));
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testCopyDirectory_parallelWorkersCannotConnect() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/source/one.txt", "one".getBytes(StandardCharsets.UTF_8));
+            server.putFile("/source/two.txt", "two".getBytes(StandardCharsets.UTF_8));
+            server.createDirectory("/target");
+
+            ConnectionBuilder builder = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar");
+            ConnectionBuilder exhausted = new ConnectionBuilder() {
+                @Override
+                public Connection build() {
+                    throw new IllegalStateException("No connection left");
+                }
+
+                @Override
+                public ConnectionBuilder withOption(String key, String value) {
+                    return this;
+                }
+
+                @Override
+                public ConnectionBuilder withOption(String key, int value) {
+                    return this;
+                }
+            };
+            Connection connection = builder.build();
+            CopyOptions copyOptions = new CopyOptions()
+                    .withParallelism(2)
+                    .withSourceConnectionBuilder(exhausted)
+                    .withTargetConnectionBuilder(builder);
+
+            // when
+            RuntimeIOException failure = assertThrows(RuntimeIOException.class, () ->
+                    FileCopier.copy(connection.getDirectory("/source"), connection.getDirectory("/target"), copyOptions));
+
+            // then
+            assertEquals(2, failure.getSuppressed().length);
+            assertTrue(failure.getSuppressed()[0].getCause() instanceof IllegalStateException);
+            assertFalse(server.existsFile("/target/one.txt"));
+            assertFalse(server.existsFile("/target/two.txt"));
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testCopyDirectory_emptyTouchesNeitherCheckpointNorTarget() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.createDirectory("/empty");
+
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            CheckpointStore unreachable = new CheckpointStore() {
+                @Override
+                public Checkpoint load() {
+                    throw new RuntimeIOException("Checkpoint store must not be read");
+                }
+
+                @Override
+                public void save(Checkpoint checkpoint) {
+                    throw new RuntimeIOException("Checkpoint store must not be written");
+                }
+
+                @Override
+                public void clear() {
+                    throw new RuntimeIOException("Checkpoint store must not be cleared");
+                }
+            };
+            CopyOptions copyOptions = new CopyOptions().withSync(true).withCheckpointStore(unreachable);
+
+            // when
+            CopyResult result = FileCopier.copy(connection.getDirectory("/empty"), connection.getDirectory("/missing/target"), copyOptions);
+
+            // then
+            assertTrue(result.isComplete());
+            assertEquals(0, result.getCopiedFiles());
+            assertFalse(server.existsFile("/missing"));
+
+            connection.close();
+        });
+    }
+
     @Test
     void testCreateFile() throws Exception {
         withSftpServer(server -> {
@@ -54,6 +255,36 @@ class SftpFileTest {
         });
     }
 
+    @Test
+    void testRefreshMetadata() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.putFile("/listed/file.txt", "content".getBytes(StandardCharsets.UTF_8));
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .build();
+            File file = connection.getDirectory("/listed").listFiles().get(0);
+
+            // when
+            server.putFile("/listed/file.txt", "changed content".getBytes(StandardCharsets.UTF_8));
+            FileMetadata listed = file.getMetadata();
+            FileMetadata refreshed = file.refreshMetadata();
+
+            // then
+            assertTrue(file.exists());
+            assertEquals(7, listed.getSize());
+            assertNotEquals(FileMetadata.PERMISSIONS_UNKNOWN, listed.getPermissions());
+            assertEquals(15, refreshed.getSize());
+            assertEquals(refreshed, file.getMetadata());
+
+            connection.close();
+        });
+    }
+
     @Test
     void testDeleteFile() throws Exception {
         withSftpServer(server -> {
@@ -97,6 +328,191 @@ class SftpFileTest {
 
     }
 
+    @Test
+    void testReadFile_readAhead() throws Exception {
+        withSftpServer(server -> {
+            // given
+            byte[] bytesArray = generateRandomBytes(300 * 1024 + 17);
+            server.putFile("/my/test.bin", bytesArray);
+
+            // when
+            byte[] readAhead = readFile(server.getPort(), 8, 1);
+            byte[] oneByOne = readFile(server.getPort(), 0, 1);
+
+            // then
+            assertArrayEquals(bytesArray, readAhead);
+            assertArrayEquals(bytesArray, oneByOne);
+        });
+    }
+
+    @Test
+    void testReadFile_multipleChannels() throws Exception {
+        withSftpServer(server -> {
+            // given
+            byte[] bytesArray = generateRandomBytes(300 * 1024 + 17);
+            server.putFile("/my/test.bin", bytesArray);
+
+            // when
+            byte[] readAhead = readFile(server.getPort(), 8, 3);
+            byte[] oneByOne = readFile(server.getPort(), 0, 3);
+
+            // then
+            assertArrayEquals(bytesArray, readAhead);
+            assertArrayEquals(bytesArray, oneByOne);
+        });
+    }
+
+    @Test
+    void testReadFiles_interleaved() throws Exception {
+        withSftpServer(server -> {
+            // given
+            byte[] first = generateRandomBytes(200 * 1024 + 3);
+            byte[] second = generateRandomBytes(100 * 1024 + 5);
+            server.putFile("/my/first.bin", first);
+            server.putFile("/my/second.bin", second);
+
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.SFTP_MAX_CHANNELS, 1)
+                    .build();
+            Directory directory = connection.getDirectory("/my");
+
+            // when
+            ByteArrayOutputStream firstRead = new ByteArrayOutputStream();
+            ByteArrayOutputStream secondRead = new ByteArrayOutputStream();
+            int listed = 0;
+            try (InputStream firstIn = directory.getFile("first.bin").getInputStream();
+                 InputStream secondIn = directory.getFile("second.bin").getInputStream();
+                 CloseableIterator<File> files = directory.iterateFiles()) {
+                byte[] buffer = new byte[8 * 1024];
+                boolean reading = true;
+                while (reading) {
+                    reading = false;
+                    int nRead = firstIn.read(buffer);
+                    if (nRead != -1) {
+                        firstRead.write(buffer, 0, nRead);
+                        reading = true;
+                    }
+                    nRead = secondIn.read(buffer);
+                    if (nRead != -1) {
+                        secondRead.write(buffer, 0, nRead);
+                        reading = true;
+                    }
+                    if (files.hasNext()) {
+                        files.next();
+                        listed++;
+                    }
+                }
+            }
+
+            // then
+            assertArrayEquals(first, firstRead.toByteArray());
+            assertArrayEquals(second, secondRead.toByteArray());
+            assertEquals(2, listed);
+            assertEquals(2, directory.listFiles().size());
+
+            connection.close();
+        });
+    }
+
+    @Test
+    void testWriteFile_windowed() throws Exception {
+        withSftpServer(server -> {
+            // given
+            server.createDirectory("/my");
+            byte[] bytesArray = generateRandomBytes(300 * 1024 + 17);
+
+            Connection connection = new SftpConnectionBuilder()
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.SFTP_MAX_UNCONFIRMED_WRITES, 8)
+                    .withOption(ConnectionOptions.SFTP_WRITE_SIZE, 16 * 1024)
+                    .build();
+            File file = connection.getFile(connection.getDirectory("/my"), "test.bin");
+
+            // when
+            try (OutputStream outputStream = file.getOutputStream()) {
+                outputStream.write(bytesArray);
+            } finally {
+                connection.close();
+            }
+
+            // then
+            assertArrayEquals(bytesArray, server.getFileContent("/my/test.bin"));
+        });
+    }
+
+    @Test
+    void testReadFile_closeWhileRangesInFlight() throws Exception {
+        withSftpServer(server -> {
+            // given
+            byte[] bytesArray = generateRandomBytes(1024 * 1024 + 7);
+            server.putFile("/my/test.bin", bytesArray);
+            Connection connection = new SftpConnectionBuilder(new ConnectionOptions())
+                    .withOption(ConnectionOptions.ADDRESS, "localhost")
+                    .withOption(ConnectionOptions.PORT, server.getPort())
+                    .withOption(ConnectionOptions.USERNAME, "foo")
+                    .withOption(ConnectionOptions.PASSWORD, "bar")
+                    .withOption(ConnectionOptions.SFTP_READ_SIZE, 16 * 1024)
+                    .withOption(ConnectionOptions.SFTP_DOWNLOAD_CHANNELS, 4)
+                    .withOption(ConnectionOptions.SFTP_DOWNLOAD_RANGE_SIZE, 64 * 1024)
+                    .withOption(ConnectionOptions.SFTP_MAX_CHANNELS, 4)
+                    .build();
+            File file = connection.getDirectory("/my").getFile("test.bin");
+
+            // when
+            for (int i = 0; i < 10; i++) {
+                try (InputStream inputStream = file.getInputStream()) {
+                    assertEquals(bytesArray[0] & 0xff, inputStream.read());
+                }
+            }
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            try (InputStream inputStream = file.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = inputStream.read(buffer)) != -1) {
+                    outputStream.write(buffer, 0, n);
+                }
+            } finally {
+                connection.close();
+            }
+
+            // then
+            assertArrayEquals(bytesArray, outputStream.toByteArray());
+        });
+    }
+
+    private static byte[] readFile(int port, int readAheadRequests, int downloadChannels) throws IOException {
+        SftpConnection connection = (SftpConnection) new SftpConnectionBuilder()
+                .withOption(ConnectionOptions.ADDRESS, "localhost")
+                .withOption(ConnectionOptions.PORT, port)
+                .withOption(ConnectionOptions.USERNAME, "foo")
+                .withOption(ConnectionOptions.PASSWORD, "bar")
+                .withOption(ConnectionOptions.SFTP_READ_AHEAD_REQUESTS, readAheadRequests)
+                .withOption(ConnectionOptions.SFTP_READ_SIZE, 16 * 1024)
+                .withOption(ConnectionOptions.SFTP_DOWNLOAD_CHANNELS, downloadChannels)
+                .withOption(ConnectionOptions.SFTP_DOWNLOAD_RANGE_SIZE, 64 * 1024)
+                .build();
+        File file = connection.getFile(connection.getDirectory("/my"), "test.bin");
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = file.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, n);
+            }
+        } finally {
+            connection.close();
+        }
+        return outputStream.toByteArray();
+    }
+
     protected static byte[] generateRandomBytes(final int size) {
         byte[] randomBytes = new byte[size];
         new Random().nextBytes(randomBytes);
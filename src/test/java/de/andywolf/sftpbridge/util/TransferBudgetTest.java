@@ -0,0 +1,61 @@
+package de.andywolf.sftpbridge.util;
+
+import de.andywolf.sftpbridge.ConnectionOptions;
+import de.andywolf.sftpbridge.base.Directory;
+import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.sftp.SftpConnection;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferBudgetTest {
+
+    /** A directory of a connection that is never opened, the files only carry their listed size */
+    private static final Directory SOURCE = new SftpConnection(new ConnectionOptions()).getDirectory("/source");
+
+    @Test
+    void testTryAcquire_chargedWhenTransferStarts() throws InterruptedException {
+        // given
+        TransferBudget budget = new TransferBudget(new CopyOptions()
+                .withMaxFiles(3)
+                .withDeadline(System.currentTimeMillis() + 600));
+        File first = file(1000);
+        File second = file(1000);
+
+        // when: the first file waits in the queue before its transfer starts
+        Thread.sleep(350);
+        boolean firstAdmitted = budget.tryAcquire(first);
+        Thread.sleep(50);
+        budget.completed(first);
+        boolean secondAdmitted = budget.tryAcquire(second);
+
+        // then: estimated from the 50 ms of the transfer, not the 400 ms since the budget was created
+        assertTrue(firstAdmitted);
+        assertTrue(secondAdmitted);
+        assertTrue(budget.tryAcquire(file(1)));
+        assertFalse(budget.tryAcquire(file(1)));
+    }
+
+    @Test
+    void testTryAcquire_noTransferFinishingAfterDeadline() throws InterruptedException {
+        // given
+        TransferBudget budget = new TransferBudget(new CopyOptions()
+                .withDeadline(System.currentTimeMillis() + 500));
+        File first = file(100);
+
+        // when: about 1 ms per byte
+        assertTrue(budget.tryAcquire(first));
+        Thread.sleep(100);
+        budget.completed(first);
+
+        // then
+        assertFalse(budget.tryAcquire(file(1000)));
+        assertTrue(budget.isExhausted());
+        assertFalse(budget.tryAcquire(file(1)));
+    }
+
+    private static File file(long size) {
+        return SOURCE.getFile("file.bin", new FileMetadata(size, 0, null));
+    }
+}
@@ -6,11 +6,20 @@ import de.andywolf.sftpbridge.ConnectionOptions;
 import de.andywolf.sftpbridge.base.Connection;
 import de.andywolf.sftpbridge.base.Directory;
 import de.andywolf.sftpbridge.base.File;
+import de.andywolf.sftpbridge.base.FileMetadata;
+import de.andywolf.sftpbridge.base.UploadState;
 import de.andywolf.sftpbridge.s3.S3ConnectionBuilder;
+import de.andywolf.sftpbridge.util.Checkpoint;
+import de.andywolf.sftpbridge.util.CheckpointStore;
+import de.andywolf.sftpbridge.util.CopyOptions;
+import de.andywolf.sftpbridge.util.CopyResult;
+import de.andywolf.sftpbridge.util.FileCheckpointStore;
 import de.andywolf.sftpbridge.util.FileCopier;
+import de.andywolf.sftpbridge.util.FileFilter;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.testcontainers.containers.localstack.LocalStackContainer;
 import org.testcontainers.containers.output.Slf4jLogConsumer;
 import org.testcontainers.junit.jupiter.Container;
@@ -20,8 +29,13 @@ import org.testcontainers.utility.DockerImageName;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.testcontainers.containers.localstack.LocalStackContainer.Service.S3;
 
@@ -153,6 +167,225 @@ class FileCopierTest {
         connection.close();
     }
 
+    @Test
+    void testCopyDirectoryToDirectory_parallel() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/parallel/folder");
+        Directory fromSubDirectory = fromDirectory.getSubDirectory("sub");
+
+        for (int i = 0; i < 20; i++) {
+            Directory directory = i % 2 == 0 ? fromDirectory : fromSubDirectory;
+            OutputStream outputStream = connection.getFile(directory, "source-" + i + ".txt").getOutputStream();
+            outputStream.write(generateRandomBytes(100));
+            outputStream.close();
+        }
+
+        // when
+        Directory toDirectory = connection.getDirectory("/some/parallel/folder");
+
+        CopyOptions copyOptions = new CopyOptions()
+                .withParallelism(4)
+                .withSourceConnectionBuilder(new S3ConnectionBuilder(options))
+                .withTargetConnectionBuilder(new S3ConnectionBuilder(options));
+
+        FileCopier.copy(fromDirectory, toDirectory, copyOptions);
+
+        // then
+        for (int i = 0; i < 20; i++) {
+            Directory directory = i % 2 == 0 ? toDirectory : toDirectory.getSubDirectory("sub");
+            File destFile = connection.getFile(directory, "source-" + i + ".txt");
+
+            assertTrue(destFile.exists());
+        }
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_parallelWalk() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/walk/folder");
+        for (int d = 0; d < 4; d++) {
+            Directory subDirectory = fromDirectory.getSubDirectory("sub-" + d);
+            for (int i = 0; i < 3; i++) {
+                writeRandomBytes(connection.getFile(subDirectory.getSubDirectory("nested"), "source-" + i + ".txt"), 100);
+            }
+        }
+
+        // when
+        Directory toDirectory = connection.getDirectory("/some/walk/folder");
+        FileCopier.copy(fromDirectory, toDirectory, new CopyOptions().withWalkParallelism(4));
+
+        // then
+        for (int d = 0; d < 4; d++) {
+            Directory subDirectory = toDirectory.getSubDirectory("sub-" + d).getSubDirectory("nested");
+            for (int i = 0; i < 3; i++) {
+                assertTrue(connection.getFile(subDirectory, "source-" + i + ".txt").exists());
+            }
+        }
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_filter() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/filter/folder");
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("reports"), "selected.csv"), 100);
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("reports"), "empty.csv"), 0);
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("reports"), "other.txt"), 100);
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("logs"), "skipped.csv"), 100);
+
+        FileFilter filter = new FileFilter()
+                .withInclude("reports/*.csv")
+                .withSize(1, FileFilter.NO_LIMIT);
+
+        // when
+        Directory toDirectory = connection.getDirectory("/some/filter/folder");
+        FileCopier.copy(fromDirectory, toDirectory, new CopyOptions().withFilter(filter));
+
+        // then
+        Directory reports = toDirectory.getSubDirectory("reports");
+        assertTrue(connection.getFile(reports, "selected.csv").exists());
+        assertFalse(connection.getFile(reports, "empty.csv").exists());
+        assertFalse(connection.getFile(reports, "other.txt").exists());
+        assertFalse(toDirectory.getSubDirectory("logs").exists());
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_sync() throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/sync/folder");
+        Directory toDirectory = connection.getDirectory("/some/sync/folder");
+        File unchangedFile = connection.getFile(fromDirectory, "unchanged.txt");
+        File changedFile = connection.getFile(fromDirectory, "changed.txt");
+
+        writeRandomBytes(unchangedFile, 100);
+        writeRandomBytes(changedFile, 100);
+
+        CopyOptions copyOptions = new CopyOptions().withSync(true);
+        FileCopier.copy(fromDirectory, toDirectory, copyOptions);
+        FileMetadata unchangedCopy = connection.getFile(toDirectory, "unchanged.txt").getMetadata();
+
+        // when
+        writeRandomBytes(changedFile, 200);
+        FileCopier.copy(fromDirectory, toDirectory, copyOptions);
+
+        // then
+        assertEquals(unchangedCopy, connection.getFile(toDirectory, "unchanged.txt").getMetadata());
+        assertEquals(200, connection.getFile(toDirectory, "changed.txt").getMetadata().getSize());
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_checkpoint(@TempDir Path tempDir) throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/checkpoint/folder");
+        Directory toDirectory = connection.getDirectory("/some/checkpoint/folder");
+        writeRandomBytes(connection.getFile(fromDirectory, "copied.txt"), 100);
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("copied"), "file.txt"), 100);
+        writeRandomBytes(connection.getFile(fromDirectory, "pending.txt"), 100);
+        writeRandomBytes(connection.getFile(fromDirectory.getSubDirectory("pending"), "file.txt"), 100);
+
+        Path checkpointFile = tempDir.resolve("checkpoint.properties");
+        CheckpointStore checkpointStore = new FileCheckpointStore(checkpointFile);
+        Checkpoint checkpoint = new Checkpoint();
+        checkpoint.fileCompleted("copied.txt");
+        checkpoint.directoryCompleted("copied");
+        checkpointStore.save(checkpoint);
+
+        // when
+        FileCopier.copy(fromDirectory, toDirectory, new CopyOptions().withCheckpointStore(checkpointStore));
+
+        // then
+        assertFalse(connection.getFile(toDirectory, "copied.txt").exists());
+        assertFalse(connection.getFile(toDirectory.getSubDirectory("copied"), "file.txt").exists());
+        assertTrue(connection.getFile(toDirectory, "pending.txt").exists());
+        assertTrue(connection.getFile(toDirectory.getSubDirectory("pending"), "file.txt").exists());
+        assertFalse(Files.exists(checkpointFile));
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_checkpointWithChangedSource(@TempDir Path tempDir) throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/changed/folder");
+        Directory toDirectory = connection.getDirectory("/some/changed/folder");
+        File sourceFile = connection.getFile(fromDirectory, "file.bin");
+        writeRandomBytes(sourceFile, 100);
+
+        Path checkpointFile = tempDir.resolve("checkpoint.properties");
+        CheckpointStore checkpointStore = new FileCheckpointStore(checkpointFile);
+        Checkpoint checkpoint = new Checkpoint();
+        // an upload of a former version of the file, which must not be continued
+        checkpoint.uploadProgressed("file.bin", new UploadState("former-upload",
+                Collections.singletonList(new UploadState.Part(1, "former-etag", 60)), 100, 1000));
+        checkpointStore.save(checkpoint);
+
+        // when
+        FileCopier.copy(fromDirectory, toDirectory, new CopyOptions().withCheckpointStore(checkpointStore));
+
+        // then
+        assertEquals(100, connection.getFile(toDirectory, "file.bin").getMetadata().getSize());
+        assertFalse(Files.exists(checkpointFile));
+
+        connection.close();
+    }
+
+    @Test
+    void testCopyDirectoryToDirectory_budget(@TempDir Path tempDir) throws IOException {
+        // given
+        Connection connection = new S3ConnectionBuilder(options).build();
+
+        Directory fromDirectory = connection.getDirectory("/my/budget/folder");
+        Directory toDirectory = connection.getDirectory("/some/budget/folder");
+        for (int i = 0; i < 5; i++) {
+            writeRandomBytes(connection.getFile(fromDirectory, "file-" + i + ".txt"), 100);
+        }
+
+        Path checkpointFile = tempDir.resolve("checkpoint.properties");
+        CopyOptions copyOptions = new CopyOptions()
+                .withCheckpointStore(new FileCheckpointStore(checkpointFile))
+                .withMaxFiles(3);
+
+        // when
+        CopyResult first = FileCopier.copy(fromDirectory, toDirectory, copyOptions);
+        CopyResult second = FileCopier.copy(fromDirectory, toDirectory, copyOptions);
+
+        // then
+        assertEquals(3, first.getCopiedFiles());
+        assertEquals(2, first.getRemainingFiles().size());
+        assertFalse(first.isComplete());
+        assertEquals(2, second.getCopiedFiles());
+        assertTrue(second.isComplete());
+        assertEquals(5, toDirectory.listFiles().size());
+        assertFalse(Files.exists(checkpointFile));
+
+        connection.close();
+    }
+
+    private static void writeRandomBytes(File file, int size) throws IOException {
+        try (OutputStream outputStream = file.getOutputStream()) {
+            outputStream.write(generateRandomBytes(size));
+        }
+    }
+
     private String generateRandomAlphanumericString(final long length) {
         int leftLimit = 48; // numeral '0'
         int rightLimit = 122; // letter 'z'
@@ -0,0 +1,67 @@
+package de.andywolf.sftpbridge.utils;
+
+import de.andywolf.sftpbridge.util.FileFilter;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileFilterTest {
+
+    @Test
+    void testAcceptsPath_globs() {
+        // given
+        FileFilter filter = new FileFilter()
+                .withInclude("reports/**/*.{csv,txt}")
+                .withExclude("**/tmp/**");
+
+        // then
+        assertTrue(filter.acceptsPath("reports/a.csv"));
+        assertTrue(filter.acceptsPath("reports/2021/01/b.txt"));
+        assertFalse(filter.acceptsPath("reports/2021/b.xml"));
+        assertFalse(filter.acceptsPath("reports/tmp/c.csv"));
+        assertFalse(filter.acceptsPath("other/a.csv"));
+    }
+
+    @Test
+    void testAcceptsPath_patterns() {
+        // given
+        FileFilter filter = new FileFilter()
+                .withIncludePattern("\\.csv$")
+                .withExcludePattern("^archive/");
+
+        // then
+        assertTrue(filter.acceptsPath("in/a.csv"));
+        assertFalse(filter.acceptsPath("in/a.txt"));
+        assertFalse(filter.acceptsPath("archive/a.csv"));
+    }
+
+    @Test
+    void testAcceptsDirectory() {
+        // given
+        FileFilter filter = new FileFilter()
+                .withInclude("reports/2021-*/*.csv")
+                .withExclude("reports/2021-12/**");
+
+        // then
+        assertTrue(filter.acceptsDirectory("reports"));
+        assertTrue(filter.acceptsDirectory("reports/2021-01"));
+        assertFalse(filter.acceptsDirectory("reports/2021-12"));
+        assertFalse(filter.acceptsDirectory("reports/2020-01"));
+        assertFalse(filter.acceptsDirectory("reports/2021-01/nested"));
+        assertFalse(filter.acceptsDirectory("other"));
+    }
+
+    @Test
+    void testPrefixes() {
+        // given
+        FileFilter filter = new FileFilter()
+                .withInclude("reports/2021-*.csv")
+                .withInclude("reports/2020-*.csv");
+
+        // then
+        assertEquals("reports/202", filter.pathPrefix());
+        assertEquals("reports", filter.namePrefix(""));
+        assertEquals("202", filter.namePrefix("reports"));
+        assertEquals("", new FileFilter().withInclude("**/*.csv").namePrefix("reports"));
+    }
+}
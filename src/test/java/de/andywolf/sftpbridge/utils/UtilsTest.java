@@ -0,0 +1,229 @@
+package de.andywolf.sftpbridge.utils;
+
+import de.andywolf.sftpbridge.RuntimeIOException;
+import de.andywolf.sftpbridge.util.Utils;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@Slf4j
+class UtilsTest {
+
+    /** The buffer size of the plain copy loop, also used for the pipeline so that both make the same calls */
+    private static final int CHUNK_SIZE = 1024;
+    private static final int LATENCY_MILLIS = 1;
+
+    @Test
+    void testWritePipelined() {
+        // given
+        byte[] bytesArray = generateRandomBytes(1024 * 1024 + 17);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        // when
+        Utils.write(new ByteArrayInputStream(bytesArray), outputStream, 4096, 4);
+
+        // then
+        assertArrayEquals(bytesArray, outputStream.toByteArray());
+    }
+
+    @Test
+    void testWritePipelined_failingInputStream() {
+        // given
+        InputStream inputStream = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        // when, then
+        assertThrows(RuntimeIOException.class, () -> Utils.write(inputStream, new ByteArrayOutputStream(), 4096, 4));
+    }
+
+    @Test
+    void testWritePipelined_failingOutputStream() {
+        // given
+        OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        // when, then
+        assertThrows(RuntimeIOException.class, () -> Utils.write(new ByteArrayInputStream(generateRandomBytes(100_000)), outputStream, 4096, 4));
+    }
+
+    @Test
+    void testWritePipelined_overlapsReadsAndWrites() {
+        // given
+        byte[] bytesArray = generateRandomBytes(4 * 4096);
+        CountDownLatch secondRead = new CountDownLatch(2);
+        InputStream inputStream = new ByteArrayInputStream(bytesArray) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                secondRead.countDown();
+                return super.read(b, off, len);
+            }
+        };
+        AtomicBoolean overlapped = new AtomicBoolean();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                // the first write only completes once the next read has started
+                if (size() == 0) {
+                    try {
+                        overlapped.set(secondRead.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.write(b, off, len);
+            }
+        };
+
+        // when
+        Utils.write(inputStream, outputStream, 4096, 2);
+
+        // then
+        assertTrue(overlapped.get());
+        assertArrayEquals(bytesArray, outputStream.toByteArray());
+    }
+
+    @Test
+    void testWritePipelined_failingOutputStreamStopsReader() {
+        // given
+        AtomicInteger activeReads = new AtomicInteger();
+        InputStream inputStream = new ByteArrayInputStream(generateRandomBytes(100_000)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                // like a socket read, a round trip that is not cut short by an interrupt
+                activeReads.incrementAndGet();
+                boolean interrupted = false;
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+                for (long remaining; (remaining = end - System.nanoTime()) > 0; ) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(remaining);
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                activeReads.decrementAndGet();
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.read(b, off, len);
+            }
+        };
+        OutputStream outputStream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+
+        // when
+        assertThrows(RuntimeIOException.class, () -> Utils.write(inputStream, outputStream, 4096, 4));
+
+        // then
+        assertEquals(0, activeReads.get());
+    }
+
+    /**
+     * Compares the plain copy loop with the pipelined copy, using in-process stand-ins for a remote source and a remote
+     * target that both pay a fixed latency per call. Both copy with buffers of the same size.
+     */
+    @Test
+    void benchmarkWritePipelined() {
+        // given
+        byte[] bytesArray = generateRandomBytes(200 * CHUNK_SIZE);
+
+        // when
+        ByteArrayOutputStream sequentialTarget = new ByteArrayOutputStream();
+        long sequentialStart = System.nanoTime();
+        Utils.write(new LatentInputStream(bytesArray), new LatentOutputStream(sequentialTarget));
+        long sequentialMillis = (System.nanoTime() - sequentialStart) / 1_000_000;
+
+        ByteArrayOutputStream pipelinedTarget = new ByteArrayOutputStream();
+        long pipelinedStart = System.nanoTime();
+        Utils.write(new LatentInputStream(bytesArray), new LatentOutputStream(pipelinedTarget), CHUNK_SIZE, 4);
+        long pipelinedMillis = (System.nanoTime() - pipelinedStart) / 1_000_000;
+
+        log.info("Copied {} bytes: sequential {} ms, pipelined {} ms", bytesArray.length, sequentialMillis, pipelinedMillis);
+
+        // then
+        assertArrayEquals(bytesArray, sequentialTarget.toByteArray());
+        assertArrayEquals(bytesArray, pipelinedTarget.toByteArray());
+        assertTrue(pipelinedMillis < sequentialMillis);
+    }
+
+    protected static byte[] generateRandomBytes(final int size) {
+        byte[] randomBytes = new byte[size];
+        new Random().nextBytes(randomBytes);
+        return randomBytes;
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(LATENCY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stand-in for a remote file: returns at most {@link #CHUNK_SIZE} bytes per call and waits for a round trip each.
+     */
+    private static class LatentInputStream extends ByteArrayInputStream {
+
+        LatentInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            sleep();
+            return super.read(b, off, Math.min(len, CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * Stand-in for a remote file: waits for a round trip for every {@link #CHUNK_SIZE} bytes written.
+     */
+    private static class LatentOutputStream extends OutputStream {
+
+        private final ByteArrayOutputStream out;
+        private int unacknowledged;
+
+        LatentOutputStream(ByteArrayOutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            out.write(b, off, len);
+            unacknowledged += len;
+            while (unacknowledged >= CHUNK_SIZE) {
+                sleep();
+                unacknowledged -= CHUNK_SIZE;
+            }
+        }
+    }
+}